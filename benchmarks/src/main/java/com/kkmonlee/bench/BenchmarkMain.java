@@ -0,0 +1,36 @@
+package com.kkmonlee.bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler, so allocation rates are
+ * reported next to the timings, and writes the results as JSON
+ */
+public class BenchmarkMain {
+
+    /**
+     * Runs the benchmarks
+     *
+     * @param args optional regular expression of the benchmarks to run, then
+     *             optional result file (jmh-results.json by default)
+     * @throws RunnerException
+     */
+    public static void main(String[] args) throws RunnerException {
+        String include = (args.length > 0) ? args[0] : "com\\.kkmonlee\\.bench\\..*Benchmark";
+        String resultFile = (args.length > 1) ? args[1] : "jmh-results.json";
+
+        Options options = new OptionsBuilder()
+                .include(include)
+                .addProfiler(GCProfiler.class)
+                .resultFormat(ResultFormatType.JSON)
+                .result(resultFile)
+                .build();
+
+        new Runner(options).run();
+    }
+}
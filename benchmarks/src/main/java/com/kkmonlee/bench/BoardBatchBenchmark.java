@@ -0,0 +1,136 @@
+package com.kkmonlee.bench;
+
+import com.kkmonlee.dataobj.Direction;
+import com.kkmonlee.game.BitBoard;
+import com.kkmonlee.game.Board;
+import com.kkmonlee.game.BoardBatch;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Moves per microsecond when the same move is played on BATCH_SIZE boards:
+ * BoardBatch.moveAll against a loop of BitBoard.move and a loop of
+ * Board.move, all over the position corpus repeated.
+ *
+ * Every invocation restores the boards first, a copyFrom for the batch,
+ * setState for BitBoard and a clone for Board (see BoardMoveBenchmark for
+ * the cost of the clone alone).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BoardBatchBenchmark {
+
+    // Boards moved by every invocation
+    private static final int BATCH_SIZE = 4096;
+
+    @Param({"UP", "LEFT"})
+    public Direction direction;
+
+    // Positions as Board objects
+    private Board[] boards;
+
+    // Positions as packed boards
+    private long[] packedBoards;
+
+    // Scores of the positions
+    private int[] scores;
+
+    // Positions as a batch, never moved
+    private BoardBatch source;
+
+    // Batch restored from source and moved
+    private BoardBatch batch;
+
+    // Board reset before every BitBoard move
+    private final BitBoard scratchBoard = new BitBoard(0L, 0);
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        PositionCorpus corpus = PositionCorpus.standard();
+
+        boards = new Board[BATCH_SIZE];
+        packedBoards = new long[BATCH_SIZE];
+        scores = new int[BATCH_SIZE];
+        source = new BoardBatch(BATCH_SIZE);
+        batch = new BoardBatch(BATCH_SIZE);
+
+        for (int k = 0; k < BATCH_SIZE; k++) {
+            int position = k % corpus.size();
+
+            boards[k] = corpus.toBoard(position);
+            packedBoards[k] = corpus.getPackedBoard(position);
+            scores[k] = corpus.getScore(position);
+            source.add(packedBoards[k], scores[k]);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public int batchMoveAll() {
+        batch.copyFrom(source);
+        return batch.moveAll(direction);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public long bitBoardMoveLoop() {
+        long sum = 0;
+
+        for (int k = 0; k < BATCH_SIZE; k++) {
+            scratchBoard.setState(packedBoards[k], scores[k]);
+            sum += scratchBoard.move(direction) + scratchBoard.getPackedBoard();
+        }
+
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public long boardMoveLoop() throws CloneNotSupportedException {
+        long sum = 0;
+
+        for (int k = 0; k < BATCH_SIZE; k++) {
+            Board copy = (Board) boards[k].clone();
+            sum += copy.move(direction);
+        }
+
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public long[] batchTerminatedMask() {
+        return source.terminatedMask();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public int boardIsGameTerminatedLoop() throws CloneNotSupportedException {
+        int terminated = 0;
+
+        for (int k = 0; k < BATCH_SIZE; k++) {
+            if (boards[k].isGameTerminated()) {
+                terminated++;
+            }
+        }
+
+        return terminated;
+    }
+}
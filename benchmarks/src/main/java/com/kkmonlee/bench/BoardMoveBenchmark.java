@@ -0,0 +1,103 @@
+package com.kkmonlee.bench;
+
+import com.kkmonlee.dataobj.Direction;
+import com.kkmonlee.game.BitBoard;
+import com.kkmonlee.game.Board;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single-move throughput of Board and BitBoard over the position corpus.
+ *
+ * Board.move works in place, so boardMove includes a clone; boardClone
+ * measures that clone alone.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BoardMoveBenchmark {
+
+    @Param({"UP", "RIGHT", "DOWN", "LEFT"})
+    public Direction direction;
+
+    // Positions as Board objects
+    private Board[] boards;
+
+    // Positions as packed boards
+    private long[] packedBoards;
+
+    // Scores of the positions
+    private int[] scores;
+
+    // Board reset before every BitBoard move
+    private final BitBoard scratchBoard = new BitBoard(0L, 0);
+
+    // Next position
+    private int index = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        PositionCorpus corpus = PositionCorpus.standard();
+
+        boards = new Board[corpus.size()];
+        packedBoards = new long[corpus.size()];
+        scores = new int[corpus.size()];
+
+        for (int k = 0; k < corpus.size(); k++) {
+            boards[k] = corpus.toBoard(k);
+            packedBoards[k] = corpus.getPackedBoard(k);
+            scores[k] = corpus.getScore(k);
+        }
+    }
+
+    @Benchmark
+    public int boardMove() throws CloneNotSupportedException {
+        Board copy = (Board) boards[next()].clone();
+        return copy.move(direction);
+    }
+
+    @Benchmark
+    public Object boardClone() throws CloneNotSupportedException {
+        return boards[next()].clone();
+    }
+
+    @Benchmark
+    public boolean boardIsGameTerminated() throws CloneNotSupportedException {
+        return boards[next()].isGameTerminated();
+    }
+
+    @Benchmark
+    public long bitBoardMove() {
+        int k = next();
+        scratchBoard.setState(packedBoards[k], scores[k]);
+        return scratchBoard.move(direction) + scratchBoard.getPackedBoard();
+    }
+
+    @Benchmark
+    public boolean bitBoardIsGameTerminated() {
+        int k = next();
+        scratchBoard.setState(packedBoards[k], scores[k]);
+        return scratchBoard.isGameTerminated();
+    }
+
+    private int next() {
+        int k = index;
+        index = (k + 1 == packedBoards.length) ? 0 : k + 1;
+        return k;
+    }
+}
@@ -0,0 +1,61 @@
+package com.kkmonlee.bench;
+
+import com.kkmonlee.ai.HeuristicEvaluator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of one leaf evaluation over the position corpus
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HeuristicBenchmark {
+
+    // Positions as packed boards
+    private long[] packedBoards;
+
+    // Scores of the positions
+    private int[] scores;
+
+    // Evaluator under test
+    private final HeuristicEvaluator evaluator = HeuristicEvaluator.DEFAULT;
+
+    // Next position
+    private int index = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        PositionCorpus corpus = PositionCorpus.standard();
+
+        packedBoards = new long[corpus.size()];
+        scores = new int[corpus.size()];
+
+        for (int k = 0; k < corpus.size(); k++) {
+            packedBoards[k] = corpus.getPackedBoard(k);
+            scores[k] = corpus.getScore(k);
+        }
+    }
+
+    @Benchmark
+    public int evaluate() {
+        int k = index;
+        index = (k + 1 == packedBoards.length) ? 0 : k + 1;
+
+        return evaluator.evaluate(packedBoards[k], scores[k]);
+    }
+}
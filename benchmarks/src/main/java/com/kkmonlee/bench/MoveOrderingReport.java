@@ -0,0 +1,59 @@
+package com.kkmonlee.bench;
+
+import com.kkmonlee.ai.AISolver;
+import com.kkmonlee.ai.SearchStats;
+
+/**
+ * Compares fixed-depth Alpha-Beta searches over the corpus with move
+ * ordering on and off. Both solvers run without a transposition table, so
+ * the node counts only depend on the order children are searched in.
+ */
+public class MoveOrderingReport {
+
+    /**
+     * Prints one line per depth
+     *
+     * @param args optional deepest depth (7 by default)
+     */
+    public static void main(String[] args) {
+        int maxDepth = (args.length > 0) ? Integer.parseInt(args[0]) : 7;
+        PositionCorpus corpus = PositionCorpus.standard();
+
+        AISolver ordered = new AISolver();
+        AISolver unordered = new AISolver();
+        unordered.setMoveOrdering(false);
+
+        System.out.println("depth\tnodes off\tnodes on\tratio\tcutoffs off\tcutoffs on\tms off\tms on\tsame move");
+
+        for (int depth = 3; depth <= maxDepth; depth++) {
+            long offNodes = 0;
+            long onNodes = 0;
+            double offCutoffs = 0;
+            double onCutoffs = 0;
+            long offNanos = 0;
+            long onNanos = 0;
+            int sameMoves = 0;
+
+            for (int k = 0; k < corpus.size(); k++) {
+                boolean same = unordered.getBestMove(corpus.toBitBoard(k), depth) == ordered.getBestMove(corpus.toBitBoard(k), depth);
+                if (same) {
+                    sameMoves++;
+                }
+
+                SearchStats off = unordered.getLastSearchStats();
+                SearchStats on = ordered.getLastSearchStats();
+                offNodes += off.getNodes();
+                onNodes += on.getNodes();
+                offCutoffs += off.getCutoffRate();
+                onCutoffs += on.getCutoffRate();
+                offNanos += off.getElapsedNanos();
+                onNanos += on.getElapsedNanos();
+            }
+
+            System.out.println(String.format("%d\t%d\t%d\t%.3f\t%.3f\t%.3f\t%d\t%d\t%d/%d",
+                    depth, offNodes, onNodes, (double) onNodes / offNodes,
+                    offCutoffs / corpus.size(), onCutoffs / corpus.size(),
+                    offNanos / 1000000, onNanos / 1000000, sameMoves, corpus.size()));
+        }
+    }
+}
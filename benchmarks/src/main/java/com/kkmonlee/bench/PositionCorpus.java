@@ -0,0 +1,119 @@
+package com.kkmonlee.bench;
+
+import com.kkmonlee.ai.AISolver;
+import com.kkmonlee.dataobj.ActionStatus;
+import com.kkmonlee.dataobj.Direction;
+import com.kkmonlee.game.BitBoard;
+import com.kkmonlee.game.Board;
+
+import java.util.Random;
+
+/**
+ * Fixed board positions shared by the benchmarks.
+ *
+ * Positions are sampled every few moves from games played by a shallow
+ * solver with seeded generators, so the corpus covers the opening to the
+ * endgame and is identical from one run to the next.
+ */
+public final class PositionCorpus {
+
+    // Number of positions used when none is given
+    public static final int DEFAULT_SIZE = 256;
+
+    // Seed of the first game
+    public static final long DEFAULT_SEED = 2048;
+
+    // Moves between two sampled positions
+    private static final int SAMPLE_INTERVAL = 7;
+
+    // Search depth of the games the positions come from
+    private static final int GENERATOR_DEPTH = 2;
+
+    // Packed positions
+    private final long[] boards;
+
+    // Score of each position
+    private final int[] scores;
+
+    private PositionCorpus(long[] boards, int[] scores) {
+        this.boards = boards;
+        this.scores = scores;
+    }
+
+    /**
+     * Gets the default corpus
+     */
+    public static PositionCorpus standard() {
+        return generate(DEFAULT_SIZE, DEFAULT_SEED);
+    }
+
+    /**
+     * Samples positions from seeded self-play
+     *
+     * @param size
+     * @param seed
+     * @return
+     */
+    public static PositionCorpus generate(int size, long seed) {
+        long[] boards = new long[size];
+        int[] scores = new int[size];
+        AISolver solver = new AISolver();
+
+        int count = 0;
+        for (long gameSeed = seed; count < size; gameSeed++) {
+            BitBoard theGame = new BitBoard(new Random(gameSeed));
+            ActionStatus result = ActionStatus.CONTINUE;
+
+            for (int moves = 0; count < size && (result == ActionStatus.CONTINUE || result == ActionStatus.INVALID_MOVE); moves++) {
+                if (moves % SAMPLE_INTERVAL == 0) {
+                    boards[count] = theGame.getPackedBoard();
+                    scores[count] = theGame.getScore();
+                    count++;
+                }
+
+                Direction hint = solver.getBestMove(theGame, GENERATOR_DEPTH);
+                if (hint == null) {
+                    break;
+                }
+                result = theGame.action(hint);
+            }
+        }
+
+        return new PositionCorpus(boards, scores);
+    }
+
+    /**
+     * Gets the number of positions
+     */
+    public int size() {
+        return boards.length;
+    }
+
+    /**
+     * Gets a packed position
+     */
+    public long getPackedBoard(int k) {
+        return boards[k];
+    }
+
+    /**
+     * Gets the score of a position
+     */
+    public int getScore(int k) {
+        return scores[k];
+    }
+
+    /**
+     * Creates a BitBoard holding a position
+     */
+    public BitBoard toBitBoard(int k) {
+        return new BitBoard(boards[k], scores[k]);
+    }
+
+    /**
+     * Creates a Board holding a position
+     */
+    public Board toBoard(int k) {
+        return new Board(BitBoard.unpack(boards[k]), scores[k]);
+    }
+}
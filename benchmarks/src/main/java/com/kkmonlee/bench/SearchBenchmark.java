@@ -0,0 +1,74 @@
+package com.kkmonlee.bench;
+
+import com.kkmonlee.ai.AISolver;
+import com.kkmonlee.dataobj.Direction;
+import com.kkmonlee.dataobj.SearchAlgorithm;
+import com.kkmonlee.game.BitBoard;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of one findBestMove call per position, at depths 3 to 7.
+ *
+ * The solver runs without a transposition table so every call does the
+ * full search instead of hitting the previous iteration's results.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SearchBenchmark {
+
+    // Positions searched, a prefix of the corpus
+    private static final int POSITIONS = 64;
+
+    @Param({"3", "4", "5", "6", "7"})
+    public int depth;
+
+    @Param({"ALPHA_BETA", "EXPECTIMAX"})
+    public SearchAlgorithm algorithm;
+
+    // Positions as packed boards
+    private BitBoard[] boards;
+
+    // Solver under test
+    private AISolver solver;
+
+    // Next position
+    private int index = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        PositionCorpus corpus = PositionCorpus.standard();
+
+        boards = new BitBoard[POSITIONS];
+        for (int k = 0; k < POSITIONS; k++) {
+            boards[k] = corpus.toBitBoard(k * corpus.size() / POSITIONS);
+        }
+
+        solver = new AISolver();
+        solver.setAlgorithm(algorithm);
+    }
+
+    @Benchmark
+    public Direction findBestMove() {
+        BitBoard theBoard = boards[index];
+        index = (index + 1 == boards.length) ? 0 : index + 1;
+
+        return solver.getBestMove(theBoard, depth);
+    }
+}
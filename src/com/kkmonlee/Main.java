@@ -1,16 +1,44 @@
 package com.kkmonlee;
 
 import com.kkmonlee.ai.AISolver;
+import com.kkmonlee.ai.HeuristicEvaluator;
+import com.kkmonlee.ai.NTupleNetwork;
+import com.kkmonlee.ai.OpeningBook;
+import com.kkmonlee.ai.Ponderer;
+import com.kkmonlee.ai.TranspositionTable;
 import com.kkmonlee.dataobj.ActionStatus;
 import com.kkmonlee.dataobj.Direction;
+import com.kkmonlee.dataobj.SearchAlgorithm;
 import com.kkmonlee.game.Board;
+import com.kkmonlee.game.MoveLog;
+import com.kkmonlee.game.SplitMixRandom;
+import com.kkmonlee.server.GameServer;
+import com.kkmonlee.sim.BatchResult;
+import com.kkmonlee.sim.BatchRunner;
+import com.kkmonlee.sim.GameResult;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
 import java.util.Scanner;
 
 public class Main {
 
+    // Opening book used for hints when present, built by OpeningBookGenerator
+    private static final Path OPENING_BOOK_FILE = Paths.get("opening.book");
+
+    // Leaf evaluator used for hints when present, trained by NTupleTrainer
+    private static final Path NTUPLE_WEIGHTS_FILE = Paths.get("ntuple.weights");
+
+    // Heuristic weights used for hints when present and no network is, tuned by WeightTuner
+    private static final Path HEURISTIC_WEIGHTS_FILE = Paths.get("heuristic.weights");
+
     public static void main(String[] args) {
+        Startup.prepareInBackground();
 
         System.out.println("Welcome.");
         System.out.println("======================");
@@ -28,7 +56,9 @@ public class Main {
                         break;
                     case 3:  help();
                         break;
-                    case 4:  return;
+                    case 4:  runServer(sc);
+                        break;
+                    case 5:  return;
                     default: throw new Exception();
                 }
             }
@@ -51,39 +81,32 @@ public class Main {
         System.out.println("1. Play the 2048 Game");
         System.out.println("2. Estimate the Accuracy of AI Solver");
         System.out.println("3. Help");
-        System.out.println("4. Quit");
+        System.out.println("4. Start the Game Server");
+        System.out.println("5. Quit");
         System.out.println();
-        System.out.println("Enter a number from 1-4:");
+        System.out.println("Enter a number from 1-5:");
     }
 
     /**
      * Estimates the accuracy of the AI solver by running multiple games
+     * in parallel
      *
-     * @throws CloneNotSupportedException
+     * @throws InterruptedException
      */
-    public static void calculateAccuracy() throws CloneNotSupportedException {
-        int wins = 0;
+    public static void calculateAccuracy() throws InterruptedException {
         int total = 10;
+        int hintDepth = 7;
+        int threads = Runtime.getRuntime().availableProcessors();
 
         System.out.println("Running " + total + " games to estimate the accuracy: ");
 
-        for (int i = 0; i < total; i++) {
-            int hintDepth = 7;
-            Board theGame = new Board();
-
-            Direction hint = AISolver.findBestMove(theGame, hintDepth);
-            ActionStatus result = ActionStatus.CONTINUE;
-
-            while (result == ActionStatus.CONTINUE || result == ActionStatus.INVALID_MOVE) {
-                result = theGame.action(hint);
+        BatchRunner runner = new BatchRunner(total, threads, hintDepth, SearchAlgorithm.ALPHA_BETA, System.currentTimeMillis());
+        BatchResult batch = runner.run();
 
-                if (result == ActionStatus.CONTINUE || result == ActionStatus.INVALID_MOVE) {
-                    hint = AISolver.findBestMove(theGame, hintDepth);
-                }
-            }
+        for (int i = 0; i < total; i++) {
+            GameResult game = batch.getGames().get(i);
 
-            if (result == ActionStatus.WIN) {
-                wins++;
+            if (game.isWon()) {
                 System.out.println("Game " + (i + 1) + " - won.");
             }
             else {
@@ -91,7 +114,30 @@ public class Main {
             }
         }
 
-        System.out.println(wins + " wins out of " + total + " games.");
+        System.out.println(batch.getWins() + " wins out of " + total + " games.");
+    }
+
+    /**
+     * Hosts games over HTTP on the loopback interface until enter is pressed
+     *
+     * @param sc
+     * @throws IOException
+     */
+    public static void runServer(Scanner sc) throws IOException {
+        int threads = Runtime.getRuntime().availableProcessors();
+        InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), GameServer.DEFAULT_PORT);
+
+        GameServer server = new GameServer(address, 4, threads, 256);
+        server.start();
+
+        System.out.println("Game server listening on http://localhost:" + server.getPort() + "/games");
+        System.out.println("Press enter to stop it.");
+
+        sc.nextLine();
+        sc.nextLine();
+
+        server.stop();
+        System.out.println("Game server stopped, " + server.getSessionCount() + " games were open.");
     }
 
     /**
@@ -103,9 +149,21 @@ public class Main {
         System.out.println("Play the 2048 Game!");
         System.out.println("Use 8 for UP, 6 for RIGHT, 2 for DOWN and 4 for LEFT. Type a to play automatically and q to exit. Press enter to submit your choice.");
 
-        int hintDepth =  7;
-        Board theGame = new Board();
-        Direction hint = AISolver.findBestMove(theGame, hintDepth);
+        Duration hintBudget = Duration.ofMillis(500);
+        MoveLog moveLog = new MoveLog(SplitMixRandom.newSeed());
+        Board theGame = moveLog.newBoard();
+        AISolver solver = new AISolver(new TranspositionTable());
+        solver.setOpeningBook(loadOpeningBook());
+        NTupleNetwork network = loadNTupleNetwork();
+        if (network != null) {
+            solver.setEvaluator(network);
+            solver.setAlgorithm(SearchAlgorithm.EXPECTIMAX);
+        }
+        else {
+            solver.setEvaluator(loadHeuristic());
+        }
+        Ponderer ponderer = new Ponderer(solver);
+        Direction hint = ponderer.getBestMove(theGame, hintBudget).getDirection();
         printBoard(theGame.getBoardArray(), theGame.getScore(), hint);
 
         try {
@@ -115,12 +173,15 @@ public class Main {
             ActionStatus result = ActionStatus.CONTINUE;
 
             while (result == ActionStatus.CONTINUE || result == ActionStatus.INVALID_MOVE) {
+                // Search ahead while the player thinks, until the next hint stops it
+                ponderer.start(theGame, hint);
                 inputChar = (char) unbuffered.read();
 
                 if (inputChar == '\n' || inputChar == '\r') {
                     continue;
                 }
-                else if(inputChar=='8') {
+
+                if(inputChar=='8') {
                     result=theGame.action(Direction.UP);
                 }
                 else if(inputChar=='6') {
@@ -145,7 +206,7 @@ public class Main {
                 }
 
                 if(result==ActionStatus.CONTINUE || result==ActionStatus.INVALID_MOVE ) {
-                    hint = AISolver.findBestMove(theGame, hintDepth);
+                    hint = ponderer.getBestMove(theGame, hintBudget).getDirection();
                 }
                 else {
                     hint = null;
@@ -160,6 +221,70 @@ public class Main {
         catch (IOException ex) {
             System.err.println(ex);
         }
+        finally {
+            ponderer.stop();
+        }
+
+        System.out.println(ponderer.getInstantHints() + " of " + ponderer.getHints() + " hints were ready from pondering.");
+        System.out.println("Move log: " + moveLog);
+    }
+
+    /**
+     * Maps the opening book if there is one
+     *
+     * @return the book, or null if there is none or it cannot be read
+     */
+    public static OpeningBook loadOpeningBook() {
+        if (!Files.exists(OPENING_BOOK_FILE)) {
+            return null;
+        }
+
+        try {
+            return OpeningBook.open(OPENING_BOOK_FILE);
+        }
+        catch (IOException ex) {
+            System.err.println(ex);
+            return null;
+        }
+    }
+
+    /**
+     * Loads the trained n-tuple network if there is one
+     *
+     * @return the network, or null if there is none or it cannot be read
+     */
+    public static NTupleNetwork loadNTupleNetwork() {
+        if (!Files.exists(NTUPLE_WEIGHTS_FILE)) {
+            return null;
+        }
+
+        try {
+            return NTupleNetwork.open(NTUPLE_WEIGHTS_FILE);
+        }
+        catch (IOException ex) {
+            System.err.println(ex);
+            return null;
+        }
+    }
+
+    /**
+     * Reads the tuned heuristic weights if there are some
+     *
+     * @return the evaluator, the default one if there is no file or it
+     * cannot be read
+     */
+    public static HeuristicEvaluator loadHeuristic() {
+        if (!Files.exists(HEURISTIC_WEIGHTS_FILE)) {
+            return HeuristicEvaluator.DEFAULT;
+        }
+
+        try {
+            return HeuristicEvaluator.open(HEURISTIC_WEIGHTS_FILE);
+        }
+        catch (IOException ex) {
+            System.err.println(ex);
+            return HeuristicEvaluator.DEFAULT;
+        }
     }
 
     public static void printBoard(int[][] boardArray, int score, Direction hint) {
@@ -0,0 +1,208 @@
+package com.kkmonlee;
+
+import com.kkmonlee.ai.AISolver;
+import com.kkmonlee.ai.Evaluator;
+import com.kkmonlee.ai.HeuristicEvaluator;
+import com.kkmonlee.ai.TranspositionTable;
+import com.kkmonlee.dataobj.Direction;
+import com.kkmonlee.dataobj.SearchAlgorithm;
+import com.kkmonlee.game.BitBoard;
+import com.kkmonlee.game.TableSnapshot;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Gets a new JVM to its first hint quickly.
+ *
+ * Three costs come before the first hint of a fresh JVM: loading and
+ * linking the game classes, computing the lookup tables of BitBoard,
+ * TranspositionTable and HeuristicEvaluator, and running the search
+ * interpreted until the JIT compiles it. Each has its remedy:
+ *
+ * - java -XX:ArchiveClassesAtExit=game.jsa -cp game.jar com.kkmonlee.Startup
+ *   records the classes a warm-up loads in an AppCDS archive (JDK 13 and
+ *   later), and java -XX:SharedArchiveFile=game.jsa -cp game.jar ... maps
+ *   them into every later run. Only classes from jars are archived, and the
+ *   archive only matches the JDK and class path it was recorded with.
+ * - java com.kkmonlee.Startup --write tables.snapshot writes the tables to
+ *   a TableSnapshot, which later runs map instead of computing the tables.
+ * - warmUp() searches a few canned positions at shallow depths, so the
+ *   search is compiled before it is needed. Main runs it in the background
+ *   while the menu waits for a choice.
+ *
+ * Run with --report true to see where the time to the first hint goes.
+ */
+public class Startup {
+
+    // Canned positions from a self-played game: the opening, the middle game and a crowded end game
+    private static final long[] WARM_UP_BOARDS = {
+            0x0001000000210421L,
+            0x0100500084003311L,
+            0x0011002142323689L,
+            0x500072008301A642L,
+            0x532076319841A730L
+    };
+
+    // Scores of the canned positions
+    private static final int[] WARM_UP_SCORES = {52, 1956, 6144, 12028, 16812};
+
+    // Deepest alpha-beta search of the warm-up
+    private static final int WARM_UP_ALPHA_BETA_DEPTH = 7;
+
+    // Deepest expectimax search of the warm-up
+    private static final int WARM_UP_EXPECTIMAX_DEPTH = 3;
+
+    // Memory of the warm-up's own transposition table, so it never touches the game's
+    private static final int WARM_UP_TABLE_MB = 1;
+
+    // Heuristic weights included in written snapshots when present
+    private static final Path HEURISTIC_WEIGHTS_FILE = Paths.get("heuristic.weights");
+
+    /**
+     * Loads the tables, warms the search up and reports the time taken
+     *
+     * Options: --write FILE writes the tables to a snapshot first,
+     * --depth N of the hints timed by the report (5 by default) and
+     * --report true to print the times.
+     *
+     * @param args
+     */
+    public static void main(String[] args) throws IOException {
+        long jvmMillis = ManagementFactory.getRuntimeMXBean().getUptime();
+        Path snapshotFile = null;
+        int depth = 5;
+        boolean report = false;
+
+        for (int k = 0; k + 1 < args.length; k += 2) {
+            String value = args[k + 1];
+
+            switch (args[k]) {
+                case "--write":
+                    snapshotFile = Paths.get(value);
+                    break;
+                case "--depth":
+                    depth = Integer.parseInt(value);
+                    break;
+                case "--report":
+                    report = Boolean.parseBoolean(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + args[k]);
+            }
+        }
+
+        long startTime = System.nanoTime();
+        int sections = TableSnapshot.getDefault().getSectionCount();
+        loadTables();
+        long tablesTime = System.nanoTime();
+
+        AISolver solver = new AISolver(new TranspositionTable());
+        solver.setEvaluator(HeuristicEvaluator.DEFAULT);
+        long solverTime = System.nanoTime();
+
+        Direction firstHint = solver.getBestMove(new BitBoard(WARM_UP_BOARDS[1], WARM_UP_SCORES[1]), depth);
+        long firstHintTime = System.nanoTime();
+
+        warmUp(HeuristicEvaluator.DEFAULT);
+        long warmUpTime = System.nanoTime();
+
+        solver.getBestMove(new BitBoard(WARM_UP_BOARDS[2], WARM_UP_SCORES[2]), depth);
+        long warmHintTime = System.nanoTime();
+
+        if (snapshotFile != null) {
+            writeSnapshot(snapshotFile);
+            System.out.println("Tables written to " + snapshotFile);
+        }
+
+        if (report) {
+            System.out.println(String.format("JVM start to main:       %6d ms", jvmMillis));
+            System.out.println(String.format("Tables:                  %6.1f ms (%s)", (tablesTime - startTime) / 1e6,
+                    (sections == 0) ? "computed, no snapshot at " + TableSnapshot.getDefaultFile()
+                            : sections + " sections in " + TableSnapshot.getDefaultFile()));
+            System.out.println(String.format("Solver:                  %6.1f ms", (solverTime - tablesTime) / 1e6));
+            System.out.println(String.format("First hint, depth %d:     %6.1f ms (%s)", depth, (firstHintTime - solverTime) / 1e6,
+                    firstHint));
+            System.out.println(String.format("Time to first hint:      %6.1f ms since JVM start",
+                    jvmMillis + (firstHintTime - startTime) / 1e6));
+            System.out.println(String.format("Warm-up:                 %6.1f ms", (warmUpTime - firstHintTime) / 1e6));
+            System.out.println(String.format("Warm hint, depth %d:      %6.1f ms", depth, (warmHintTime - warmUpTime) / 1e6));
+        }
+    }
+
+    /**
+     * Loads the lookup tables, from the default snapshot when it has them
+     */
+    public static void loadTables() {
+        BitBoard.canMove(0L);
+        TranspositionTable.hash(0L, 0, true);
+        HeuristicEvaluator.DEFAULT.evaluate(0L, 0);
+    }
+
+    /**
+     * Searches the canned positions with both algorithms at shallow depths,
+     * so the JIT compiles the search before the first real hint
+     *
+     * @param evaluator leaf evaluation the hints will use
+     */
+    public static void warmUp(Evaluator evaluator) {
+        AISolver solver = new AISolver(new TranspositionTable(WARM_UP_TABLE_MB, TranspositionTable.ReplacementPolicy.AGE_THEN_DEPTH));
+        solver.setEvaluator(evaluator);
+
+        for (int k = 0; k < WARM_UP_BOARDS.length; k++) {
+            BitBoard position = new BitBoard(WARM_UP_BOARDS[k], WARM_UP_SCORES[k]);
+
+            solver.setAlgorithm(SearchAlgorithm.ALPHA_BETA);
+            for (int depth = 1; depth <= WARM_UP_ALPHA_BETA_DEPTH; depth++) {
+                solver.getBestMove(position, depth);
+            }
+
+            solver.setAlgorithm(SearchAlgorithm.EXPECTIMAX);
+            for (int depth = 1; depth <= WARM_UP_EXPECTIMAX_DEPTH; depth++) {
+                solver.getBestMove(position, depth);
+            }
+        }
+    }
+
+    /**
+     * Loads the tables and warms up on a daemon thread, leaving the caller
+     * free to wait for input
+     *
+     * @return the started thread
+     */
+    public static Thread prepareInBackground() {
+        Thread thread = new Thread(() -> {
+            loadTables();
+            warmUp(HeuristicEvaluator.DEFAULT);
+        }, "startup-warm-up");
+
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+
+        return thread;
+    }
+
+    /**
+     * Writes the lookup tables to a snapshot, with the line tables of the
+     * default heuristic and of heuristic.weights when there is one
+     *
+     * @param file
+     * @throws IOException
+     */
+    public static void writeSnapshot(Path file) throws IOException {
+        TableSnapshot.Builder snapshot = new TableSnapshot.Builder();
+
+        BitBoard.addTables(snapshot);
+        TranspositionTable.addTables(snapshot);
+        HeuristicEvaluator.DEFAULT.addTables(snapshot);
+        if (Files.exists(HEURISTIC_WEIGHTS_FILE)) {
+            HeuristicEvaluator.open(HEURISTIC_WEIGHTS_FILE).addTables(snapshot);
+        }
+
+        snapshot.write(file);
+    }
+}
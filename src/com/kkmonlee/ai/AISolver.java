@@ -1,90 +1,1013 @@
 package com.kkmonlee.ai;
 
 import com.kkmonlee.dataobj.Direction;
-import com.kkmonlee.dataobj.ActionStatus;
+import com.kkmonlee.dataobj.SearchAlgorithm;
+import com.kkmonlee.game.BitBoard;
 import com.kkmonlee.game.Board;
-import java.util.HashMap;
+import com.kkmonlee.game.Symmetry;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
-import java.util.Objects;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class AISolver {
+
+    // PvE enum class
+    private enum Player {
+        // Computer
+        COMPUTER,
+
+        // User
+
+        USER
+    }
+
+    // Directions tried at player nodes, cached because values() copies the array
+    private static final Direction[] DIRECTIONS = Direction.values();
+
+    // Tile values the computer can place
+    private static final int[] POSSIBLE_VALUES = {2, 4};
+
+    // Chance nodes reached with a lower probability are scored by the heuristic
+    public static final double DEFAULT_PROBABILITY_THRESHOLD = 0.0001;
+
+    // Separates expectimax entries from alpha-beta ones in a shared transposition table
+    private static final long EXPECTIMAX_KEY = 0x6A09E667F3BCC908L;
+
+    // Deepest iteration tried by a budgeted search, the transposition table keeps 8 bits of depth
+    public static final int MAX_SEARCH_DEPTH = 64;
+
+    // Nodes visited between two deadline checks, minus one
+    private static final int DEADLINE_CHECK_MASK = 1023;
+
+    // Most children of a node, a 2 and a 4 on each of the 16 cells
+    private static final int MAX_CHILDREN = 2 * BitBoard.BOARD_SIZE * BitBoard.BOARD_SIZE;
+
+    // Upper bound of heuristic scores used in ordering keys, keeps keys positive
+    private static final long ORDERING_SCORE_LIMIT = (1L << 40) - 1;
+
+    // Solver reused by the static entry points, one per thread
+    private static final ThreadLocal<AISolver> DEFAULT_SOLVER = ThreadLocal.withInitial(AISolver::new);
+
+    // Book consulted by the static entry points, null when none
+    private static volatile OpeningBook defaultOpeningBook = null;
+
+    // Scratch boards indexed by remaining depth, the root lives at the search depth
+    private BitBoard[] scratchBoards = new BitBoard[0];
+
+    // Cache of searched positions kept across calls, null when disabled
+    private final TranspositionTable transpositionTable;
+
+    // Search run by getBestMove
+    private SearchAlgorithm algorithm = SearchAlgorithm.ALPHA_BETA;
+
+    // Probability below which expectimax stops expanding chance nodes
+    private double probabilityThreshold = DEFAULT_PROBABILITY_THRESHOLD;
+
+    // Scores the leaves
+    private Evaluator evaluator = HeuristicEvaluator.DEFAULT;
+
+    // Precomputed moves looked up before searching, null when none
+    private OpeningBook openingBook = null;
+
+    // Pool running root moves in parallel, null when searching on the calling thread
+    private ForkJoinPool pool = null;
+
+    // Whether expectimax also splits the chance nodes below the root moves
+    private boolean parallelChanceNodes = false;
+
+    // Solvers owning the scratch boards of parallel tasks, per direction the root move and then one per cell
+    private final AISolver[] workers = new AISolver[DIRECTIONS.length * (BitBoard.BOARD_SIZE * BitBoard.BOARD_SIZE + 1)];
+
+    // Score of the best root move found by the last search
+    private double rootScore;
+
+    // Whether Alpha-Beta orders children before searching them
+    private boolean moveOrdering = true;
+
+    // Whether every call starts a new search age in the transposition table
+    private boolean agingTable = true;
+
+    // Children of the node on scratchBoards[depth], generated before they are searched
+    private long[][] childBoards = new long[0][];
+    private int[][] childScores = new int[0][];
+
+    // Move codes of those children, the direction ordinal or 2 * cellId + 1 for a 4
+    private int[][] childMoves = new int[0][];
+
+    // Ordering keys of those children, searched from the highest
+    private long[][] childKeys = new long[0][];
+
+    // Last move that caused a cutoff, per depth, -1 if none
+    private int[] playerKillers = new int[0];
+    private int[] spawnKillers = new int[0];
+
+    // Cutoffs caused by each direction and each spawn, weighted by depth squared
+    private final int[] directionHistory = new int[DIRECTIONS.length];
+    private final int[] spawnHistory = new int[MAX_CHILDREN];
+
+    // Counters of the running call, merged from the workers after a parallel search
+    private final SearchStats counters = new SearchStats();
+
+    // Receives the counters of every public call, null when not collected
+    private SolverMetrics metrics = null;
+
+    // Stops the search when cancelled, null when the search cannot be cancelled
+    private CancellationToken cancellation = null;
+
+    // System.nanoTime() after which a budgeted search gives up
+    private long deadline;
+
+    // Whether the deadline is checked
+    private boolean deadlineEnabled = false;
+
+    // Set once the deadline passed or the search was cancelled, the running iteration is then unwound and discarded
+    private boolean aborted = false;
+
+    /**
+     * Constructor
+     *
+     * Creates a solver without a transposition table
+     */
+    public AISolver() {
+        this(null);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param transpositionTable cache shared by every search of this solver, may be null
+     */
+    public AISolver(TranspositionTable transpositionTable) {
+        this.transpositionTable = transpositionTable;
+    }
+
+    /**
+     * Finds the next best move
+     *
+     * @param theBoard
+     * @param depth
+     * @return
+     */
+    public static Direction findBestMove(Board theBoard, int depth) {
+        return findBestMove(new BitBoard(theBoard), depth);
+    }
+
+    /**
+     * Finds the next best move on a packed board
+     *
+     * @param theBoard
+     * @param depth
+     * @return
+     */
+    public static Direction findBestMove(BitBoard theBoard, int depth) {
+        AISolver solver = DEFAULT_SOLVER.get();
+        solver.openingBook = defaultOpeningBook;
+        return solver.getBestMove(theBoard, depth);
+    }
+
+    /**
+     * Finds the next best move within a time budget
+     *
+     * @param theBoard
+     * @param budget
+     * @return
+     */
+    public static SearchResult findBestMove(Board theBoard, Duration budget) {
+        AISolver solver = DEFAULT_SOLVER.get();
+        solver.openingBook = defaultOpeningBook;
+        return solver.getBestMove(theBoard, budget);
+    }
+
+    /**
+     * Sets the opening book consulted by findBestMove
+     *
+     * @param openingBook may be null
+     */
+    public static void setDefaultOpeningBook(OpeningBook openingBook) {
+        defaultOpeningBook = openingBook;
+    }
+
+    /**
+     * Gets the search run by getBestMove
+     */
+    public SearchAlgorithm getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * Sets the search run by getBestMove
+     *
+     * @param algorithm
+     */
+    public void setAlgorithm(SearchAlgorithm algorithm) {
+        this.algorithm = algorithm;
+    }
+
+    /**
+     * Gets the probability below which expectimax stops expanding chance nodes
+     */
+    public double getProbabilityThreshold() {
+        return probabilityThreshold;
+    }
+
+    /**
+     * Sets the probability below which expectimax stops expanding chance nodes
+     *
+     * @param probabilityThreshold
+     */
+    public void setProbabilityThreshold(double probabilityThreshold) {
+        this.probabilityThreshold = probabilityThreshold;
+    }
+
+    /**
+     * Gets the transposition table, null when disabled
+     */
+    public TranspositionTable getTranspositionTable() {
+        return transpositionTable;
+    }
+
+    /**
+     * Gets the leaf evaluator
+     */
+    public Evaluator getEvaluator() {
+        return evaluator;
+    }
+
+    /**
+     * Sets the leaf evaluator, a HeuristicEvaluator or a trained
+     * NTupleNetwork. Scores already in the transposition table come from the
+     * previous evaluator, clear it when switching mid-game.
+     *
+     * @param evaluator
+     */
+    public void setEvaluator(Evaluator evaluator) {
+        this.evaluator = evaluator;
+    }
+
+    /**
+     * Gets the opening book, null when none
+     */
+    public OpeningBook getOpeningBook() {
+        return openingBook;
+    }
+
+    /**
+     * Sets the opening book looked up before every search. It is only used
+     * when it was computed with the selected algorithm.
+     *
+     * @param openingBook may be null
+     */
+    public void setOpeningBook(OpeningBook openingBook) {
+        this.openingBook = openingBook;
+    }
+
+    /**
+     * Gets the token checked by the searches, null when none
+     */
+    public CancellationToken getCancellation() {
+        return cancellation;
+    }
+
+    /**
+     * Sets the token checked by the searches. A cancelled fixed-depth search
+     * returns null, a cancelled budgeted one its deepest completed
+     * iteration if any; either way getLastSearchStats().isCancelled() tells.
+     *
+     * @param cancellation may be null
+     */
+    public void setCancellation(CancellationToken cancellation) {
+        this.cancellation = cancellation;
+    }
+
+    /**
+     * Gets the number of threads evaluating root moves, 1 when sequential
+     */
+    public int getParallelism() {
+        return (pool == null) ? 1 : pool.getParallelism();
+    }
+
+    /**
+     * Sets the number of threads evaluating root moves. 1 searches on the
+     * calling thread.
+     *
+     * @param parallelism
+     */
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be positive: " + parallelism);
+        }
+
+        if (pool != null) {
+            pool.shutdown();
+        }
+        pool = (parallelism == 1) ? null : new ForkJoinPool(parallelism);
+    }
+
+    /**
+     * Gets whether expectimax splits the chance nodes below the root moves
+     */
+    public boolean isParallelChanceNodes() {
+        return parallelChanceNodes;
+    }
+
+    /**
+     * Sets whether expectimax splits the chance nodes below the root moves
+     * into one task per empty cell, only used with a parallelism above 1
+     *
+     * @param parallelChanceNodes
+     */
+    public void setParallelChanceNodes(boolean parallelChanceNodes) {
+        this.parallelChanceNodes = parallelChanceNodes;
+    }
+
+    /**
+     * Gets whether Alpha-Beta orders children before searching them
+     */
+    public boolean isMoveOrdering() {
+        return moveOrdering;
+    }
+
+    /**
+     * Sets whether Alpha-Beta orders children before searching them. The
+     * chosen move does not depend on it, only the number of nodes searched.
+     *
+     * @param moveOrdering
+     */
+    public void setMoveOrdering(boolean moveOrdering) {
+        this.moveOrdering = moveOrdering;
+    }
+
+    /**
+     * Gets whether every call starts a new search age in the transposition
+     * table
+     */
+    public boolean isAgingTable() {
+        return agingTable;
+    }
+
+    /**
+     * Sets whether every call starts a new search age in the transposition
+     * table. A caller running many small searches as one, like pondering,
+     * turns it off and calls TranspositionTable.newSearch() itself, so that
+     * the replacement policy still tells its entries from stale ones.
+     *
+     * @param agingTable
+     */
+    public void setAgingTable(boolean agingTable) {
+        this.agingTable = agingTable;
+    }
+
+    /**
+     * Gets the metrics every search is recorded into, null when not collected
+     */
+    public SolverMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Sets the metrics every search is recorded into. One SolverMetrics may
+     * be shared by several solvers.
+     *
+     * @param metrics may be null
+     */
+    public void setMetrics(SolverMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Gets the score of the move returned by the last getBestMove call
+     */
+    public double getLastScore() {
+        return rootScore;
+    }
+
+    /**
+     * Gets the counters of the last getBestMove call
+     */
+    public SearchStats getLastSearchStats() {
+        return new SearchStats(counters);
+    }
+
+    /**
+     * Finds the next best move
+     *
+     * @param theBoard
+     * @param depth
+     * @return
+     */
+    public Direction getBestMove(Board theBoard, int depth) {
+        return getBestMove(new BitBoard(theBoard), depth);
+    }
+
+    /**
+     * Finds the next best move with the selected algorithm, reusing this
+     * solver's scratch boards and transposition table
+     *
+     * @param theBoard
+     * @param depth
+     * @return the best direction, or null if no move changes the board
+     */
+    public Direction getBestMove(BitBoard theBoard, int depth) {
+        if (depth < 1) {
+            throw new IllegalArgumentException("Search depth must be positive: " + depth);
+        }
+
+        long startTime = System.nanoTime();
+        startSearch(0);
+
+        long bookEntry = probeBook(theBoard, depth);
+        if (bookEntry != 0) {
+            rootScore = OpeningBook.scoreOf(bookEntry);
+            finishSearch(theBoard, OpeningBook.depthOf(bookEntry), startTime);
+            return OpeningBook.moveOf(bookEntry);
+        }
+
+        Direction direction = search(theBoard, depth, null);
+        if (aborted) {
+            direction = null;
+        }
+
+        finishSearch(theBoard, depth, startTime);
+
+        return direction;
+    }
+
+    /**
+     * Finds the next best move by searching one ply deeper at a time until
+     * the budget runs out
+     *
+     * @param theBoard
+     * @param budget
+     * @return
+     */
+    public SearchResult getBestMove(Board theBoard, Duration budget) {
+        return getBestMove(new BitBoard(theBoard), budget);
+    }
+
+    /**
+     * Finds the next best move by searching one ply deeper at a time until
+     * the budget runs out. Each iteration tries the previous best move first.
+     * The iteration running when the deadline passes is abandoned and the
+     * deepest completed one is returned. Depth 1 always completes, unless the
+     * search is cancelled. A
+     * position found in the opening book is answered from it at once.
+     *
+     * @param theBoard
+     * @param budget
+     * @return
+     */
+    public SearchResult getBestMove(BitBoard theBoard, Duration budget) {
+        long startTime = System.nanoTime();
+        startSearch(budget.toNanos());
+
+        long bookEntry = probeBook(theBoard, 1);
+        if (bookEntry != 0) {
+            rootScore = OpeningBook.scoreOf(bookEntry);
+            finishSearch(theBoard, OpeningBook.depthOf(bookEntry), startTime);
+            return new SearchResult(OpeningBook.moveOf(bookEntry), rootScore, counters);
+        }
+
+        SearchResult result = null;
+        Direction previousDirection = null;
+
+        for (int depth = 1; depth <= MAX_SEARCH_DEPTH; depth++) {
+            // Depth 1 has at most four leaves, let it finish so there is always a move
+            deadlineEnabled = depth > 1;
+
+            Direction direction = search(theBoard, depth, previousDirection);
+            if (aborted) {
+                break;
+            }
+
+            result = new SearchResult(direction, rootScore, depth, counters.nodes, System.nanoTime() - startTime);
+
+            if (direction == null) {
+                break;
+            }
+            previousDirection = direction;
+        }
+
+        deadlineEnabled = false;
+
+        if (result == null) {
+            // Cancelled before depth 1 completed
+            rootScore = 0;
+            finishSearch(theBoard, 0, startTime);
+            return new SearchResult(null, 0, counters);
+        }
+
+        rootScore = result.getScore();
+        finishSearch(theBoard, result.getDepth(), startTime);
+
+        return new SearchResult(result.getDirection(), result.getScore(), counters);
+    }
+
+    /**
+     * Resets the per-call counters and the deadline
+     *
+     * @param budgetNanos time allowed to the call, 0 for no deadline
+     */
+    private void startSearch(long budgetNanos) {
+        counters.reset();
+        ageOrderingTables();
+        aborted = false;
+        deadlineEnabled = budgetNanos > 0;
+        deadline = System.nanoTime() + budgetNanos;
+
+        if (transpositionTable != null && agingTable) {
+            transpositionTable.newSearch();
+        }
+    }
+
+    /**
+     * Looks up the root in the opening book
+     *
+     * @param theBoard
+     * @param minDepth shallowest book search accepted
+     * @return the book entry, or 0 when the book cannot answer
+     */
+    private long probeBook(BitBoard theBoard, int minDepth) {
+        if (openingBook == null || openingBook.getAlgorithm() != algorithm) {
+            return 0;
+        }
+
+        long entry = openingBook.probe(theBoard.getPackedBoard());
+        if (entry == 0 || OpeningBook.depthOf(entry) < minDepth) {
+            return 0;
+        }
+
+        counters.bookHits++;
+
+        return entry;
+    }
+
+    /**
+     * Completes the counters of the call and records them
+     *
+     * @param theBoard root board
+     * @param depth depth of the deepest completed search
+     * @param startTime System.nanoTime() when the call started
+     */
+    private void finishSearch(BitBoard theBoard, int depth, long startTime) {
+        counters.depth = depth;
+        counters.rootEmptyCells = BitBoard.countEmptyCells(theBoard.getPackedBoard());
+        counters.elapsedNanos = System.nanoTime() - startTime;
+        counters.cancelled = cancellation != null && cancellation.isCancelled();
+
+        if (metrics != null) {
+            metrics.record(counters);
+        }
+    }
+
+    /**
+     * Searches the root to a fixed depth
+     *
+     * @param theBoard
+     * @param depth
+     * @param firstDirection move tried first, may be null
+     * @return
+     */
+    private Direction search(BitBoard theBoard, int depth, Direction firstDirection) {
+        ensureScratchBoards(depth);
+        scratchBoards[depth].copyFrom(theBoard);
+
+        BitBoard rootBoard = scratchBoards[depth];
+
+        boolean useTable = transpositionTable != null && algorithm != SearchAlgorithm.MINIMAX;
+
+        long hash = 0;
+        Symmetry symmetry = Symmetry.IDENTITY;
+        if (useTable) {
+            symmetry = Symmetry.canonicalOf(rootBoard.getPackedBoard());
+            hash = tableHash(rootBoard, Player.USER, symmetry);
+            long entry = transpositionTable.probe(hash);
+            counters.tableProbes++;
+            if (entry != 0 && TranspositionTable.depthOf(entry) >= depth
+                    && TranspositionTable.boundOf(entry) == TranspositionTable.Bound.EXACT
+                    && TranspositionTable.moveOf(entry) != null) {
+                counters.tableHits++;
+                int storedScore = TranspositionTable.scoreOf(entry);
+                rootScore = (algorithm == SearchAlgorithm.EXPECTIMAX) ? Float.intBitsToFloat(storedScore) : storedScore;
+                return symmetry.inverse().apply(TranspositionTable.moveOf(entry));
+            }
+        }
+
+        Direction bestDirection = (pool != null) ? searchRootInParallel(depth) : searchRoot(depth, firstDirection);
+
+        if (useTable && bestDirection != null && !aborted) {
+            int storedScore = (algorithm == SearchAlgorithm.EXPECTIMAX) ? Float.floatToRawIntBits((float) rootScore) : (int) rootScore;
+            transpositionTable.store(hash, depth, storedScore, TranspositionTable.Bound.EXACT, symmetry.apply(bestDirection));
+        }
+
+        return bestDirection;
+    }
+
+    /**
+     * Tries every move from the root on this thread
+     *
+     * @param depth
+     * @param firstDirection move tried first, may be null
+     * @return
+     */
+    private Direction searchRoot(int depth, Direction firstDirection) {
+        BitBoard rootBoard = scratchBoards[depth];
+        BitBoard newBoard = scratchBoards[depth - 1];
+
+        Direction bestDirection = null;
+        double bestScore = Double.NEGATIVE_INFINITY;
+        int alpha = Integer.MIN_VALUE;
+
+        for (int k = -1; k < DIRECTIONS.length; k++) {
+            Direction direction = (k < 0) ? firstDirection : DIRECTIONS[k];
+            if (direction == null || (k >= 0 && direction == firstDirection)) {
+                continue;
+            }
+
+            newBoard.copyFrom(rootBoard);
+
+            int points = newBoard.move(direction);
+
+            if (points == 0 && newBoard.getPackedBoard() == rootBoard.getPackedBoard()) {
+                continue;
+            }
+
+            double currentScore;
+            switch (algorithm) {
+                case MINIMAX:
+                    currentScore = minimax(depth - 1, Player.COMPUTER);
+                    break;
+                case EXPECTIMAX:
+                    currentScore = expectimax(depth - 1, 1.0, Player.COMPUTER);
+                    break;
+                default:
+                    currentScore = alphabeta(depth - 1, alpha, Integer.MAX_VALUE, Player.COMPUTER);
+                    break;
+            }
+
+            if (aborted) {
+                break;
+            }
+
+            if (currentScore > bestScore) {
+                bestScore = currentScore;
+                bestDirection = direction;
+                alpha = (int) currentScore;
+            }
+
+            if (alpha == Integer.MAX_VALUE) {
+                break; //beta cutoff
+            }
+        }
+
+        rootScore = bestScore;
+
+        return bestDirection;
+    }
+
+    /**
+     * Evaluates the root moves as fork-join tasks, each on its own worker
+     * solver. Alpha-Beta workers share the best root score found so far and
+     * search with a window just below it, so every result that can still win
+     * is exact. Ties go to the first direction, as in searchRoot, which keeps
+     * the chosen move equal to the sequential one when no transposition
+     * table is shared.
+     *
+     * @param depth
+     * @return
+     */
+    private Direction searchRootInParallel(int depth) {
+        BitBoard rootBoard = scratchBoards[depth];
+        BitBoard newBoard = scratchBoards[depth - 1];
+
+        for (AISolver worker : workers) {
+            if (worker != null) {
+                worker.ageOrderingTables();
+            }
+        }
 
-public class AISolver {
+        AtomicInteger sharedAlpha = new AtomicInteger(Integer.MIN_VALUE);
+        RootTask[] tasks = new RootTask[DIRECTIONS.length];
 
-    // PvE enum class
-    private enum Player {
-        // Computer
-        COMPUTER,
+        for (Direction direction : DIRECTIONS) {
+            newBoard.copyFrom(rootBoard);
 
-        // User
+            int points = newBoard.move(direction);
 
-        USER
+            if (points == 0 && newBoard.getPackedBoard() == rootBoard.getPackedBoard()) {
+                continue;
+            }
+
+            tasks[direction.ordinal()] = new RootTask(direction, newBoard.getPackedBoard(), newBoard.getScore(), depth - 1, sharedAlpha);
+        }
+
+        pool.invoke(new RecursiveAction() {
+            // Tasks are Serializable through ForkJoinTask, they are never serialised
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected void compute() {
+                List<RootTask> legalTasks = new ArrayList<>();
+                for (RootTask task : tasks) {
+                    if (task != null) {
+                        legalTasks.add(task);
+                    }
+                }
+                invokeAll(legalTasks);
+            }
+        });
+
+        for (AISolver worker : workers) {
+            if (worker != null) {
+                counters.add(worker.counters);
+                aborted |= worker.aborted;
+                worker.counters.reset();
+                worker.aborted = false;
+            }
+        }
+
+        Direction bestDirection = null;
+        double bestScore = Double.NEGATIVE_INFINITY;
+
+        for (RootTask task : tasks) {
+            if (task != null && task.getRawResult() > bestScore) {
+                bestScore = task.getRawResult();
+                bestDirection = task.direction;
+            }
+        }
+
+        rootScore = bestScore;
+
+        return bestDirection;
     }
 
     /**
-     * Finds the next best move
+     * Gets the worker solver of a task slot, creating it on first use. A
+     * slot is a root direction and, when chance nodes are split, an empty
+     * cell below it.
      *
-     * @param theBoard
-     * @param depth
+     * @param direction
+     * @param cellId the empty cell, or -1 for the root move itself
      * @return
-     * @throws CloneNotSupportedException
      */
-    public static Direction findBestMove(Board theBoard, int depth) throws CloneNotSupportedException {
-        Map<String, Object> result = alphabeta(theBoard, depth, Integer.MIN_VALUE, Integer.MAX_VALUE, Player.USER);
+    private AISolver worker(Direction direction, int cellId) {
+        int slot = direction.ordinal() * (BitBoard.BOARD_SIZE * BitBoard.BOARD_SIZE + 1) + cellId + 1;
 
-        return (Direction) result.get("Direction");
+        AISolver worker = workers[slot];
+        if (worker == null) {
+            worker = new AISolver(transpositionTable);
+            workers[slot] = worker;
+        }
+
+        worker.algorithm = algorithm;
+        worker.probabilityThreshold = probabilityThreshold;
+        worker.evaluator = evaluator;
+        worker.moveOrdering = moveOrdering;
+        worker.deadline = deadline;
+        worker.deadlineEnabled = deadlineEnabled;
+        worker.cancellation = cancellation;
+
+        return worker;
     }
 
-    public static Map<String, Object> minimax(Board theBoard, int depth, Player player) throws CloneNotSupportedException {
-        Map<String, Object> result = new HashMap<>();
+    // Scores one root move on a worker solver
+    private class RootTask extends RecursiveTask<Double> {
 
-        Direction bestDirection = null;
+        // Tasks are Serializable through ForkJoinTask, they are never serialised
+        private static final long serialVersionUID = 1L;
+
+        // Move played at the root
+        private final Direction direction;
+
+        // Board after the move
+        private final long packedBoard;
+
+        // Score after the move
+        private final int score;
+
+        // Remaining depth below the move
+        private final int depth;
+
+        // Best Alpha-Beta root score found by any task
+        private final AtomicInteger sharedAlpha;
+
+        RootTask(Direction direction, long packedBoard, int score, int depth, AtomicInteger sharedAlpha) {
+            this.direction = direction;
+            this.packedBoard = packedBoard;
+            this.score = score;
+            this.depth = depth;
+            this.sharedAlpha = sharedAlpha;
+        }
+
+        @Override
+        protected Double compute() {
+            AISolver worker = worker(direction, -1);
+            worker.ensureScratchBoards(depth);
+            worker.scratchBoards[depth].setState(packedBoard, score);
+
+            switch (algorithm) {
+                case MINIMAX:
+                    return (double) worker.minimax(depth, Player.COMPUTER);
+                case EXPECTIMAX:
+                    if (parallelChanceNodes) {
+                        return expectimaxInParallel();
+                    }
+                    return worker.expectimax(depth, 1.0, Player.COMPUTER);
+                default:
+                    int alpha = sharedAlpha.get();
+                    if (alpha != Integer.MIN_VALUE) {
+                        alpha--;
+                    }
+
+                    int currentScore = worker.alphabeta(depth, alpha, Integer.MAX_VALUE, Player.COMPUTER);
+                    if (currentScore > alpha) {
+                        sharedAlpha.accumulateAndGet(currentScore, Math::max);
+                    }
+                    return (double) currentScore;
+            }
+        }
+
+        /**
+         * Scores the chance node below the root move with one task per empty
+         * cell, summing in cell order like expectimax does
+         */
+        private double expectimaxInParallel() {
+            AISolver worker = worker(direction, -1);
+            BitBoard theBoard = worker.scratchBoards[depth];
+
+            if (depth == 0 || theBoard.isGameTerminated() || 1.0 < probabilityThreshold) {
+                return worker.expectimax(depth, 1.0, Player.COMPUTER);
+            }
+
+            long hash = 0;
+            if (transpositionTable != null) {
+                hash = worker.tableHash(theBoard, Player.COMPUTER, Symmetry.canonicalOf(packedBoard));
+                long entry = transpositionTable.probe(hash);
+                worker.counters.tableProbes++;
+
+                if (entry != 0 && TranspositionTable.depthOf(entry) >= depth) {
+                    worker.counters.tableHits++;
+                    return (double) Float.intBitsToFloat(TranspositionTable.scoreOf(entry));
+                }
+            }
+
+            int emptyCells = BitBoard.countEmptyCells(packedBoard);
+            double cellProbability = 1.0 / emptyCells;
+            List<ChanceTask> cellTasks = new ArrayList<>(emptyCells);
+
+            for (int cellId = 0; cellId < BitBoard.BOARD_SIZE * BitBoard.BOARD_SIZE; cellId++) {
+                if (((packedBoard >>> (4 * cellId)) & 0xF) == 0) {
+                    cellTasks.add(new ChanceTask(worker(direction, cellId), packedBoard, score, cellId, depth - 1, cellProbability));
+                }
+            }
+
+            invokeAll(cellTasks);
+
+            double sum = 0;
+            boolean cellAborted = false;
+            for (ChanceTask task : cellTasks) {
+                sum += Board.PROBABILITY_OF_TWO * task.twoScore;
+                sum += (1 - Board.PROBABILITY_OF_TWO) * task.fourScore;
+                cellAborted |= task.worker.aborted;
+            }
+
+            double chanceScore = sum / emptyCells;
+
+            if (transpositionTable != null && !cellAborted) {
+                transpositionTable.store(hash, depth, Float.floatToRawIntBits((float) chanceScore), TranspositionTable.Bound.EXACT, null);
+            }
+
+            return chanceScore;
+        }
+    }
+
+    // Scores both spawns on one empty cell below a root move
+    private static class ChanceTask extends RecursiveAction {
+
+        // Tasks are Serializable through ForkJoinTask, they are never serialised
+        private static final long serialVersionUID = 1L;
+
+        // Solver owning the scratch boards of this cell, transient as tasks are never serialised
+        private final transient AISolver worker;
+
+        // Board before the spawn
+        private final long packedBoard;
+
+        // Score before the spawn
+        private final int score;
+
+        // Cell receiving the new tile
+        private final int cellId;
+
+        // Remaining depth below the spawn
+        private final int depth;
+
+        // Chance of picking this cell
+        private final double cellProbability;
+
+        // Expectimax score after a 2 spawns
+        private double twoScore;
+
+        // Expectimax score after a 4 spawns
+        private double fourScore;
+
+        ChanceTask(AISolver worker, long packedBoard, int score, int cellId, int depth, double cellProbability) {
+            this.worker = worker;
+            this.packedBoard = packedBoard;
+            this.score = score;
+            this.cellId = cellId;
+            this.depth = depth;
+            this.cellProbability = cellProbability;
+        }
+
+        @Override
+        protected void compute() {
+            worker.ensureScratchBoards(depth);
+            BitBoard newBoard = worker.scratchBoards[depth];
+
+            int i = cellId / BitBoard.BOARD_SIZE;
+            int j = cellId % BitBoard.BOARD_SIZE;
+
+            newBoard.setState(packedBoard, score);
+            newBoard.setEmptyCell(i, j, 2);
+            twoScore = worker.expectimax(depth, cellProbability * Board.PROBABILITY_OF_TWO, Player.USER);
+
+            newBoard.setState(packedBoard, score);
+            newBoard.setEmptyCell(i, j, 4);
+            fourScore = worker.expectimax(depth, cellProbability * (1 - Board.PROBABILITY_OF_TWO), Player.USER);
+        }
+    }
+
+    /**
+     * Scores the board on scratchBoards[depth] with plain minimax
+     *
+     * @param depth
+     * @param player
+     * @return
+     */
+    private int minimax(int depth, Player player) {
+        if (visitNode()) {
+            return 0;
+        }
+
+        BitBoard theBoard = scratchBoards[depth];
         int bestScore;
 
-        if (depth == 0 || theBoard.isGameTerminated()) {
-            bestScore = heuristicScore(theBoard.getScore(), theBoard.getNumberOfEmptyCells(), calculateClusteringScore(theBoard.getBoardArray()));
+        if (theBoard.isGameTerminated()) {
+            counters.terminalLeaves++;
+            bestScore = evaluate(theBoard);
+        }
+        else if (depth == 0) {
+            counters.depthLimitedLeaves++;
+            bestScore = evaluate(theBoard);
         }
         else {
+            BitBoard newBoard = scratchBoards[depth - 1];
+
             if (player == Player.USER) {
                 bestScore = Integer.MIN_VALUE;
 
-                for (Direction direction : Direction.values()) {
-                    Board newBoard = (Board) theBoard.clone();
+                for (Direction direction : DIRECTIONS) {
+                    newBoard.copyFrom(theBoard);
 
                     int points = newBoard.move(direction);
 
-                    if (points == 0 && newBoard.isEqual(theBoard.getBoardArray(), newBoard.getBoardArray())) {
+                    if (points == 0 && newBoard.getPackedBoard() == theBoard.getPackedBoard()) {
                         continue;
                     }
 
-                    Map<String, Object> currentResult = minimax(newBoard, depth - 1, Player.COMPUTER);
-                    int currentScore = ((Number) currentResult.get("Score")).intValue();
+                    int currentScore = minimax(depth - 1, Player.COMPUTER);
                     if (currentScore > bestScore) {
                         bestScore = currentScore;
-                        bestDirection = direction;
                     }
                 }
             }
             else {
                 bestScore = Integer.MAX_VALUE;
 
-                List<Integer> moves = theBoard.getEmpyCellIDs();
-                if (moves.isEmpty()) {
+                long packedBoard = theBoard.getPackedBoard();
+                if (BitBoard.countEmptyCells(packedBoard) == 0) {
                     bestScore = 0;
                 }
-                int[] possibleValues = {2, 4};
 
-                int i, j;
-                int[][] boardArray;
-                for (Integer cellID : moves) {
-                    i = cellID / Board.BOARD_SIZE;
-                    j = cellID % Board.BOARD_SIZE;
+                for (int cellId = 0; cellId < BitBoard.BOARD_SIZE * BitBoard.BOARD_SIZE; cellId++) {
+                    if (((packedBoard >>> (4 * cellId)) & 0xF) != 0) {
+                        continue;
+                    }
 
-                    for (int value : possibleValues) {
-                        Board newBoard = (Board) theBoard.clone();
+                    int i = cellId / BitBoard.BOARD_SIZE;
+                    int j = cellId % BitBoard.BOARD_SIZE;
+
+                    for (int value : POSSIBLE_VALUES) {
+                        newBoard.copyFrom(theBoard);
                         newBoard.setEmptyCell(i, j, value);
 
-                        Map<String, Object> currentResult = minimax(newBoard, depth - 1, Player.USER);
-                        int currentScore = ((Number) currentResult.get("Score")).intValue();
+                        int currentScore = minimax(depth - 1, Player.USER);
                         if (currentScore < bestScore) {
                             bestScore = currentScore;
                         }
@@ -93,30 +1016,32 @@ public class AISolver {
             }
         }
 
-        result.put("Score", bestScore);
-        result.put("Direction", bestDirection);
-
-        return result;
+        return bestScore;
     }
 
     /**
-     * Finds the best move using the Alpha-Beta pruning algorithm
+     * Scores the board on scratchBoards[depth] with the Alpha-Beta pruning
+     * algorithm. Children are generated first, then set one at a time on
+     * scratchBoards[depth - 1], in the order given by orderChildren when move
+     * ordering is on. Inner nodes are looked up in and written to the
+     * transposition table when there is one.
      *
-     * @param theBoard
      * @param depth
      * @param alpha
      * @param beta
      * @param player
      * @return
-     * @throws CloneNotSupportedException
      */
-    private static Map<String, Object> alphabeta(Board theBoard, int depth, int alpha, int beta, Player player) throws CloneNotSupportedException {
-        Map<String, Object> result = new HashMap<>();
+    private int alphabeta(int depth, int alpha, int beta, Player player) {
+        if (visitNode()) {
+            return 0;
+        }
 
-        Direction bestDirection = null;
+        BitBoard theBoard = scratchBoards[depth];
         int bestScore;
 
         if(theBoard.isGameTerminated()) {
+            counters.terminalLeaves++;
             if(theBoard.hasWon()) {
                 bestScore=Integer.MAX_VALUE; //highest possible score
             }
@@ -125,28 +1050,62 @@ public class AISolver {
             }
         }
         else if(depth == 0) {
-            bestScore=heuristicScore(theBoard.getScore(),theBoard.getNumberOfEmptyCells(),calculateClusteringScore(theBoard.getBoardArray()));
+            counters.depthLimitedLeaves++;
+            bestScore=evaluate(theBoard);
         }
         else {
-            if(player == Player.USER) {
-                for(Direction direction : Direction.values()) {
-                    Board newBoard = (Board) theBoard.clone();
+            BitBoard newBoard = scratchBoards[depth - 1];
 
-                    int points=newBoard.move(direction);
+            long hash = 0;
+            Symmetry symmetry = Symmetry.IDENTITY;
+            Direction tableMove = null;
+            if(transpositionTable != null) {
+                symmetry = Symmetry.canonicalOf(theBoard.getPackedBoard());
+                hash = tableHash(theBoard, player, symmetry);
+                long entry = transpositionTable.probe(hash);
+                counters.tableProbes++;
 
-                    if(points==0 && newBoard.isEqual(theBoard.getBoardArray(), newBoard.getBoardArray())) {
-                        continue;
+                if(entry != 0) {
+                    tableMove = symmetry.inverse().apply(TranspositionTable.moveOf(entry));
+                }
+
+                if(entry != 0 && TranspositionTable.depthOf(entry) >= depth) {
+                    int storedScore = TranspositionTable.scoreOf(entry);
+                    TranspositionTable.Bound bound = TranspositionTable.boundOf(entry);
+
+                    if(bound == TranspositionTable.Bound.EXACT
+                            || (bound == TranspositionTable.Bound.LOWER && storedScore >= beta)
+                            || (bound == TranspositionTable.Bound.UPPER && storedScore <= alpha)) {
+                        counters.tableHits++;
+                        return storedScore;
                     }
+                }
+            }
+
+            int alphaOrig = alpha;
+            int betaOrig = beta;
+            Direction bestDirection = null;
+
+            long[] boards = childBoards[depth];
+            int[] scores = childScores[depth];
+            int[] moves = childMoves[depth];
 
-                    Map<String, Object> currentResult = alphabeta(newBoard, depth-1, alpha, beta, Player.COMPUTER);
-                    int currentScore=((Number)currentResult.get("Score")).intValue();
+            if(player == Player.USER) {
+                int children = generateMoves(theBoard, depth, tableMove);
+
+                for(int k = 0; k < children; k++) {
+                    newBoard.setState(boards[k], scores[k]);
+
+                    int currentScore=alphabeta(depth-1, alpha, beta, Player.COMPUTER);
 
                     if(currentScore>alpha) { //maximize score
                         alpha=currentScore;
-                        bestDirection=direction;
+                        bestDirection=DIRECTIONS[moves[k]];
                     }
 
                     if(beta<=alpha) {
+                        counters.betaCutoffs++;
+                        recordCutoff(playerKillers, directionHistory, depth, moves[k]);
                         break; //beta cutoff
                     }
                 }
@@ -154,104 +1113,403 @@ public class AISolver {
                 bestScore = alpha;
             }
             else {
-                List<Integer> moves = theBoard.getEmpyCellIDs();
-                int[] possibleValues = {2, 4};
-
-                int i,j;
-                abloop: for(Integer cellId : moves) {
-                    i = cellId/Board.BOARD_SIZE;
-                    j = cellId%Board.BOARD_SIZE;
+                int children = generateSpawns(theBoard, depth);
 
-                    for(int value : possibleValues) {
-                        Board newBoard = (Board) theBoard.clone();
-                        newBoard.setEmptyCell(i, j, value);
+                for(int k = 0; k < children; k++) {
+                    newBoard.setState(boards[k], scores[k]);
 
-                        Map<String, Object> currentResult = alphabeta(newBoard, depth-1, alpha, beta, Player.USER);
-                        int currentScore=((Number)currentResult.get("Score")).intValue();
-                        if(currentScore<beta) { //minimize best score
-                            beta=currentScore;
-                        }
+                    int currentScore=alphabeta(depth-1, alpha, beta, Player.USER);
+                    if(currentScore<beta) { //minimize best score
+                        beta=currentScore;
+                    }
 
-                        if(beta<=alpha) {
-                            break abloop; //alpha cutoff
-                        }
+                    if(beta<=alpha) {
+                        counters.alphaCutoffs++;
+                        recordCutoff(spawnKillers, spawnHistory, depth, moves[k]);
+                        break; //alpha cutoff
                     }
                 }
 
                 bestScore = beta;
 
-                if(moves.isEmpty()) {
+                if(children == 0) {
                     bestScore=0;
                 }
             }
+
+            if(transpositionTable != null && !aborted) {
+                TranspositionTable.Bound bound;
+                if(bestScore <= alphaOrig) {
+                    bound = TranspositionTable.Bound.UPPER;
+                }
+                else if(bestScore >= betaOrig) {
+                    bound = TranspositionTable.Bound.LOWER;
+                }
+                else {
+                    bound = TranspositionTable.Bound.EXACT;
+                }
+
+                transpositionTable.store(hash, depth, bestScore, bound, symmetry.apply(bestDirection));
+            }
+        }
+
+        return bestScore;
+    }
+
+    /**
+     * Generates the moves of the player node on scratchBoards[depth] into
+     * the child arrays of that depth, skipping moves that change nothing.
+     * With move ordering, the transposition table move comes first, then the
+     * killer, then the rest by the static score of the resulting board, with
+     * the history table breaking ties.
+     *
+     * @param theBoard
+     * @param depth
+     * @param tableMove best move stored for this position, may be null
+     * @return number of children
+     */
+    private int generateMoves(BitBoard theBoard, int depth, Direction tableMove) {
+        BitBoard newBoard = scratchBoards[depth - 1];
+        int children = 0;
+
+        for (Direction direction : DIRECTIONS) {
+            newBoard.copyFrom(theBoard);
+
+            int points = newBoard.move(direction);
+
+            if (points == 0 && newBoard.getPackedBoard() == theBoard.getPackedBoard()) {
+                continue;
+            }
+
+            childBoards[depth][children] = newBoard.getPackedBoard();
+            childScores[depth][children] = newBoard.getScore();
+            childMoves[depth][children] = direction.ordinal();
+
+            if (moveOrdering) {
+                int tier = (direction == tableMove) ? 2 : (direction.ordinal() == playerKillers[depth]) ? 1 : 0;
+                long staticScore = (depth > 1) ? staticScore(newBoard.getPackedBoard(), newBoard.getScore()) : 0;
+                childKeys[depth][children] = orderingKey(tier, staticScore, directionHistory[direction.ordinal()]);
+            }
+
+            children++;
+        }
+
+        if (moveOrdering) {
+            orderChildren(depth, children);
+        }
+
+        return children;
+    }
+
+    /**
+     * Generates the spawns of the chance node on scratchBoards[depth] into
+     * the child arrays of that depth, in row-major order with 2 before 4.
+     * With move ordering, the killer comes first, then the rest from the
+     * lowest static score, since the computer minimises, with the history
+     * table breaking ties.
+     *
+     * @param theBoard
+     * @param depth
+     * @return number of children
+     */
+    private int generateSpawns(BitBoard theBoard, int depth) {
+        long packedBoard = theBoard.getPackedBoard();
+        int score = theBoard.getScore();
+        int children = 0;
+
+        for (int cellId = 0; cellId < BitBoard.BOARD_SIZE * BitBoard.BOARD_SIZE; cellId++) {
+            if (((packedBoard >>> (4 * cellId)) & 0xF) != 0) {
+                continue;
+            }
+
+            for (int rank = 1; rank <= POSSIBLE_VALUES.length; rank++) {
+                int move = 2 * cellId + rank - 1;
+                long childBoard = packedBoard | (long) rank << (4 * cellId);
+
+                childBoards[depth][children] = childBoard;
+                childScores[depth][children] = score;
+                childMoves[depth][children] = move;
+
+                if (moveOrdering) {
+                    int tier = (move == spawnKillers[depth]) ? 1 : 0;
+                    long staticScore = (depth > 2) ? ORDERING_SCORE_LIMIT - staticScore(childBoard, score) : 0;
+                    childKeys[depth][children] = orderingKey(tier, staticScore, spawnHistory[move]);
+                }
+
+                children++;
+            }
+        }
+
+        if (moveOrdering) {
+            orderChildren(depth, children);
         }
 
-        result.put("Score", bestScore);
-        result.put("Direction", bestDirection);
+        return children;
+    }
+
+    /**
+     * Scores a child for ordering. Player nodes at depth 1 have leaf
+     * children that get evaluated anyway, and chance nodes below depth 3
+     * have up to 32 children each, more than the cutoffs save, so those are
+     * ordered by the killer and history tables alone.
+     */
+    private long staticScore(long packedBoard, int score) {
+        return Math.max(0, Math.min(evaluator.evaluate(packedBoard, score), ORDERING_SCORE_LIMIT));
+    }
 
-        return result;
+    /**
+     * Packs an ordering key: tier first, then static score, then history
+     */
+    private static long orderingKey(int tier, long staticScore, int history) {
+        return (long) tier << 56 | staticScore << 16 | Math.min(history, 0xFFFF);
     }
 
     /**
-     * Estimates a heuristic score by taking into account the real score,
-     * number of empty cells and clustering score of the board
+     * Sorts the children of a depth by descending key. Insertion sort is
+     * stable and fast on at most 32 entries, equal keys keep generation order.
      *
-     * @param actualScore
-     * @param numberOfEmptyCells
-     * @param clusteringScore
-     * @return
+     * @param depth
+     * @param children
+     */
+    private void orderChildren(int depth, int children) {
+        long[] keys = childKeys[depth];
+        long[] boards = childBoards[depth];
+        int[] scores = childScores[depth];
+        int[] moves = childMoves[depth];
+
+        for (int k = 1; k < children; k++) {
+            long key = keys[k];
+            long board = boards[k];
+            int score = scores[k];
+            int move = moves[k];
+
+            int m = k - 1;
+            while (m >= 0 && keys[m] < key) {
+                keys[m + 1] = keys[m];
+                boards[m + 1] = boards[m];
+                scores[m + 1] = scores[m];
+                moves[m + 1] = moves[m];
+                m--;
+            }
+
+            keys[m + 1] = key;
+            boards[m + 1] = board;
+            scores[m + 1] = score;
+            moves[m + 1] = move;
+        }
+    }
+
+    /**
+     * Remembers the move that caused a cutoff as the killer of its depth
+     * and credits it in the history table
+     */
+    private static void recordCutoff(int[] killers, int[] history, int depth, int move) {
+        killers[depth] = move;
+        history[move] += depth * depth;
+    }
+
+    /**
+     * Forgets the killers and halves the history, so the tables follow the
+     * game instead of its opening
      */
-    private static int heuristicScore(int actualScore, int numberOfEmptyCells, int clusteringScore) {
-        int score = (int) (actualScore + Math.log(actualScore) * numberOfEmptyCells - clusteringScore);
-        return Math.max(score, Math.min(actualScore, 1));
+    private void ageOrderingTables() {
+        Arrays.fill(playerKillers, -1);
+        Arrays.fill(spawnKillers, -1);
+
+        for (int k = 0; k < directionHistory.length; k++) {
+            directionHistory[k] >>= 1;
+        }
+        for (int k = 0; k < spawnHistory.length; k++) {
+            spawnHistory[k] >>= 1;
+        }
     }
 
     /**
-     * Calculates a heuristic variance-like score that measures how
-     * clustered the board is
+     * Scores the board on scratchBoards[depth] with expectimax. Chance nodes
+     * average over the empty cells, weighting a 2 with PROBABILITY_OF_TWO and
+     * a 4 with the rest, and are cut off once the probability of reaching
+     * them drops below the threshold. Scores go through the transposition
+     * table as float bits.
      *
-     * @param boardArray
+     * @param depth
+     * @param probability chance of reaching this node from the root
+     * @param player
      * @return
      */
-    private static int calculateClusteringScore(int[][] boardArray) {
-        int clusteringScore = 0;
+    private double expectimax(int depth, double probability, Player player) {
+        if (visitNode()) {
+            return 0;
+        }
+
+        BitBoard theBoard = scratchBoards[depth];
+
+        if (theBoard.isGameTerminated()) {
+            counters.terminalLeaves++;
+            return theBoard.hasWon() ? Integer.MAX_VALUE : Math.min(theBoard.getScore(), 1);
+        }
+        if (depth == 0) {
+            counters.depthLimitedLeaves++;
+            return evaluate(theBoard);
+        }
+        if (probability < probabilityThreshold) {
+            counters.probabilityCutoffs++;
+            return evaluate(theBoard);
+        }
+
+        long hash = 0;
+        Symmetry symmetry = Symmetry.IDENTITY;
+        if (transpositionTable != null) {
+            symmetry = Symmetry.canonicalOf(theBoard.getPackedBoard());
+            hash = tableHash(theBoard, player, symmetry);
+            long entry = transpositionTable.probe(hash);
+            counters.tableProbes++;
+
+            if (entry != 0 && TranspositionTable.depthOf(entry) >= depth) {
+                counters.tableHits++;
+                return Float.intBitsToFloat(TranspositionTable.scoreOf(entry));
+            }
+        }
+
+        BitBoard newBoard = scratchBoards[depth - 1];
+        Direction bestDirection = null;
+        double bestScore;
 
-        int[] neighbours = {-1, 0, 1};
+        if (player == Player.USER) {
+            bestScore = Double.NEGATIVE_INFINITY;
 
-        for (int i = 0; i < boardArray.length; i++) {
-            for (int j = 0; j < boardArray.length; j++) {
-                if (boardArray[i][j] == 0) {
+            for (Direction direction : DIRECTIONS) {
+                newBoard.copyFrom(theBoard);
+
+                int points = newBoard.move(direction);
+
+                if (points == 0 && newBoard.getPackedBoard() == theBoard.getPackedBoard()) {
                     continue;
                 }
 
-                int numOfNeighbours = 0;
-                int sum = 0;
-                for (int k : neighbours) {
-                    int x = i + k;
-                    if (x < 0 || x >= boardArray.length) {
-                        continue;
-                    }
+                double currentScore = expectimax(depth - 1, probability, Player.COMPUTER);
+                if (currentScore > bestScore) {
+                    bestScore = currentScore;
+                    bestDirection = direction;
+                }
+            }
 
-                    for (int l : neighbours) {
-                        int y = j + l;
-                        if (y < 0 || y >= boardArray.length) {
-                            continue;
-                        }
+            if (bestDirection == null) {
+                bestScore = evaluate(theBoard);
+            }
+        }
+        else {
+            long packedBoard = theBoard.getPackedBoard();
+            int emptyCells = BitBoard.countEmptyCells(packedBoard);
+            double cellProbability = probability / emptyCells;
+            double sum = 0;
 
-                        if (boardArray[x][y] > 0) {
-                            numOfNeighbours++;
-                            sum += Math.abs(boardArray[i][j] - boardArray[x][y]);
-                        }
-                    }
+            for (int cellId = 0; cellId < BitBoard.BOARD_SIZE * BitBoard.BOARD_SIZE; cellId++) {
+                if (((packedBoard >>> (4 * cellId)) & 0xF) != 0) {
+                    continue;
                 }
 
-                clusteringScore += sum / numOfNeighbours;
+                int i = cellId / BitBoard.BOARD_SIZE;
+                int j = cellId % BitBoard.BOARD_SIZE;
+
+                newBoard.copyFrom(theBoard);
+                newBoard.setEmptyCell(i, j, 2);
+                sum += Board.PROBABILITY_OF_TWO * expectimax(depth - 1, cellProbability * Board.PROBABILITY_OF_TWO, Player.USER);
+
+                newBoard.copyFrom(theBoard);
+                newBoard.setEmptyCell(i, j, 4);
+                sum += (1 - Board.PROBABILITY_OF_TWO) * expectimax(depth - 1, cellProbability * (1 - Board.PROBABILITY_OF_TWO), Player.USER);
             }
+
+            bestScore = sum / emptyCells;
+        }
+
+        if (transpositionTable != null && !aborted) {
+            transpositionTable.store(hash, depth, Float.floatToRawIntBits((float) bestScore), TranspositionTable.Bound.EXACT, symmetry.apply(bestDirection));
+        }
+
+        return bestScore;
+    }
+
+    /**
+     * Counts a visited node and checks the deadline and the cancellation
+     * token every few nodes
+     *
+     * @return true when the search must stop
+     */
+    private boolean visitNode() {
+        if ((++counters.nodes & DEADLINE_CHECK_MASK) == 0
+                && ((deadlineEnabled && System.nanoTime() - deadline > 0)
+                || (cancellation != null && cancellation.isCancelled()))) {
+            aborted = true;
+        }
+
+        return aborted;
+    }
+
+    /**
+     * Scores a leaf with the evaluator, timing one call in
+     * EVALUATION_SAMPLE_INTERVAL so the clock is not read on every leaf
+     *
+     * @param theBoard
+     * @return
+     */
+    private int evaluate(BitBoard theBoard) {
+        if ((++counters.evaluations & (SearchStats.EVALUATION_SAMPLE_INTERVAL - 1)) != 0) {
+            return evaluator.evaluate(theBoard.getPackedBoard(), theBoard.getScore());
         }
 
-        return clusteringScore;
+        long startTime = System.nanoTime();
+        int score = evaluator.evaluate(theBoard.getPackedBoard(), theBoard.getScore());
+        counters.sampledEvaluationNanos += System.nanoTime() - startTime;
+
+        return score;
+    }
+
+    /**
+     * Hashes the board on a scratch board for the transposition table.
+     * Rotations and reflections of a position share one entry: the board is
+     * hashed in its canonical orientation, and moves go in and out of the
+     * table through the symmetry that produced it.
+     *
+     * @param theBoard
+     * @param player
+     * @param symmetry maps the board to its canonical form
+     * @return
+     */
+    private long tableHash(BitBoard theBoard, Player player, Symmetry symmetry) {
+        long hash = TranspositionTable.hash(symmetry.apply(theBoard.getPackedBoard()), theBoard.getScore(), player == Player.USER);
+        return (algorithm == SearchAlgorithm.EXPECTIMAX) ? hash ^ EXPECTIMAX_KEY : hash;
     }
 
+    /**
+     * Makes sure there is a scratch board for every depth up to the given one
+     *
+     * @param depth
+     */
+    private void ensureScratchBoards(int depth) {
+        if (scratchBoards.length > depth) {
+            return;
+        }
+
+        int oldLength = scratchBoards.length;
+
+        scratchBoards = Arrays.copyOf(scratchBoards, depth + 1);
+        childBoards = Arrays.copyOf(childBoards, depth + 1);
+        childScores = Arrays.copyOf(childScores, depth + 1);
+        childMoves = Arrays.copyOf(childMoves, depth + 1);
+        childKeys = Arrays.copyOf(childKeys, depth + 1);
+        playerKillers = Arrays.copyOf(playerKillers, depth + 1);
+        spawnKillers = Arrays.copyOf(spawnKillers, depth + 1);
 
+        for (int d = oldLength; d <= depth; d++) {
+            scratchBoards[d] = new BitBoard(0L, 0);
+            childBoards[d] = new long[MAX_CHILDREN];
+            childScores[d] = new int[MAX_CHILDREN];
+            childMoves[d] = new int[MAX_CHILDREN];
+            childKeys[d] = new long[MAX_CHILDREN];
+            playerKillers[d] = -1;
+            spawnKillers[d] = -1;
+        }
+    }
 
 }
@@ -0,0 +1,28 @@
+package com.kkmonlee.ai;
+
+/**
+ * Flag telling a running search to give up.
+ *
+ * A solver given a token reads it with its deadline, every 1024 nodes, so
+ * a cancelled search stops within microseconds and its results are
+ * discarded. Tokens are one-shot: once cancelled they stay cancelled.
+ */
+public class CancellationToken {
+
+    // Set once by cancel(), read by the searching thread
+    private volatile boolean cancelled = false;
+
+    /**
+     * Cancels every search using this token
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Checks whether the token was cancelled
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+}
@@ -0,0 +1,19 @@
+package com.kkmonlee.ai;
+
+/**
+ * Scores the leaves of a search.
+ *
+ * Larger is better. Implementations are shared by every worker of a
+ * solver, so evaluate() must be safe to call from several threads.
+ */
+public interface Evaluator {
+
+    /**
+     * Scores a packed board
+     *
+     * @param packedBoard
+     * @param score
+     * @return at least 1 once the score is positive
+     */
+    int evaluate(long packedBoard, int score);
+}
@@ -0,0 +1,372 @@
+package com.kkmonlee.ai;
+
+import com.kkmonlee.game.BitBoard;
+import com.kkmonlee.game.TableSnapshot;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Leaf evaluation built from per-line lookup tables.
+ *
+ * Every board term except the score is a sum over the four rows and the
+ * four columns, so it is precomputed for all 65536 possible lines and a
+ * leaf costs eight table lookups plus the score terms. Each evaluator
+ * owns its tables, built once from its weights, or copied from the default
+ * TableSnapshot when it holds tables for the same weights.
+ *
+ * Weight files are text, one "name = value" line per weight named as in
+ * WEIGHT_NAMES, with # comments; weights left out keep their default.
+ * WeightTuner writes them.
+ */
+public class HeuristicEvaluator implements Evaluator {
+
+    // Weight of the game score
+    public static final int SCORE = 0;
+
+    // Weight of log(score) times the number of empty cells
+    public static final int LOG_SCORE_EMPTY = 1;
+
+    // Weight of the monotonicity penalty, how far lines are from sorted tiles
+    public static final int MONOTONICITY = 2;
+
+    // Weight of the smoothness penalty, the exponent gaps between neighbours
+    public static final int SMOOTHNESS = 3;
+
+    // Weight of the number of empty cells
+    public static final int EMPTY = 4;
+
+    // Weight of the number of neighbouring equal tiles
+    public static final int MERGES = 5;
+
+    // Weight of the clustering penalty, the value gaps between neighbours
+    public static final int CLUSTERING = 6;
+
+    // Names of the weights, in index order
+    public static final String[] WEIGHT_NAMES = {
+            "score", "logScoreEmpty", "monotonicity", "smoothness", "empty", "merges", "clustering"
+    };
+
+    // Weights reproducing the original heuristic: score + log(score) * empty cells - clustering.
+    // The clustering term only sees row and column neighbours, 0.29 of it matches the old
+    // 3x3 neighbourhood average on self-played boards.
+    private static final double[] DEFAULT_WEIGHTS = {1.0, 1.0, 0.0, 0.0, 0.0, 0.0, -0.29};
+
+    // Evaluator with the default weights
+    public static final HeuristicEvaluator DEFAULT = new HeuristicEvaluator(DEFAULT_WEIGHTS);
+
+    // Name of the line tables in a TableSnapshot
+    private static final String TABLES_SECTION = "Heuristic.lines";
+
+    // Revision of the line terms, bumped whenever they are computed differently
+    private static final long TABLES_REVISION = 1L;
+
+    // Every this many lines, loaded tables are checked against computed ones
+    private static final int CHECK_STRIDE = 1021;
+
+    // Weights, indexed by the constants above
+    private final double[] weights;
+
+    // Weighted line terms of a row, including the empty cells
+    private final float[] rowTable = new float[65536];
+
+    // Weighted line terms of a column, the empty cells are already counted by the rows
+    private final float[] columnTable = new float[65536];
+
+    /**
+     * Constructor
+     *
+     * @param weights one weight per term, see WEIGHT_NAMES
+     */
+    public HeuristicEvaluator(double[] weights) {
+        if (weights.length != WEIGHT_NAMES.length) {
+            throw new IllegalArgumentException("Expected " + WEIGHT_NAMES.length + " weights, got " + weights.length);
+        }
+
+        this.weights = weights.clone();
+
+        if (!loadTables(TableSnapshot.getDefault())) {
+            int[] ranks = new int[BitBoard.BOARD_SIZE];
+            for (int line = 0; line < 65536; line++) {
+                unpackRanks(line, ranks);
+
+                double columnTerms = columnTerms(ranks);
+                columnTable[line] = (float) columnTerms;
+                rowTable[line] = (float) (columnTerms + this.weights[EMPTY] * emptyCells(ranks));
+            }
+        }
+    }
+
+    /**
+     * Reads a weight file
+     *
+     * @param file
+     * @return
+     * @throws IOException if the file cannot be read or names an unknown weight
+     */
+    public static HeuristicEvaluator open(Path file) throws IOException {
+        double[] weights = DEFAULT_WEIGHTS.clone();
+
+        try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+
+                int separator = line.indexOf('=');
+                int index = (separator < 0) ? -1 : Arrays.asList(WEIGHT_NAMES).indexOf(line.substring(0, separator).trim());
+                if (index < 0) {
+                    throw new IOException("Unknown weight in " + file + ": " + line);
+                }
+
+                try {
+                    weights[index] = Double.parseDouble(line.substring(separator + 1).trim());
+                }
+                catch (NumberFormatException ex) {
+                    throw new IOException("Bad weight in " + file + ": " + line, ex);
+                }
+            }
+        }
+
+        return new HeuristicEvaluator(weights);
+    }
+
+    /**
+     * Writes the weights to a file read by open()
+     *
+     * @param file
+     * @param comment first line of the file, may be null
+     * @throws IOException
+     */
+    public void write(Path file, String comment) throws IOException {
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(file, StandardCharsets.UTF_8))) {
+            if (comment != null) {
+                out.println("# " + comment);
+            }
+            for (int k = 0; k < WEIGHT_NAMES.length; k++) {
+                out.println(WEIGHT_NAMES[k] + " = " + weights[k]);
+            }
+        }
+    }
+
+    /**
+     * Gets a copy of the weights
+     */
+    public double[] getWeights() {
+        return weights.clone();
+    }
+
+    /**
+     * Adds the line tables of this evaluator to a snapshot, found again by
+     * any evaluator with the same weights
+     *
+     * @param snapshot
+     */
+    public void addTables(TableSnapshot.Builder snapshot) {
+        ByteBuffer buffer = TableSnapshot.Builder.allocate(2 * 4 * 65536);
+
+        buffer.asFloatBuffer().put(rowTable);
+        buffer.position(buffer.position() + 4 * 65536);
+        buffer.asFloatBuffer().put(columnTable);
+
+        buffer.rewind();
+        snapshot.add(TABLES_SECTION, tablesFingerprint(), buffer);
+    }
+
+    @Override
+    public int evaluate(long packedBoard, int score) {
+        float lines = rowTable[BitBoard.getRow(packedBoard, 0)]
+                + rowTable[BitBoard.getRow(packedBoard, 1)]
+                + rowTable[BitBoard.getRow(packedBoard, 2)]
+                + rowTable[BitBoard.getRow(packedBoard, 3)]
+                + columnTable[BitBoard.getColumn(packedBoard, 0)]
+                + columnTable[BitBoard.getColumn(packedBoard, 1)]
+                + columnTable[BitBoard.getColumn(packedBoard, 2)]
+                + columnTable[BitBoard.getColumn(packedBoard, 3)];
+
+        double value = weights[SCORE] * score
+                + weights[LOG_SCORE_EMPTY] * log(score) * BitBoard.countEmptyCells(packedBoard)
+                + lines;
+
+        return Math.max((int) value, Math.min(score, 1));
+    }
+
+    @Override
+    public String toString() {
+        return "HeuristicEvaluator" + Arrays.toString(weights);
+    }
+
+    /**
+     * Copies the line tables out of a snapshot, spot-checking some lines
+     * against the weights
+     *
+     * @return false if the snapshot has no tables for these weights
+     */
+    private boolean loadTables(TableSnapshot snapshot) {
+        ByteBuffer buffer = snapshot.section(TABLES_SECTION, tablesFingerprint());
+        if (buffer == null || buffer.remaining() != 2 * 4 * 65536) {
+            return false;
+        }
+
+        buffer.asFloatBuffer().get(rowTable);
+        buffer.position(buffer.position() + 4 * 65536);
+        buffer.asFloatBuffer().get(columnTable);
+
+        int[] ranks = new int[BitBoard.BOARD_SIZE];
+        for (int line = 0; line < 65536; line += CHECK_STRIDE) {
+            unpackRanks(line, ranks);
+
+            double columnTerms = columnTerms(ranks);
+            if (columnTable[line] != (float) columnTerms
+                    || rowTable[line] != (float) (columnTerms + weights[EMPTY] * emptyCells(ranks))) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Identifies the line tables of these weights in a snapshot
+     */
+    private long tablesFingerprint() {
+        long fingerprint = TABLES_REVISION;
+
+        for (double weight : weights) {
+            fingerprint = fingerprint * 0x9E3779B97F4A7C15L + Double.doubleToLongBits(weight);
+        }
+
+        return fingerprint;
+    }
+
+    /**
+     * Weighted terms of a line that count for rows and columns alike
+     */
+    private double columnTerms(int[] ranks) {
+        return weights[MONOTONICITY] * monotonicity(ranks)
+                + weights[SMOOTHNESS] * smoothness(ranks)
+                + weights[MERGES] * merges(ranks)
+                + weights[CLUSTERING] * clustering(ranks);
+    }
+
+    /**
+     * Splits a 16 bit line into its four exponents
+     */
+    private static void unpackRanks(int line, int[] ranks) {
+        for (int k = 0; k < ranks.length; k++) {
+            ranks[k] = (line >>> (4 * k)) & 0xF;
+        }
+    }
+
+    /**
+     * Natural logarithm from the position of the highest bit, with the
+     * mantissa interpolated linearly, 0 for non-positive values
+     */
+    private static double log(int value) {
+        if (value <= 0) {
+            return 0;
+        }
+
+        int exponent = 31 - Integer.numberOfLeadingZeros(value);
+        double mantissa = (double) value / (1 << exponent) - 1;
+
+        return (exponent + mantissa) * 0.6931471805599453;
+    }
+
+    /**
+     * Penalty for tiles that do not keep growing or shrinking along the line,
+     * on the fourth power of the exponents
+     */
+    private static double monotonicity(int[] ranks) {
+        double increasing = 0;
+        double decreasing = 0;
+
+        for (int k = 1; k < ranks.length; k++) {
+            double previous = Math.pow(ranks[k - 1], 4);
+            double current = Math.pow(ranks[k], 4);
+
+            if (previous > current) {
+                decreasing += previous - current;
+            }
+            else {
+                increasing += current - previous;
+            }
+        }
+
+        return -Math.min(increasing, decreasing);
+    }
+
+    /**
+     * Penalty for exponent gaps between neighbouring tiles
+     */
+    private static double smoothness(int[] ranks) {
+        double penalty = 0;
+
+        for (int k = 1; k < ranks.length; k++) {
+            if (ranks[k - 1] != 0 && ranks[k] != 0) {
+                penalty -= Math.abs(ranks[k - 1] - ranks[k]);
+            }
+        }
+
+        return penalty;
+    }
+
+    /**
+     * Number of equal tiles next to each other once empty cells are skipped
+     */
+    private static int merges(int[] ranks) {
+        int merges = 0;
+        int previous = 0;
+
+        for (int rank : ranks) {
+            if (rank == 0) {
+                continue;
+            }
+            if (rank == previous) {
+                merges++;
+            }
+            previous = rank;
+        }
+
+        return merges;
+    }
+
+    /**
+     * Value gaps between neighbouring tiles, counted once from each side
+     * like the original per-cell clustering score
+     */
+    private static double clustering(int[] ranks) {
+        double sum = 0;
+
+        for (int k = 1; k < ranks.length; k++) {
+            if (ranks[k - 1] != 0 && ranks[k] != 0) {
+                sum += 2 * Math.abs((1 << ranks[k - 1]) - (1 << ranks[k]));
+            }
+        }
+
+        return sum;
+    }
+
+    /**
+     * Number of empty cells
+     */
+    private static int emptyCells(int[] ranks) {
+        int empty = 0;
+
+        for (int rank : ranks) {
+            if (rank == 0) {
+                empty++;
+            }
+        }
+
+        return empty;
+    }
+}
@@ -0,0 +1,615 @@
+package com.kkmonlee.ai;
+
+import com.kkmonlee.dataobj.ActionStatus;
+import com.kkmonlee.dataobj.Direction;
+import com.kkmonlee.game.BitBoard;
+import com.kkmonlee.game.Board;
+import com.kkmonlee.game.SplitMixRandom;
+import com.kkmonlee.game.WideBitBoard;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Pure Monte Carlo engine: plays every legal move followed by many playouts
+ * to the end of the game and picks the move with the best mean final score.
+ *
+ * It needs no heuristic, so it gets stronger with more playouts, that is
+ * with more cores or more time. Playouts are split over a pool of workers,
+ * each with its own boards and random generator split from the solver's.
+ * With a playout count rather than a time budget, the chosen move only
+ * depends on the seed and the parallelism.
+ *
+ * The counters of a call count playouts as evaluations and playout moves as
+ * nodes.
+ *
+ * Since it needs no heuristic either, it is also the engine for boards
+ * other than 4x4, played out on WideBitBoard.
+ */
+public class MonteCarloSolver {
+
+    // How playouts choose their moves
+    public enum PlayoutPolicy {
+        // A random move among the ones that change the board
+        RANDOM,
+
+        // The move gaining the most points, then leaving the most empty cells, ties broken at random
+        GREEDY
+    }
+
+    // Playouts per legal move used when none are given
+    public static final int DEFAULT_PLAYOUTS = 200;
+
+    // Moves by ordinal, tried at the root and drawn in playouts
+    private static final Direction[] DIRECTIONS = Direction.values();
+
+    // Bitmask of the four directions
+    private static final int ALL_DIRECTIONS = (1 << DIRECTIONS.length) - 1;
+
+    // Source of the workers' seeds
+    private final SplitMixRandom seedGenerator;
+
+    // How playouts choose their moves
+    private PlayoutPolicy policy = PlayoutPolicy.RANDOM;
+
+    // Pool running the workers, null when playing out on the calling thread
+    private ForkJoinPool pool = null;
+
+    // Playout state of each thread
+    private Worker[] workers = {new Worker()};
+
+    // Counters of the running call
+    private final SearchStats counters = new SearchStats();
+
+    // Receives the counters of every call, null when not collected
+    private SolverMetrics metrics = null;
+
+    // Stops the playouts when cancelled, null when the search cannot be cancelled
+    private CancellationToken cancellation = null;
+
+    // Mean final score of the move returned by the last call
+    private double lastScore;
+
+    /**
+     * Constructor
+     *
+     * Creates a solver with a unique seed, playing out on the calling thread
+     */
+    public MonteCarloSolver() {
+        this(SplitMixRandom.newSeed());
+    }
+
+    /**
+     * Constructor
+     *
+     * @param seed seed of the playouts
+     */
+    public MonteCarloSolver(long seed) {
+        seedGenerator = new SplitMixRandom(seed);
+    }
+
+    /**
+     * Gets how playouts choose their moves
+     */
+    public PlayoutPolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Sets how playouts choose their moves
+     *
+     * @param policy
+     */
+    public void setPolicy(PlayoutPolicy policy) {
+        this.policy = policy;
+    }
+
+    /**
+     * Gets the number of threads playing out, 1 when sequential
+     */
+    public int getParallelism() {
+        return workers.length;
+    }
+
+    /**
+     * Sets the number of threads playing out. 1 plays out on the calling
+     * thread.
+     *
+     * @param parallelism
+     */
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be positive: " + parallelism);
+        }
+
+        if (pool != null) {
+            pool.shutdown();
+        }
+        pool = (parallelism == 1) ? null : new ForkJoinPool(parallelism);
+
+        workers = new Worker[parallelism];
+        for (int w = 0; w < parallelism; w++) {
+            workers[w] = new Worker();
+        }
+    }
+
+    /**
+     * Gets the metrics every call is recorded into, null when not collected
+     */
+    public SolverMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Sets the metrics every call is recorded into
+     *
+     * @param metrics may be null
+     */
+    public void setMetrics(SolverMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Gets the token that stops the playouts, null if none is set
+     */
+    public CancellationToken getCancellation() {
+        return cancellation;
+    }
+
+    /**
+     * Sets the token that stops the playouts. A cancelled call returns the
+     * best move of the playouts finished so far, or the first legal move if
+     * none finished.
+     *
+     * @param cancellation may be null
+     */
+    public void setCancellation(CancellationToken cancellation) {
+        this.cancellation = cancellation;
+    }
+
+    /**
+     * Gets the mean final score of the move returned by the last call
+     */
+    public double getLastScore() {
+        return lastScore;
+    }
+
+    /**
+     * Gets the counters of the last call
+     */
+    public SearchStats getLastSearchStats() {
+        return new SearchStats(counters);
+    }
+
+    /**
+     * Finds the next best move, on a BitBoard for a 4x4 board and on a
+     * WideBitBoard otherwise
+     *
+     * @param theBoard
+     * @param playouts playouts per legal move
+     * @return
+     */
+    public Direction getBestMove(Board theBoard, int playouts) {
+        if (theBoard.getSize() == BitBoard.BOARD_SIZE) {
+            return getBestMove(new BitBoard(theBoard), playouts);
+        }
+
+        return getBestMove(new WideBitBoard(theBoard), playouts);
+    }
+
+    /**
+     * Finds the next best move with a fixed number of playouts per legal
+     * move
+     *
+     * @param theBoard
+     * @param playouts playouts per legal move
+     * @return the best direction, or null if no move changes the board
+     */
+    public Direction getBestMove(BitBoard theBoard, int playouts) {
+        if (playouts < 1) {
+            throw new IllegalArgumentException("Playouts must be positive: " + playouts);
+        }
+
+        return search(theBoard.getPackedBoard(), theBoard.getScore(), null, playouts, 0).getDirection();
+    }
+
+    /**
+     * Finds the next best move on a board of any size with a fixed number of
+     * playouts per legal move
+     *
+     * @param theBoard
+     * @param playouts playouts per legal move
+     * @return the best direction, or null if no move changes the board
+     */
+    public Direction getBestMove(WideBitBoard theBoard, int playouts) {
+        if (playouts < 1) {
+            throw new IllegalArgumentException("Playouts must be positive: " + playouts);
+        }
+
+        return search(0L, theBoard.getScore(), theBoard, playouts, 0).getDirection();
+    }
+
+    /**
+     * Finds the next best move
+     *
+     * @param theBoard
+     * @param budget
+     * @return
+     */
+    public SearchResult getBestMove(Board theBoard, Duration budget) {
+        if (theBoard.getSize() == BitBoard.BOARD_SIZE) {
+            return getBestMove(new BitBoard(theBoard), budget);
+        }
+
+        return getBestMove(new WideBitBoard(theBoard), budget);
+    }
+
+    /**
+     * Finds the next best move by playing out until the budget runs out.
+     * Every legal move gets at least one playout per worker, unless the
+     * call is cancelled.
+     *
+     * @param theBoard
+     * @param budget
+     * @return
+     */
+    public SearchResult getBestMove(BitBoard theBoard, Duration budget) {
+        return search(theBoard.getPackedBoard(), theBoard.getScore(), null, Integer.MAX_VALUE, Math.max(budget.toNanos(), 1));
+    }
+
+    /**
+     * Finds the next best move on a board of any size by playing out until
+     * the budget runs out
+     *
+     * @param theBoard
+     * @param budget
+     * @return
+     */
+    public SearchResult getBestMove(WideBitBoard theBoard, Duration budget) {
+        return search(0L, theBoard.getScore(), theBoard, Integer.MAX_VALUE, Math.max(budget.toNanos(), 1));
+    }
+
+    /**
+     * Plays out every legal move and picks the best mean
+     *
+     * @param packedBoard root of a 4x4 search
+     * @param score
+     * @param wideRoot root of a search on another size, null for a 4x4 search
+     * @param playouts playouts per legal move
+     * @param budgetNanos time allowed to the call, 0 for no deadline
+     * @return
+     */
+    private SearchResult search(long packedBoard, int score, WideBitBoard wideRoot, int playouts, long budgetNanos) {
+        long startTime = System.nanoTime();
+        long deadline = startTime + budgetNanos;
+        counters.reset();
+
+        Direction[] legalMoves = (wideRoot == null) ? legalMoves(packedBoard) : legalMoves(wideRoot);
+        Direction best = null;
+        lastScore = 0;
+
+        if (legalMoves.length > 0) {
+            for (Worker worker : workers) {
+                worker.prepare(wideRoot);
+                worker.start(seedGenerator.nextLong());
+            }
+
+            if (pool == null) {
+                workers[0].playOut(packedBoard, score, wideRoot, legalMoves, 0, 1, playouts, budgetNanos > 0, deadline);
+            }
+            else {
+                List<ForkJoinTask<?>> tasks = new ArrayList<>(workers.length);
+                for (int w = 0; w < workers.length; w++) {
+                    Worker worker = workers[w];
+                    int first = w;
+                    tasks.add(pool.submit(() -> worker.playOut(packedBoard, score, wideRoot, legalMoves, first,
+                            workers.length, playouts, budgetNanos > 0, deadline)));
+                }
+                for (ForkJoinTask<?> task : tasks) {
+                    task.join();
+                }
+            }
+
+            double bestMean = Double.NEGATIVE_INFINITY;
+            for (int m = 0; m < legalMoves.length; m++) {
+                double sum = 0;
+                long count = 0;
+                for (Worker worker : workers) {
+                    sum += worker.scoreSums[m];
+                    count += worker.playoutCounts[m];
+                }
+
+                double mean = (count == 0) ? 0 : sum / count;
+                if (count > 0 && mean > bestMean) {
+                    bestMean = mean;
+                    best = legalMoves[m];
+                }
+            }
+
+            for (Worker worker : workers) {
+                counters.nodes += worker.moves;
+                counters.evaluations += worker.playouts;
+            }
+
+            if (best == null) {
+                // Cancelled before any playout finished
+                best = legalMoves[0];
+            }
+            else {
+                lastScore = bestMean;
+            }
+        }
+
+        counters.depth = 1;
+        counters.rootEmptyCells = (wideRoot == null) ? BitBoard.countEmptyCells(packedBoard)
+                : wideRoot.getNumberOfEmptyCells();
+        counters.elapsedNanos = System.nanoTime() - startTime;
+        counters.cancelled = cancellation != null && cancellation.isCancelled();
+
+        if (metrics != null) {
+            metrics.record(counters);
+        }
+
+        return new SearchResult(best, lastScore, counters);
+    }
+
+    /**
+     * Lists the moves that change a board
+     */
+    private static Direction[] legalMoves(long packedBoard) {
+        BitBoard probe = new BitBoard(packedBoard, 0);
+        List<Direction> legalMoves = new ArrayList<>(DIRECTIONS.length);
+
+        for (Direction direction : DIRECTIONS) {
+            probe.setState(packedBoard, 0);
+            probe.move(direction);
+            if (probe.getPackedBoard() != packedBoard) {
+                legalMoves.add(direction);
+            }
+        }
+
+        return legalMoves.toArray(new Direction[0]);
+    }
+
+    /**
+     * Lists the moves that change a board of any size
+     */
+    private static Direction[] legalMoves(WideBitBoard theBoard) {
+        List<Direction> legalMoves = new ArrayList<>(DIRECTIONS.length);
+
+        for (Direction direction : DIRECTIONS) {
+            if (theBoard.canMove(direction)) {
+                legalMoves.add(direction);
+            }
+        }
+
+        return legalMoves.toArray(new Direction[0]);
+    }
+
+    /**
+     * Boards, generator and results of one thread
+     */
+    private class Worker {
+
+        // Generator of the spawned tiles and of the playout moves
+        private final SplitMixRandom random = new SplitMixRandom(0);
+
+        // Board played out
+        private final BitBoard board = new BitBoard(random);
+
+        // Board trying the moves of the greedy policy
+        private final BitBoard probe = new BitBoard(0L, 0);
+
+        // Board played out when not 4x4, null until needed
+        private WideBitBoard wideBoard = null;
+
+        // Board trying the moves of the greedy policy when not 4x4, null until needed
+        private WideBitBoard wideProbe = null;
+
+        // Sum of the final scores, per legal move
+        private final double[] scoreSums = new double[DIRECTIONS.length];
+
+        // Finished playouts, per legal move
+        private final long[] playoutCounts = new long[DIRECTIONS.length];
+
+        // Moves played by the playouts
+        private long moves;
+
+        // Finished playouts
+        private long playouts;
+
+        /**
+         * Creates the boards of a search that is not 4x4, before start()
+         * reseeds the generator
+         *
+         * @param wideRoot null for a 4x4 search
+         */
+        private void prepare(WideBitBoard wideRoot) {
+            if (wideRoot != null && (wideBoard == null || wideBoard.getSize() != wideRoot.getSize())) {
+                wideBoard = new WideBitBoard(wideRoot.getSize(), random);
+                wideProbe = new WideBitBoard(wideRoot.getSize(), random);
+            }
+        }
+
+        /**
+         * Clears the results and reseeds the generator
+         */
+        private void start(long seed) {
+            random.setSeed(seed);
+            Arrays.fill(scoreSums, 0);
+            Arrays.fill(playoutCounts, 0);
+            moves = 0;
+            playouts = 0;
+        }
+
+        /**
+         * Plays the rounds first, first + stride, ... of the call, a round
+         * being one playout of every legal move
+         */
+        private void playOut(long packedBoard, int score, WideBitBoard wideRoot, Direction[] legalMoves, int first,
+                             int stride, int rounds, boolean timed, long deadline) {
+            for (long round = first; round < rounds; round += stride) {
+                if (cancellation != null && cancellation.isCancelled()) {
+                    break;
+                }
+                // The first round always completes, so every legal move has a mean
+                if (timed && round > first && System.nanoTime() > deadline) {
+                    break;
+                }
+
+                for (int m = 0; m < legalMoves.length; m++) {
+                    scoreSums[m] += (wideRoot == null) ? playOut(packedBoard, score, legalMoves[m])
+                            : playOut(wideRoot, legalMoves[m]);
+                    playoutCounts[m]++;
+                    playouts++;
+                }
+            }
+        }
+
+        /**
+         * Plays one game to the end
+         *
+         * @return the final score
+         */
+        private int playOut(long packedBoard, int score, Direction firstMove) {
+            board.setState(packedBoard, score);
+            board.action(firstMove);
+            moves++;
+
+            while (true) {
+                int tried = 0;
+                ActionStatus result;
+
+                do {
+                    int direction = chooseMove(tried, false);
+                    tried |= 1 << direction;
+                    result = board.action(DIRECTIONS[direction]);
+                } while (result == ActionStatus.INVALID_MOVE && tried != ALL_DIRECTIONS);
+
+                // A won game goes on until no move is left
+                if (result == ActionStatus.INVALID_MOVE || result == ActionStatus.NO_MORE_MOVES) {
+                    return board.getScore();
+                }
+                moves++;
+            }
+        }
+
+        /**
+         * Plays one game on a board that is not 4x4 to the end
+         *
+         * @return the final score
+         */
+        private int playOut(WideBitBoard root, Direction firstMove) {
+            wideBoard.copyFrom(root);
+            wideBoard.action(firstMove);
+            moves++;
+
+            while (true) {
+                int tried = 0;
+                ActionStatus result;
+
+                do {
+                    int direction = chooseMove(tried, true);
+                    tried |= 1 << direction;
+                    result = wideBoard.action(DIRECTIONS[direction]);
+                } while (result == ActionStatus.INVALID_MOVE && tried != ALL_DIRECTIONS);
+
+                if (result == ActionStatus.INVALID_MOVE || result == ActionStatus.NO_MORE_MOVES) {
+                    return wideBoard.getScore();
+                }
+                moves++;
+            }
+        }
+
+        /**
+         * Chooses a move among the ones not tried yet
+         *
+         * @param tried bitmask of the directions already tried
+         * @param wide whether the playout is on wideBoard
+         * @return the ordinal of the direction
+         */
+        private int chooseMove(int tried, boolean wide) {
+            if (policy == PlayoutPolicy.GREEDY) {
+                int bestDirection = wide ? greedyWideMove(tried) : greedyMove(tried);
+
+                if (bestDirection >= 0) {
+                    return bestDirection;
+                }
+            }
+
+            int choice = random.nextInt(DIRECTIONS.length - Integer.bitCount(tried));
+            for (int direction = 0; ; direction++) {
+                if ((tried & (1 << direction)) == 0 && choice-- == 0) {
+                    return direction;
+                }
+            }
+        }
+
+        /**
+         * Finds the greedy move of the 4x4 board among the ones not tried yet
+         *
+         * @return the ordinal of the direction, -1 if none changes the board
+         */
+        private int greedyMove(int tried) {
+            long packedBoard = board.getPackedBoard();
+            int bestDirection = -1;
+            long bestValue = -1;
+
+            for (int direction = 0; direction < DIRECTIONS.length; direction++) {
+                if ((tried & (1 << direction)) != 0) {
+                    continue;
+                }
+
+                probe.setState(packedBoard, 0);
+                int points = probe.move(DIRECTIONS[direction]);
+                if (probe.getPackedBoard() == packedBoard) {
+                    continue;
+                }
+
+                // Points first, then empty cells, then a random tiebreak
+                long value = (long) points << 16 | BitBoard.countEmptyCells(probe.getPackedBoard()) << 8
+                        | random.nextInt(256);
+                if (value > bestValue) {
+                    bestValue = value;
+                    bestDirection = direction;
+                }
+            }
+
+            return bestDirection;
+        }
+
+        /**
+         * Finds the greedy move of the wide board among the ones not tried yet
+         *
+         * @return the ordinal of the direction, -1 if none changes the board
+         */
+        private int greedyWideMove(int tried) {
+            int bestDirection = -1;
+            long bestValue = -1;
+
+            for (int direction = 0; direction < DIRECTIONS.length; direction++) {
+                if ((tried & (1 << direction)) != 0) {
+                    continue;
+                }
+
+                wideProbe.copyFrom(wideBoard);
+                int points = wideProbe.move(DIRECTIONS[direction]);
+                if (wideProbe.sameCells(wideBoard)) {
+                    continue;
+                }
+
+                long value = (long) points << 16 | wideProbe.getNumberOfEmptyCells() << 8 | random.nextInt(256);
+                if (value > bestValue) {
+                    bestValue = value;
+                    bestDirection = direction;
+                }
+            }
+
+            return bestDirection;
+        }
+    }
+}
@@ -0,0 +1,327 @@
+package com.kkmonlee.ai;
+
+import com.kkmonlee.game.Symmetry;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Learned leaf evaluation: an n-tuple network over packed boards.
+ *
+ * Each tuple is a few cells, and the exponents found in them index a table
+ * of weights, 16^cells entries per tuple. A board is worth the sum of the
+ * weights its tuples select in all eight orientations of the board (see
+ * Symmetry), so the orientations share one table and a position is worth the same as
+ * its rotations and reflections. The value estimates the points still to
+ * be gained from the board, and is learned by NTupleTrainer with temporal
+ * difference learning on the boards left by moves, before the spawn.
+ * Values are expectations over the spawns, so the network belongs in an
+ * EXPECTIMAX search; alpha-beta's worst-case spawns play badly with it.
+ *
+ * The file format is a 16 byte header (magic, version, tuple count,
+ * reserved), the cells of every tuple as a length byte followed by one
+ * byte per cell, then the weights of every table as floats.
+ *
+ * Evaluation only reads the tables. Training threads update them without
+ * locking, an occasional lost update does not hurt the learning.
+ */
+public class NTupleNetwork implements Evaluator {
+
+    // "NTUP" in ASCII
+    public static final int MAGIC = 0x4E545550;
+
+    // Version of the file layout
+    public static final int VERSION = 1;
+
+    // Bytes of the header
+    public static final int HEADER_BYTES = 16;
+
+    // Largest number of cells of a tuple, 16^6 weights
+    public static final int MAX_TUPLE_CELLS = 6;
+
+    // Outer and inner rows, then squares in the corner, on the edge and in the middle
+    public static final int[][] DEFAULT_TUPLES = {
+            {0, 1, 2, 3},
+            {4, 5, 6, 7},
+            {0, 1, 4, 5},
+            {1, 2, 5, 6},
+            {5, 6, 9, 10}
+    };
+
+    // Orientations a board is scored in
+    private static final Symmetry[] SYMMETRIES = Symmetry.values();
+
+    // Cells of each tuple
+    private final int[][] tuples;
+
+    // Weights of each tuple, indexed by the exponents of its cells, first cell lowest
+    private final float[][] weights;
+
+    // Cells of each tuple as nibble shifts
+    private final int[][] tupleShifts;
+
+    /**
+     * Constructor
+     *
+     * Creates a network of the default tuples with all weights 0
+     */
+    public NTupleNetwork() {
+        this(DEFAULT_TUPLES);
+    }
+
+    /**
+     * Constructor
+     *
+     * Creates a network with all weights 0
+     *
+     * @param tuples cells of each tuple, numbered by row
+     */
+    public NTupleNetwork(int[][] tuples) {
+        this(tuples, allocate(tuples));
+    }
+
+    private NTupleNetwork(int[][] tuples, float[][] weights) {
+        this.tuples = new int[tuples.length][];
+        this.weights = weights;
+        this.tupleShifts = new int[tuples.length][];
+
+        for (int t = 0; t < tuples.length; t++) {
+            this.tuples[t] = tuples[t].clone();
+            tupleShifts[t] = new int[tuples[t].length];
+
+            for (int k = 0; k < tuples[t].length; k++) {
+                tupleShifts[t][k] = 4 * tuples[t][k];
+            }
+        }
+    }
+
+    /**
+     * Loads a network written by write()
+     *
+     * @param file
+     * @return
+     * @throws IOException if the file cannot be read or is not a network
+     */
+    public static NTupleNetwork open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_BYTES || size > Integer.MAX_VALUE) {
+                throw new IOException("Not an n-tuple network: " + file);
+            }
+
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                throw new IOException("Not an n-tuple network, or an unsupported version: " + file);
+            }
+
+            int tupleCount = buffer.getInt();
+            buffer.getInt();
+            if (tupleCount < 1 || tupleCount > buffer.remaining()) {
+                throw new IOException("Corrupt n-tuple network: " + file);
+            }
+
+            try {
+                int[][] tuples = new int[tupleCount][];
+                for (int t = 0; t < tupleCount; t++) {
+                    tuples[t] = new int[buffer.get() & 0xFF];
+                    for (int k = 0; k < tuples[t].length; k++) {
+                        tuples[t][k] = buffer.get() & 0xFF;
+                    }
+                }
+
+                float[][] weights = allocate(tuples);
+                if (buffer.remaining() != 4L * tableEntries(tuples)) {
+                    throw new IOException("Truncated n-tuple network: " + file);
+                }
+                for (float[] table : weights) {
+                    buffer.asFloatBuffer().get(table);
+                    buffer.position(buffer.position() + 4 * table.length);
+                }
+
+                return new NTupleNetwork(tuples, weights);
+            }
+            catch (IllegalArgumentException | BufferUnderflowException ex) {
+                throw new IOException("Corrupt n-tuple network: " + file, ex);
+            }
+        }
+    }
+
+    /**
+     * Writes the network, through a temporary file so that a reader never
+     * sees half a network
+     *
+     * @param file
+     * @throws IOException
+     */
+    public void write(Path file) throws IOException {
+        int cellBytes = 0;
+        for (int[] tuple : tuples) {
+            cellBytes += 1 + tuple.length;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + cellBytes + (int) (4 * tableEntries(tuples)));
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putInt(tuples.length);
+        buffer.putInt(0);
+
+        for (int[] tuple : tuples) {
+            buffer.put((byte) tuple.length);
+            for (int cell : tuple) {
+                buffer.put((byte) cell);
+            }
+        }
+        for (float[] table : weights) {
+            buffer.asFloatBuffer().put(table);
+            buffer.position(buffer.position() + 4 * table.length);
+        }
+
+        buffer.flip();
+
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Gets the cells of each tuple
+     */
+    public int[][] getTuples() {
+        int[][] copy = new int[tuples.length][];
+
+        for (int t = 0; t < tuples.length; t++) {
+            copy[t] = tuples[t].clone();
+        }
+
+        return copy;
+    }
+
+    /**
+     * Gets the number of weights a board selects, one per tuple and
+     * orientation
+     */
+    public int getFeatureCount() {
+        return tuples.length * SYMMETRIES.length;
+    }
+
+    /**
+     * Estimates the points still to be gained from a packed board
+     *
+     * @param packedBoard
+     * @return
+     */
+    public float value(long packedBoard) {
+        float value = 0;
+
+        for (Symmetry symmetry : SYMMETRIES) {
+            long image = symmetry.apply(packedBoard);
+
+            for (int t = 0; t < weights.length; t++) {
+                value += weights[t][index(image, tupleShifts[t])];
+            }
+        }
+
+        return value;
+    }
+
+    /**
+     * Moves the value of a packed board by delta, spread evenly over the
+     * weights it selects
+     *
+     * @param packedBoard
+     * @param delta
+     */
+    public void learn(long packedBoard, float delta) {
+        float step = delta / getFeatureCount();
+
+        for (Symmetry symmetry : SYMMETRIES) {
+            long image = symmetry.apply(packedBoard);
+
+            for (int t = 0; t < weights.length; t++) {
+                weights[t][index(image, tupleShifts[t])] += step;
+            }
+        }
+    }
+
+    @Override
+    public int evaluate(long packedBoard, int score) {
+        double value = score + value(packedBoard);
+
+        return Math.max((int) value, Math.min(score, 1));
+    }
+
+    @Override
+    public String toString() {
+        return "NTupleNetwork" + Arrays.deepToString(tuples);
+    }
+
+    /**
+     * Gathers the exponents of the cells of one tuple into a table index,
+     * unrolled for the usual four cells
+     */
+    private static int index(long packedBoard, int[] shifts) {
+        if (shifts.length == 4) {
+            return (int) ((packedBoard >>> shifts[0]) & 0xF)
+                    | (int) ((packedBoard >>> shifts[1]) & 0xF) << 4
+                    | (int) ((packedBoard >>> shifts[2]) & 0xF) << 8
+                    | (int) ((packedBoard >>> shifts[3]) & 0xF) << 12;
+        }
+
+        int index = 0;
+        for (int k = 0; k < shifts.length; k++) {
+            index |= (int) ((packedBoard >>> shifts[k]) & 0xF) << (4 * k);
+        }
+
+        return index;
+    }
+
+    /**
+     * Creates the zeroed tables of some tuples
+     */
+    private static float[][] allocate(int[][] tuples) {
+        float[][] weights = new float[tuples.length][];
+
+        for (int t = 0; t < tuples.length; t++) {
+            int[] tuple = tuples[t];
+            if (tuple.length < 1 || tuple.length > MAX_TUPLE_CELLS) {
+                throw new IllegalArgumentException("Tuples must have 1 to " + MAX_TUPLE_CELLS + " cells: " + Arrays.toString(tuple));
+            }
+            for (int cell : tuple) {
+                if (cell < 0 || cell >= 16) {
+                    throw new IllegalArgumentException("No such cell in tuple " + Arrays.toString(tuple) + ": " + cell);
+                }
+            }
+
+            weights[t] = new float[1 << (4 * tuple.length)];
+        }
+
+        return weights;
+    }
+
+    /**
+     * Counts the weights of some tuples
+     */
+    private static long tableEntries(int[][] tuples) {
+        long entries = 0;
+
+        for (int[] tuple : tuples) {
+            entries += 1L << (4 * tuple.length);
+        }
+
+        return entries;
+    }
+}
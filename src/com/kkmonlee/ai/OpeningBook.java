@@ -0,0 +1,260 @@
+package com.kkmonlee.ai;
+
+import com.kkmonlee.dataobj.Direction;
+import com.kkmonlee.dataobj.SearchAlgorithm;
+import com.kkmonlee.game.Symmetry;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Read-only database of precomputed best moves, memory-mapped from a file.
+ *
+ * The file is a 16 byte header (magic, version, algorithm code, entry
+ * count) followed by fixed 16 byte entries sorted by canonical board:
+ * the canonical packed board, the score as float bits, the best move in
+ * canonical orientation, the search depth and two reserved bytes. Lookups
+ * binary search the mapping in place, so opening a book reads nothing but
+ * the header and a probe touches about log2(entries) pages. Probes only
+ * use absolute reads, so one book can be shared by every thread.
+ *
+ * Probes return a packed entry in the orientation of the probed board, in
+ * the spirit of TranspositionTable.probe(), decoded with scoreOf(),
+ * depthOf() and moveOf().
+ */
+public class OpeningBook implements Closeable {
+
+    // "2048" in ASCII
+    public static final int MAGIC = 0x32303438;
+
+    // Version of the file layout
+    public static final int VERSION = 1;
+
+    // Bytes of the header
+    public static final int HEADER_BYTES = 16;
+
+    // Bytes of one entry
+    public static final int ENTRY_BYTES = 16;
+
+    // Moves by the code stored in a book entry
+    private static final Direction[] DIRECTIONS = Direction.values();
+
+    // Channel the mapping was made from
+    private final FileChannel channel;
+
+    // Mapped file
+    private final MappedByteBuffer buffer;
+
+    // Search the moves were computed with
+    private final SearchAlgorithm algorithm;
+
+    // Number of entries
+    private final int entries;
+
+    private OpeningBook(FileChannel channel, MappedByteBuffer buffer, SearchAlgorithm algorithm, int entries) {
+        this.channel = channel;
+        this.buffer = buffer;
+        this.algorithm = algorithm;
+        this.entries = entries;
+    }
+
+    /**
+     * Maps a book file
+     *
+     * @param file
+     * @return
+     * @throws IOException if the file cannot be read or is not a book
+     */
+    public static OpeningBook open(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+
+        try {
+            long size = channel.size();
+            if (size < HEADER_BYTES || size > Integer.MAX_VALUE) {
+                throw new IOException("Not an opening book: " + file);
+            }
+
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+            int magic = buffer.getInt(0);
+            int version = buffer.getInt(4);
+            int algorithmCode = buffer.getInt(8);
+            int entries = buffer.getInt(12);
+
+            if (magic != MAGIC || version != VERSION || (long) HEADER_BYTES + (long) entries * ENTRY_BYTES != size) {
+                throw new IOException("Not an opening book, or an unsupported version: " + file);
+            }
+
+            SearchAlgorithm algorithm = null;
+            for (SearchAlgorithm candidate : SearchAlgorithm.values()) {
+                if (candidate.getCode() == algorithmCode) {
+                    algorithm = candidate;
+                }
+            }
+            if (algorithm == null) {
+                throw new IOException("Unknown search algorithm " + algorithmCode + " in " + file);
+            }
+
+            return new OpeningBook(channel, buffer, algorithm, entries);
+        }
+        catch (IOException | RuntimeException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Writes a book file. The arrays are indexed alike and hold canonical
+     * boards and moves; boards must be distinct.
+     *
+     * @param file
+     * @param algorithm search the moves were computed with
+     * @param canonicalBoards
+     * @param canonicalMoves
+     * @param scores
+     * @param depths
+     * @throws IOException
+     */
+    public static void write(Path file, SearchAlgorithm algorithm, long[] canonicalBoards, Direction[] canonicalMoves,
+                             float[] scores, int[] depths) throws IOException {
+        int entries = canonicalBoards.length;
+
+        // Pairs of board and index, sorted by board
+        long[][] order = new long[entries][];
+        for (int k = 0; k < entries; k++) {
+            order[k] = new long[]{canonicalBoards[k], k};
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(a[0], b[0]));
+
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + entries * ENTRY_BYTES);
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putInt(algorithm.getCode());
+        buffer.putInt(entries);
+
+        for (int k = 0; k < entries; k++) {
+            int index = (int) order[k][1];
+
+            if (k > 0 && order[k - 1][0] == order[k][0]) {
+                throw new IllegalArgumentException("Duplicate board in opening book: " + Long.toHexString(order[k][0]));
+            }
+
+            buffer.putLong(canonicalBoards[index]);
+            buffer.putFloat(scores[index]);
+            buffer.put((byte) canonicalMoves[index].ordinal());
+            buffer.put((byte) Math.min(depths[index], 0xFF));
+            buffer.putShort((short) 0);
+        }
+
+        buffer.flip();
+
+        try (FileChannel out = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+        }
+    }
+
+    /**
+     * Looks up a position in any orientation
+     *
+     * @param packedBoard
+     * @return the packed entry with its move mapped to the given board, or
+     * 0 if the position is not in the book
+     */
+    public long probe(long packedBoard) {
+        Symmetry symmetry = Symmetry.canonicalOf(packedBoard);
+        int index = indexOf(symmetry.apply(packedBoard));
+
+        if (index < 0) {
+            return 0;
+        }
+
+        int offset = HEADER_BYTES + index * ENTRY_BYTES;
+        Direction move = symmetry.inverse().apply(DIRECTIONS[buffer.get(offset + 12)]);
+
+        return (buffer.getInt(offset + 8) & 0xFFFFFFFFL)
+                | (long) (buffer.get(offset + 13) & 0xFF) << 32
+                | (long) (move.ordinal() + 1) << 40;
+    }
+
+    /**
+     * Gets the search the moves were computed with
+     */
+    public SearchAlgorithm getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * Gets the number of positions in the book
+     */
+    public int getEntryCount() {
+        return entries;
+    }
+
+    /**
+     * Unmaps nothing, the mapping stays valid until collected, but releases
+     * the file channel
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Gets the score of a packed entry
+     */
+    public static float scoreOf(long entry) {
+        return Float.intBitsToFloat((int) entry);
+    }
+
+    /**
+     * Gets the search depth of a packed entry
+     */
+    public static int depthOf(long entry) {
+        return (int) (entry >>> 32) & 0xFF;
+    }
+
+    /**
+     * Gets the best move of a packed entry
+     */
+    public static Direction moveOf(long entry) {
+        return DIRECTIONS[(int) (entry >>> 40) - 1];
+    }
+
+    /**
+     * Binary searches the entries for a canonical board
+     *
+     * @return the entry index, or -1
+     */
+    private int indexOf(long canonicalBoard) {
+        int low = 0;
+        int high = entries - 1;
+
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            long board = buffer.getLong(HEADER_BYTES + middle * ENTRY_BYTES);
+
+            if (board < canonicalBoard) {
+                low = middle + 1;
+            }
+            else if (board > canonicalBoard) {
+                high = middle - 1;
+            }
+            else {
+                return middle;
+            }
+        }
+
+        return -1;
+    }
+}
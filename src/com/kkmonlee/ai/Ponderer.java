@@ -0,0 +1,317 @@
+package com.kkmonlee.ai;
+
+import com.kkmonlee.dataobj.Direction;
+import com.kkmonlee.game.BitBoard;
+import com.kkmonlee.game.Board;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Searches ahead while the player thinks.
+ *
+ * Once a hint is shown, start() searches the positions the next move can
+ * lead to on a background thread: every move from the current board,
+ * the hinted one first, followed by a 2 on each empty cell (nine spawns
+ * in ten are 2s). All of them are searched to depth 1, then all to depth
+ * 2, and so on, those after the hinted move a few plies ahead of the
+ * rest, and each completed search is kept in a small cache of this
+ * turn's positions. The background solver shares the transposition
+ * table of the hint solver.
+ *
+ * getBestMove() stops pondering at once. If the new position was pondered
+ * as deep as the last timed hint reached, the pondered result is returned
+ * without searching. Otherwise the hint solver searches for the usual
+ * budget, starting from the entries pondering left in the shared table.
+ *
+ * Calls are expected from one thread, the one reading the player's input.
+ * The cache is only read once the background thread has been joined.
+ */
+public class Ponderer {
+
+    // Moves tried from the pondered board
+    private static final Direction[] DIRECTIONS = Direction.values();
+
+    // Plies the positions after the hinted move are searched ahead of the others, as it is the likeliest move
+    private static final int HINT_LEAD = 2;
+
+    // Solver of the timed hints
+    private final AISolver solver;
+
+    // Solver of the background searches, sharing the hint solver's transposition table
+    private final AISolver background;
+
+    // Results of this turn's pondering, by packed board
+    private final Map<Long, Pondered> cache = new HashMap<>();
+
+    // Board being pondered, with its score
+    private long rootBoard;
+    private int rootScore;
+
+    // Stops the running pondering, null when none was started
+    private CancellationToken token = null;
+
+    // Thread pondering, null when none was started
+    private Thread thread = null;
+
+    // Depth reached by the last timed hint, pondered results at least as deep are served as they are
+    private int hintDepth = 0;
+
+    // Hints given, and those answered from the cache
+    private int hints = 0;
+    private int instantHints = 0;
+
+    /**
+     * Constructor
+     *
+     * The background solver copies the algorithm, evaluator, probability
+     * threshold, opening book and move ordering of the hint solver, as
+     * they are now
+     *
+     * @param solver solver of the timed hints
+     */
+    public Ponderer(AISolver solver) {
+        this.solver = solver;
+
+        background = new AISolver(solver.getTranspositionTable());
+        background.setAlgorithm(solver.getAlgorithm());
+        background.setEvaluator(solver.getEvaluator());
+        background.setProbabilityThreshold(solver.getProbabilityThreshold());
+        background.setOpeningBook(solver.getOpeningBook());
+        background.setMoveOrdering(solver.isMoveOrdering());
+        background.setAgingTable(false);
+    }
+
+    /**
+     * Gets the solver of the timed hints
+     */
+    public AISolver getSolver() {
+        return solver;
+    }
+
+    /**
+     * Gets the number of hints given
+     */
+    public int getHints() {
+        return hints;
+    }
+
+    /**
+     * Gets the number of hints answered from pondering without searching,
+     * not counting boards the previous hint was already given for
+     */
+    public int getInstantHints() {
+        return instantHints;
+    }
+
+    /**
+     * Stops pondering and finds the next best move
+     *
+     * @param theBoard
+     * @param budget time allowed when the position was not pondered deep enough
+     * @return
+     */
+    public SearchResult getBestMove(Board theBoard, Duration budget) {
+        return getBestMove(new BitBoard(theBoard), budget);
+    }
+
+    /**
+     * Stops pondering and finds the next best move
+     *
+     * @param theBoard
+     * @param budget time allowed when the position was not pondered deep enough
+     * @return
+     */
+    public SearchResult getBestMove(BitBoard theBoard, Duration budget) {
+        stop();
+        hints++;
+
+        Pondered pondered = cache.get(theBoard.getPackedBoard());
+        if (pondered != null && pondered.score == theBoard.getScore() && pondered.result.getDepth() >= hintDepth) {
+            if (pondered.background) {
+                instantHints++;
+            }
+            return pondered.result;
+        }
+
+        SearchResult result = solver.getBestMove(theBoard, budget);
+        hintDepth = result.getDepth();
+        cache.put(theBoard.getPackedBoard(), new Pondered(theBoard.getScore(), result, false));
+
+        return result;
+    }
+
+    /**
+     * Starts pondering the positions after the next move, unless this board
+     * is already being pondered
+     *
+     * @param theBoard
+     * @param hint move searched first, may be null
+     */
+    public void start(Board theBoard, Direction hint) {
+        start(new BitBoard(theBoard), hint);
+    }
+
+    /**
+     * Starts pondering the positions after the next move, unless this board
+     * is already being pondered. Pondering stopped on this board resumes
+     * with the results it kept.
+     *
+     * @param theBoard
+     * @param hint move searched first, may be null
+     */
+    public void start(BitBoard theBoard, Direction hint) {
+        long packedBoard = theBoard.getPackedBoard();
+        int score = theBoard.getScore();
+        boolean sameTurn = (token != null && packedBoard == rootBoard && score == rootScore);
+
+        if (sameTurn && !token.isCancelled()) {
+            return;
+        }
+
+        stop();
+
+        if (!sameTurn) {
+            // Only this turn's positions can come up, apart from the board itself
+            Pondered current = cache.get(packedBoard);
+            cache.clear();
+            if (current != null && current.score == score) {
+                cache.put(packedBoard, current);
+            }
+
+            rootBoard = packedBoard;
+            rootScore = score;
+
+            // One age for the whole turn, the background solver does not age the table per search
+            if (solver.getTranspositionTable() != null) {
+                solver.getTranspositionTable().newSearch();
+            }
+        }
+
+        CancellationToken ponderToken = new CancellationToken();
+        List<long[]> positions = positionsAfter(packedBoard, score, hint);
+
+        token = ponderToken;
+        background.setCancellation(ponderToken);
+
+        thread = new Thread(() -> ponder(positions, ponderToken), "ponderer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops pondering, returning once the background search has unwound
+     */
+    public void stop() {
+        if (thread == null) {
+            return;
+        }
+
+        token.cancel();
+
+        try {
+            thread.join();
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+
+        thread = null;
+    }
+
+    /**
+     * Searches the positions one ply deeper at a time until cancelled or
+     * every position is searched to the deepest depth, skipping the depths
+     * the cache already holds
+     *
+     * @param positions packed board, score and lead of each position, most likely first
+     * @param ponderToken
+     */
+    private void ponder(List<long[]> positions, CancellationToken ponderToken) {
+        boolean[] finished = new boolean[positions.size()];
+        BitBoard position = new BitBoard(0L, 0);
+
+        for (int depth = 1; depth <= AISolver.MAX_SEARCH_DEPTH; depth++) {
+            for (int k = 0; k < positions.size(); k++) {
+                if (finished[k]) {
+                    continue;
+                }
+
+                long[] entry = positions.get(k);
+                position.setState(entry[0], (int) entry[1]);
+
+                int searchDepth = Math.min(depth + (int) entry[2], AISolver.MAX_SEARCH_DEPTH);
+
+                Pondered pondered = cache.get(entry[0]);
+                if (pondered == null || pondered.score != (int) entry[1] || pondered.result.getDepth() < searchDepth) {
+                    Direction direction = background.getBestMove(position, searchDepth);
+                    if (ponderToken.isCancelled()) {
+                        return;
+                    }
+
+                    SearchResult result = new SearchResult(direction, background.getLastScore(), background.getLastSearchStats());
+                    pondered = new Pondered((int) entry[1], result, true);
+                    cache.put(entry[0], pondered);
+                }
+
+                // Lost positions have nothing deeper to find
+                finished[k] = (pondered.result.getDirection() == null || pondered.result.getDepth() >= AISolver.MAX_SEARCH_DEPTH);
+            }
+        }
+    }
+
+    /**
+     * Lists the positions after each move and a spawned 2, the moves in
+     * order from the hint
+     *
+     * @return packed board, score and depth lead of each position
+     */
+    private static List<long[]> positionsAfter(long packedBoard, int score, Direction hint) {
+        List<long[]> positions = new ArrayList<>();
+        BitBoard probe = new BitBoard(0L, 0);
+        int first = (hint == null) ? 0 : hint.ordinal();
+
+        for (int d = 0; d < DIRECTIONS.length; d++) {
+            int lead = (hint != null && d == 0) ? HINT_LEAD : 0;
+            probe.setState(packedBoard, score);
+            probe.move(DIRECTIONS[(first + d) % DIRECTIONS.length]);
+
+            long afterstate = probe.getPackedBoard();
+            if (afterstate == packedBoard) {
+                continue;
+            }
+
+            for (int cellId = 0; cellId < BitBoard.BOARD_SIZE * BitBoard.BOARD_SIZE; cellId++) {
+                if (((afterstate >>> (4 * cellId)) & 0xF) == 0) {
+                    positions.add(new long[] {afterstate | 1L << (4 * cellId), probe.getScore(), lead});
+                }
+            }
+        }
+
+        return positions;
+    }
+
+    /**
+     * Search result of a position with its score
+     */
+    private static class Pondered {
+
+        // Score of the position searched
+        private final int score;
+
+        // Result of the deepest search completed
+        private final SearchResult result;
+
+        // Whether the background searched it, rather than a timed hint
+        private final boolean background;
+
+        private Pondered(int score, SearchResult result, boolean background) {
+            this.score = score;
+            this.result = result;
+            this.background = background;
+        }
+    }
+}
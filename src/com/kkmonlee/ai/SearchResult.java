@@ -0,0 +1,112 @@
+package com.kkmonlee.ai;
+
+import com.kkmonlee.dataobj.Direction;
+
+/**
+ * Outcome of a time-budgeted search
+ */
+public class SearchResult {
+
+    // Best move of the deepest completed iteration, null if no move changes the board
+    private final Direction direction;
+
+    // Score of that move
+    private final double score;
+
+    // Depth of the deepest completed iteration
+    private final int depth;
+
+    // Nodes visited by all iterations, including the abandoned one
+    private final long nodes;
+
+    // Wall time spent, in nanoseconds
+    private final long elapsedNanos;
+
+    // Counters of the whole call
+    private final SearchStats stats;
+
+    /**
+     * Constructor
+     *
+     * @param direction
+     * @param score
+     * @param depth
+     * @param nodes
+     * @param elapsedNanos
+     */
+    public SearchResult(Direction direction, double score, int depth, long nodes, long elapsedNanos) {
+        this.direction = direction;
+        this.score = score;
+        this.depth = depth;
+        this.nodes = nodes;
+        this.elapsedNanos = elapsedNanos;
+
+        this.stats = new SearchStats();
+        this.stats.depth = depth;
+        this.stats.nodes = nodes;
+        this.stats.elapsedNanos = elapsedNanos;
+    }
+
+    /**
+     * Constructor
+     *
+     * @param direction
+     * @param score
+     * @param stats counters of the call, copied
+     */
+    public SearchResult(Direction direction, double score, SearchStats stats) {
+        this.direction = direction;
+        this.score = score;
+        this.depth = stats.depth;
+        this.nodes = stats.nodes;
+        this.elapsedNanos = stats.elapsedNanos;
+        this.stats = new SearchStats(stats);
+    }
+
+    /**
+     * Gets the best move
+     */
+    public Direction getDirection() {
+        return direction;
+    }
+
+    /**
+     * Gets the score of the best move
+     */
+    public double getScore() {
+        return score;
+    }
+
+    /**
+     * Gets the depth reached
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * Gets the number of nodes searched
+     */
+    public long getNodes() {
+        return nodes;
+    }
+
+    /**
+     * Gets the time spent, in nanoseconds
+     */
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /**
+     * Gets the detailed counters of the call
+     */
+    public SearchStats getStats() {
+        return new SearchStats(stats);
+    }
+
+    @Override
+    public String toString() {
+        return direction + " (depth " + depth + ", " + nodes + " nodes, " + (elapsedNanos / 1000000) + " ms)";
+    }
+}
@@ -0,0 +1,263 @@
+package com.kkmonlee.ai;
+
+/**
+ * Counters of one search call.
+ *
+ * The solver increments the fields directly while it searches; callers get
+ * a copy through AISolver.getLastSearchStats() or SearchResult.getStats().
+ * Every visited node copies its parent's board once, so board copies equal
+ * the node count minus one.
+ */
+public class SearchStats {
+
+    // Evaluations between two timed ones, a power of two
+    static final int EVALUATION_SAMPLE_INTERVAL = 256;
+
+    // Nodes visited, leaves included
+    long nodes;
+
+    // Player nodes cut off because a move reached beta
+    long betaCutoffs;
+
+    // Chance nodes cut off because a spawn fell to alpha
+    long alphaCutoffs;
+
+    // Leaves where the game was over
+    long terminalLeaves;
+
+    // Leaves where the depth ran out
+    long depthLimitedLeaves;
+
+    // Expectimax chance paths scored early because they were too unlikely
+    long probabilityCutoffs;
+
+    // Transposition table lookups
+    long tableProbes;
+
+    // Transposition table lookups that ended the node
+    long tableHits;
+
+    // Heuristic evaluations
+    long evaluations;
+
+    // Calls answered by the opening book
+    long bookHits;
+
+    // Time spent in the sampled heuristic evaluations, in nanoseconds
+    long sampledEvaluationNanos;
+
+    // Depth of the deepest completed search
+    int depth;
+
+    // Empty cells of the root board
+    int rootEmptyCells;
+
+    // Wall time of the call, in nanoseconds
+    long elapsedNanos;
+
+    // Whether the call was cancelled through its CancellationToken
+    boolean cancelled;
+
+    /**
+     * Constructor
+     *
+     * Creates zeroed counters
+     */
+    public SearchStats() {
+    }
+
+    /**
+     * Constructor
+     *
+     * Copies another set of counters
+     *
+     * @param other
+     */
+    public SearchStats(SearchStats other) {
+        nodes = other.nodes;
+        betaCutoffs = other.betaCutoffs;
+        alphaCutoffs = other.alphaCutoffs;
+        terminalLeaves = other.terminalLeaves;
+        depthLimitedLeaves = other.depthLimitedLeaves;
+        probabilityCutoffs = other.probabilityCutoffs;
+        tableProbes = other.tableProbes;
+        tableHits = other.tableHits;
+        evaluations = other.evaluations;
+        bookHits = other.bookHits;
+        sampledEvaluationNanos = other.sampledEvaluationNanos;
+        depth = other.depth;
+        rootEmptyCells = other.rootEmptyCells;
+        elapsedNanos = other.elapsedNanos;
+        cancelled = other.cancelled;
+    }
+
+    /**
+     * Adds the node counters of another search, used to merge parallel workers
+     *
+     * @param other
+     */
+    void add(SearchStats other) {
+        nodes += other.nodes;
+        betaCutoffs += other.betaCutoffs;
+        alphaCutoffs += other.alphaCutoffs;
+        terminalLeaves += other.terminalLeaves;
+        depthLimitedLeaves += other.depthLimitedLeaves;
+        probabilityCutoffs += other.probabilityCutoffs;
+        tableProbes += other.tableProbes;
+        tableHits += other.tableHits;
+        evaluations += other.evaluations;
+        bookHits += other.bookHits;
+        sampledEvaluationNanos += other.sampledEvaluationNanos;
+    }
+
+    /**
+     * Zeroes every counter
+     */
+    void reset() {
+        nodes = 0;
+        betaCutoffs = 0;
+        alphaCutoffs = 0;
+        terminalLeaves = 0;
+        depthLimitedLeaves = 0;
+        probabilityCutoffs = 0;
+        tableProbes = 0;
+        tableHits = 0;
+        evaluations = 0;
+        bookHits = 0;
+        sampledEvaluationNanos = 0;
+        depth = 0;
+        rootEmptyCells = 0;
+        elapsedNanos = 0;
+        cancelled = false;
+    }
+
+    /**
+     * Gets the number of nodes visited
+     */
+    public long getNodes() {
+        return nodes;
+    }
+
+    /**
+     * Gets the number of beta cutoffs at player nodes
+     */
+    public long getBetaCutoffs() {
+        return betaCutoffs;
+    }
+
+    /**
+     * Gets the number of alpha cutoffs at chance nodes
+     */
+    public long getAlphaCutoffs() {
+        return alphaCutoffs;
+    }
+
+    /**
+     * Gets the number of leaves where the game was over
+     */
+    public long getTerminalLeaves() {
+        return terminalLeaves;
+    }
+
+    /**
+     * Gets the number of leaves where the depth ran out
+     */
+    public long getDepthLimitedLeaves() {
+        return depthLimitedLeaves;
+    }
+
+    /**
+     * Gets the number of expectimax paths scored early for being unlikely
+     */
+    public long getProbabilityCutoffs() {
+        return probabilityCutoffs;
+    }
+
+    /**
+     * Gets the number of transposition table lookups
+     */
+    public long getTableProbes() {
+        return tableProbes;
+    }
+
+    /**
+     * Gets the number of transposition table lookups that ended the node
+     */
+    public long getTableHits() {
+        return tableHits;
+    }
+
+    /**
+     * Gets the number of heuristic evaluations
+     */
+    public long getEvaluations() {
+        return evaluations;
+    }
+
+    /**
+     * Gets the number of calls answered by the opening book
+     */
+    public long getBookHits() {
+        return bookHits;
+    }
+
+    /**
+     * Estimates the time spent in the heuristic from the sampled evaluations,
+     * in nanoseconds. The sampling adds two System.nanoTime() calls to each
+     * timed evaluation, so this is an upper bound.
+     */
+    public long getEstimatedEvaluationNanos() {
+        return sampledEvaluationNanos * EVALUATION_SAMPLE_INTERVAL;
+    }
+
+    /**
+     * Gets the depth of the deepest completed search
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * Gets the number of empty cells of the root board
+     */
+    public int getRootEmptyCells() {
+        return rootEmptyCells;
+    }
+
+    /**
+     * Gets the wall time of the call, in nanoseconds
+     */
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /**
+     * Checks whether the call was cancelled, its move is then meaningless
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Gets the branching factor b for which b^depth equals the node count
+     */
+    public double getEffectiveBranchingFactor() {
+        return (depth == 0 || nodes == 0) ? 0 : Math.pow(nodes, 1.0 / depth);
+    }
+
+    /**
+     * Gets the fraction of inner nodes ended by a cutoff
+     */
+    public double getCutoffRate() {
+        long innerNodes = nodes - terminalLeaves - depthLimitedLeaves - probabilityCutoffs;
+        return (innerNodes <= 0) ? 0 : (double) (betaCutoffs + alphaCutoffs) / innerNodes;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("depth %d, %d nodes, %d beta / %d alpha cutoffs, %d terminal / %d depth-limited leaves, "
+                        + "%d/%d table hits, %d evaluations, EBF %.2f, %d ms",
+                depth, nodes, betaCutoffs, alphaCutoffs, terminalLeaves, depthLimitedLeaves,
+                tableHits, tableProbes, evaluations, getEffectiveBranchingFactor(), elapsedNanos / 1000000);
+    }
+}
@@ -0,0 +1,270 @@
+package com.kkmonlee.ai;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cumulative search statistics, shared by any number of solvers.
+ *
+ * Solvers record one SearchStats per call, so the cost is a handful of
+ * atomic adds per hint, not per node. Latencies go into a histogram with
+ * power-of-two microsecond buckets. Node and cutoff counts are also kept per
+ * number of empty cells on the root board, which shows how pruning behaves
+ * as the board fills up.
+ */
+public class SolverMetrics implements SolverMetricsMXBean {
+
+    // Latency buckets, bucket k holds searches under 2^k microseconds
+    private static final int LATENCY_BUCKETS = 40;
+
+    // Possible numbers of empty cells, 0 to 16
+    private static final int DENSITIES = 17;
+
+    // Number of recorded searches
+    private final LongAdder searches = new LongAdder();
+
+    // Sums of the per-search counters
+    private final LongAdder nodes = new LongAdder();
+    private final LongAdder betaCutoffs = new LongAdder();
+    private final LongAdder alphaCutoffs = new LongAdder();
+    private final LongAdder terminalLeaves = new LongAdder();
+    private final LongAdder depthLimitedLeaves = new LongAdder();
+    private final LongAdder probabilityCutoffs = new LongAdder();
+    private final LongAdder tableProbes = new LongAdder();
+    private final LongAdder tableHits = new LongAdder();
+    private final LongAdder evaluations = new LongAdder();
+    private final LongAdder bookHits = new LongAdder();
+    private final LongAdder elapsedNanos = new LongAdder();
+
+    // Sum of the per-search effective branching factors
+    private final DoubleAdder branchingFactors = new DoubleAdder();
+
+    // Searches per latency bucket
+    private final AtomicLongArray latencyHistogram = new AtomicLongArray(LATENCY_BUCKETS);
+
+    // Searches, nodes and cutoffs per number of empty cells at the root
+    private final AtomicLongArray searchesByDensity = new AtomicLongArray(DENSITIES);
+    private final AtomicLongArray nodesByDensity = new AtomicLongArray(DENSITIES);
+    private final AtomicLongArray innerNodesByDensity = new AtomicLongArray(DENSITIES);
+    private final AtomicLongArray cutoffsByDensity = new AtomicLongArray(DENSITIES);
+
+    /**
+     * Adds one search
+     *
+     * @param stats
+     */
+    public void record(SearchStats stats) {
+        searches.increment();
+        nodes.add(stats.nodes);
+        betaCutoffs.add(stats.betaCutoffs);
+        alphaCutoffs.add(stats.alphaCutoffs);
+        terminalLeaves.add(stats.terminalLeaves);
+        depthLimitedLeaves.add(stats.depthLimitedLeaves);
+        probabilityCutoffs.add(stats.probabilityCutoffs);
+        tableProbes.add(stats.tableProbes);
+        tableHits.add(stats.tableHits);
+        evaluations.add(stats.evaluations);
+        bookHits.add(stats.bookHits);
+        elapsedNanos.add(stats.elapsedNanos);
+        branchingFactors.add(stats.getEffectiveBranchingFactor());
+
+        long micros = stats.elapsedNanos / 1000;
+        int bucket = Math.min(64 - Long.numberOfLeadingZeros(micros), LATENCY_BUCKETS - 1);
+        latencyHistogram.incrementAndGet(bucket);
+
+        int density = Math.max(0, Math.min(stats.rootEmptyCells, DENSITIES - 1));
+        long cutoffs = stats.betaCutoffs + stats.alphaCutoffs;
+        long innerNodes = stats.nodes - stats.terminalLeaves - stats.depthLimitedLeaves - stats.probabilityCutoffs;
+        searchesByDensity.incrementAndGet(density);
+        nodesByDensity.addAndGet(density, stats.nodes);
+        innerNodesByDensity.addAndGet(density, innerNodes);
+        cutoffsByDensity.addAndGet(density, cutoffs);
+    }
+
+    /**
+     * Registers these metrics with the platform MBean server
+     *
+     * @param name value of the name key, e.g. the solver or server name
+     * @return the registered object name
+     * @throws JMException
+     */
+    public ObjectName registerMBean(String name) throws JMException {
+        ObjectName objectName = new ObjectName("com.kkmonlee.ai:type=SolverMetrics,name=" + ObjectName.quote(name));
+
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        }
+        catch (InstanceAlreadyExistsException ex) {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        }
+
+        return objectName;
+    }
+
+    @Override
+    public long getSearches() {
+        return searches.sum();
+    }
+
+    @Override
+    public long getNodes() {
+        return nodes.sum();
+    }
+
+    @Override
+    public long getBetaCutoffs() {
+        return betaCutoffs.sum();
+    }
+
+    @Override
+    public long getAlphaCutoffs() {
+        return alphaCutoffs.sum();
+    }
+
+    @Override
+    public long getTerminalLeaves() {
+        return terminalLeaves.sum();
+    }
+
+    @Override
+    public long getDepthLimitedLeaves() {
+        return depthLimitedLeaves.sum();
+    }
+
+    @Override
+    public long getTableProbes() {
+        return tableProbes.sum();
+    }
+
+    @Override
+    public long getTableHits() {
+        return tableHits.sum();
+    }
+
+    @Override
+    public long getEvaluations() {
+        return evaluations.sum();
+    }
+
+    @Override
+    public long getBookHits() {
+        return bookHits.sum();
+    }
+
+    @Override
+    public double getMeanLatencyMillis() {
+        long count = searches.sum();
+        return (count == 0) ? 0 : elapsedNanos.sum() / 1e6 / count;
+    }
+
+    @Override
+    public double getLatencyP50Millis() {
+        return latencyPercentileMillis(50);
+    }
+
+    @Override
+    public double getLatencyP99Millis() {
+        return latencyPercentileMillis(99);
+    }
+
+    @Override
+    public double getMeanEffectiveBranchingFactor() {
+        long count = searches.sum();
+        return (count == 0) ? 0 : branchingFactors.sum() / count;
+    }
+
+    @Override
+    public double getCutoffRate() {
+        long innerNodes = nodes.sum() - terminalLeaves.sum() - depthLimitedLeaves.sum() - probabilityCutoffs.sum();
+        return (innerNodes <= 0) ? 0 : (double) (betaCutoffs.sum() + alphaCutoffs.sum()) / innerNodes;
+    }
+
+    @Override
+    public long[] getSearchesByEmptyCells() {
+        return toArray(searchesByDensity);
+    }
+
+    @Override
+    public long[] getNodesByEmptyCells() {
+        return toArray(nodesByDensity);
+    }
+
+    @Override
+    public double[] getCutoffRateByEmptyCells() {
+        double[] rates = new double[DENSITIES];
+
+        for (int density = 0; density < DENSITIES; density++) {
+            long innerNodes = innerNodesByDensity.get(density);
+            rates[density] = (innerNodes <= 0) ? 0 : (double) cutoffsByDensity.get(density) / innerNodes;
+        }
+
+        return rates;
+    }
+
+    @Override
+    public void reset() {
+        searches.reset();
+        nodes.reset();
+        betaCutoffs.reset();
+        alphaCutoffs.reset();
+        terminalLeaves.reset();
+        depthLimitedLeaves.reset();
+        probabilityCutoffs.reset();
+        tableProbes.reset();
+        tableHits.reset();
+        evaluations.reset();
+        bookHits.reset();
+        elapsedNanos.reset();
+        branchingFactors.reset();
+
+        for (int k = 0; k < LATENCY_BUCKETS; k++) {
+            latencyHistogram.set(k, 0);
+        }
+        for (int density = 0; density < DENSITIES; density++) {
+            searchesByDensity.set(density, 0);
+            nodesByDensity.set(density, 0);
+            innerNodesByDensity.set(density, 0);
+            cutoffsByDensity.set(density, 0);
+        }
+    }
+
+    /**
+     * Upper bound of the histogram bucket holding a percentile
+     */
+    private double latencyPercentileMillis(double percentile) {
+        long count = 0;
+        for (int k = 0; k < LATENCY_BUCKETS; k++) {
+            count += latencyHistogram.get(k);
+        }
+        if (count == 0) {
+            return 0;
+        }
+
+        long rank = (long) Math.ceil(percentile / 100 * count);
+        long seen = 0;
+        for (int k = 0; k < LATENCY_BUCKETS; k++) {
+            seen += latencyHistogram.get(k);
+            if (seen >= rank) {
+                return (1L << k) / 1000.0;
+            }
+        }
+
+        return (1L << (LATENCY_BUCKETS - 1)) / 1000.0;
+    }
+
+    private static long[] toArray(AtomicLongArray values) {
+        long[] copy = new long[values.length()];
+
+        for (int k = 0; k < copy.length; k++) {
+            copy[k] = values.get(k);
+        }
+
+        return copy;
+    }
+}
@@ -0,0 +1,45 @@
+package com.kkmonlee.ai;
+
+/**
+ * JMX view of SolverMetrics
+ */
+public interface SolverMetricsMXBean {
+
+    long getSearches();
+
+    long getNodes();
+
+    long getBetaCutoffs();
+
+    long getAlphaCutoffs();
+
+    long getTerminalLeaves();
+
+    long getDepthLimitedLeaves();
+
+    long getTableProbes();
+
+    long getTableHits();
+
+    long getEvaluations();
+
+    long getBookHits();
+
+    double getMeanLatencyMillis();
+
+    double getLatencyP50Millis();
+
+    double getLatencyP99Millis();
+
+    double getMeanEffectiveBranchingFactor();
+
+    double getCutoffRate();
+
+    long[] getSearchesByEmptyCells();
+
+    long[] getNodesByEmptyCells();
+
+    double[] getCutoffRateByEmptyCells();
+
+    void reset();
+}
@@ -0,0 +1,362 @@
+package com.kkmonlee.ai;
+
+import com.kkmonlee.dataobj.Direction;
+import com.kkmonlee.game.TableSnapshot;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Fixed-size, open-addressed cache of searched positions.
+ *
+ * Positions are keyed by a 64-bit Zobrist hash of the packed board, the
+ * game score (the heuristic depends on it) and the side to move. Each entry
+ * packs depth, score, bound type, best move and search age into one long,
+ * and is written next to its key XOR-ed with that long, so a torn write from
+ * another thread reads back as a miss instead of a wrong entry.
+ *
+ * The table is sized once from a memory cap and never grows. When all slots
+ * of a probe window are taken, the configured ReplacementPolicy picks the
+ * victim.
+ */
+public class TranspositionTable {
+
+    // Kind of score stored in an entry
+    public enum Bound {
+        // The score is the exact value of the position
+        EXACT,
+
+        // The real value is at least the score (beta cutoff)
+        LOWER,
+
+        // The real value is at most the score (no move raised alpha)
+        UPPER
+    }
+
+    // Which entry gets overwritten when a probe window is full
+    public enum ReplacementPolicy {
+        // Always replace the first slot of the window
+        ALWAYS,
+
+        // Replace the shallowest entry of the window
+        DEPTH_PREFERRED,
+
+        // Replace entries left over from older searches first, then the shallowest
+        AGE_THEN_DEPTH
+    }
+
+    // Bytes used by one entry (key and data)
+    public static final int ENTRY_BYTES = 16;
+
+    // Memory cap used when none is given
+    public static final int DEFAULT_SIZE_MB = 16;
+
+    // Number of consecutive slots a position may live in
+    private static final int PROBE_LENGTH = 4;
+
+    // Marks a used entry, so stored data is never 0
+    private static final long VALID_BIT = 1L << 63;
+
+    // Bounds by the code stored in an entry
+    private static final Bound[] BOUNDS = Bound.values();
+
+    // Best moves by ordinal, entries store the ordinal plus one so that 0 means none
+    private static final Direction[] DIRECTIONS = Direction.values();
+
+    // Zobrist keys of every 16 bit row value, per row of the board
+    private static final long[][] ZOBRIST_ROWS = new long[4][65536];
+
+    // Zobrist key of the side to move
+    private static final long USER_TO_MOVE_KEY;
+
+    // Name of the row keys in a TableSnapshot
+    private static final String ZOBRIST_SECTION = "Zobrist.rows";
+
+    // Seed of the keys, also the fingerprint of the row keys in a snapshot
+    private static final long ZOBRIST_SEED = 0x2048L;
+
+    static {
+        Random random = new Random(ZOBRIST_SEED);
+
+        long[][] cellKeys = new long[16][16];
+        for (int cellId = 0; cellId < 16; cellId++) {
+            // Empty cells keep a zero key, so the empty board hashes to 0
+            for (int rank = 1; rank < 16; rank++) {
+                cellKeys[cellId][rank] = random.nextLong();
+            }
+        }
+        USER_TO_MOVE_KEY = random.nextLong();
+
+        if (!loadZobristRows(TableSnapshot.getDefault(), cellKeys)) {
+            for (int row = 0; row < 4; row++) {
+                for (int line = 0; line < 65536; line++) {
+                    ZOBRIST_ROWS[row][line] = rowKey(cellKeys, row, line);
+                }
+            }
+        }
+    }
+
+    // Keys XOR-ed with their data
+    private final long[] keys;
+
+    // Packed entries
+    private final long[] data;
+
+    // Capacity - 1, the capacity is a power of two
+    private final int indexMask;
+
+    // Policy used when a probe window is full
+    private final ReplacementPolicy policy;
+
+    // Age of the current search, stored in every new entry
+    private int age = 0;
+
+    /**
+     * Constructor
+     *
+     * Creates a table with the default memory cap and policy
+     */
+    public TranspositionTable() {
+        this(DEFAULT_SIZE_MB, ReplacementPolicy.AGE_THEN_DEPTH);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param megabytes maximum memory used by the entries
+     * @param policy
+     */
+    public TranspositionTable(int megabytes, ReplacementPolicy policy) {
+        if (megabytes < 1) {
+            throw new IllegalArgumentException("Transposition table needs at least 1 MB: " + megabytes);
+        }
+
+        long entries = Long.highestOneBit(((long) megabytes << 20) / ENTRY_BYTES);
+        int capacity = (int) Math.min(entries, 1 << 30);
+
+        this.keys = new long[capacity];
+        this.data = new long[capacity];
+        this.indexMask = capacity - 1;
+        this.policy = policy;
+    }
+
+    /**
+     * Hashes a position
+     *
+     * @param packedBoard
+     * @param score
+     * @param userToMove
+     * @return
+     */
+    public static long hash(long packedBoard, int score, boolean userToMove) {
+        long key = ZOBRIST_ROWS[0][(int) (packedBoard & 0xFFFF)]
+                ^ ZOBRIST_ROWS[1][(int) ((packedBoard >>> 16) & 0xFFFF)]
+                ^ ZOBRIST_ROWS[2][(int) ((packedBoard >>> 32) & 0xFFFF)]
+                ^ ZOBRIST_ROWS[3][(int) (packedBoard >>> 48)]
+                ^ mix(score);
+
+        return userToMove ? key ^ USER_TO_MOVE_KEY : key;
+    }
+
+    /**
+     * Looks up a position
+     *
+     * @param hash
+     * @return the packed entry, or 0 if the position is not stored
+     */
+    public long probe(long hash) {
+        int index = (int) hash & indexMask;
+
+        for (int k = 0; k < PROBE_LENGTH; k++) {
+            int slot = (index + k) & indexMask;
+            long entry = data[slot];
+
+            if (entry != 0 && (keys[slot] ^ entry) == hash) {
+                return entry;
+            }
+        }
+
+        return 0;
+    }
+
+    /**
+     * Stores a position, replacing its old entry or a victim chosen by the policy
+     *
+     * @param hash
+     * @param depth remaining search depth, 0 to 255
+     * @param score
+     * @param bound
+     * @param bestMove may be null
+     */
+    public void store(long hash, int depth, int score, Bound bound, Direction bestMove) {
+        int index = (int) hash & indexMask;
+        int victim = index;
+        int victimRank = Integer.MAX_VALUE;
+
+        for (int k = 0; k < PROBE_LENGTH; k++) {
+            int slot = (index + k) & indexMask;
+            long entry = data[slot];
+
+            if (entry == 0 || (keys[slot] ^ entry) == hash) {
+                victim = slot;
+                break;
+            }
+
+            int rank = replacementRank(entry);
+            if (rank < victimRank) {
+                victimRank = rank;
+                victim = slot;
+            }
+        }
+
+        long entry = VALID_BIT
+                | (score & 0xFFFFFFFFL)
+                | (long) Math.min(depth, 0xFF) << 32
+                | (long) bound.ordinal() << 40
+                | (long) (bestMove == null ? 0 : bestMove.ordinal() + 1) << 42
+                | (long) age << 45;
+
+        data[victim] = entry;
+        keys[victim] = hash ^ entry;
+    }
+
+    /**
+     * Starts a new search, entries stored from now on are younger than the
+     * existing ones
+     */
+    public void newSearch() {
+        age = (age + 1) & 0xFF;
+    }
+
+    /**
+     * Removes all entries
+     */
+    public void clear() {
+        Arrays.fill(keys, 0);
+        Arrays.fill(data, 0);
+    }
+
+    /**
+     * Gets the number of entries the table can hold
+     */
+    public int getCapacity() {
+        return indexMask + 1;
+    }
+
+    /**
+     * Gets the score of a packed entry
+     */
+    public static int scoreOf(long entry) {
+        return (int) entry;
+    }
+
+    /**
+     * Gets the remaining depth of a packed entry
+     */
+    public static int depthOf(long entry) {
+        return (int) (entry >>> 32) & 0xFF;
+    }
+
+    /**
+     * Gets the bound of a packed entry
+     */
+    public static Bound boundOf(long entry) {
+        return BOUNDS[(int) (entry >>> 40) & 0x3];
+    }
+
+    /**
+     * Gets the best move of a packed entry, null if none was recorded
+     */
+    public static Direction moveOf(long entry) {
+        int move = (int) (entry >>> 42) & 0x7;
+        return (move == 0) ? null : DIRECTIONS[move - 1];
+    }
+
+    /**
+     * Ranks an entry for eviction, the lowest rank is replaced first
+     */
+    private int replacementRank(long entry) {
+        switch (policy) {
+            case ALWAYS:
+                return 0;
+            case DEPTH_PREFERRED:
+                return depthOf(entry);
+            default:
+                int entryAge = (int) (entry >>> 45) & 0xFF;
+                return (entryAge == age) ? 0x100 + depthOf(entry) : depthOf(entry);
+        }
+    }
+
+    /**
+     * Adds the Zobrist row keys to a snapshot
+     *
+     * @param snapshot
+     */
+    public static void addTables(TableSnapshot.Builder snapshot) {
+        ByteBuffer buffer = TableSnapshot.Builder.allocate(4 * 8 * 65536);
+
+        for (long[] keys : ZOBRIST_ROWS) {
+            buffer.asLongBuffer().put(keys);
+            buffer.position(buffer.position() + 8 * 65536);
+        }
+
+        buffer.rewind();
+        snapshot.add(ZOBRIST_SECTION, ZOBRIST_SEED, buffer);
+    }
+
+    /**
+     * Copies the row keys out of a snapshot, checking the keys of single
+     * tiles against the cell keys
+     *
+     * @return false if the snapshot has no matching keys
+     */
+    private static boolean loadZobristRows(TableSnapshot snapshot, long[][] cellKeys) {
+        ByteBuffer buffer = snapshot.section(ZOBRIST_SECTION, ZOBRIST_SEED);
+        if (buffer == null || buffer.remaining() != 4 * 8 * 65536) {
+            return false;
+        }
+
+        for (long[] keys : ZOBRIST_ROWS) {
+            buffer.asLongBuffer().get(keys);
+            buffer.position(buffer.position() + 8 * 65536);
+        }
+
+        for (int row = 0; row < 4; row++) {
+            for (int k = 0; k < 4; k++) {
+                for (int rank = 1; rank < 16; rank++) {
+                    int line = rank << (4 * k);
+                    if (ZOBRIST_ROWS[row][line] != rowKey(cellKeys, row, line)) {
+                        return false;
+                    }
+                }
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Zobrist key of one row of the board holding a 16 bit line
+     */
+    private static long rowKey(long[][] cellKeys, int row, int line) {
+        long key = 0;
+
+        for (int k = 0; k < 4; k++) {
+            key ^= cellKeys[4 * row + k][(line >>> (4 * k)) & 0xF];
+        }
+
+        return key;
+    }
+
+    /**
+     * Spreads the bits of the score over a 64-bit key (SplitMix64 finaliser)
+     */
+    private static long mix(int score) {
+        long z = score * 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+}
@@ -0,0 +1,70 @@
+package com.kkmonlee.dataobj;
+
+/**
+ * Kinds of record of a game archive, see GameRecordWriter
+ */
+public enum RecordType {
+    /**
+     * One action: the board before it, the move, the hint, the result and
+     * the spawned tile
+     */
+    STEP(0, "Step"),
+
+    /**
+     * Start of a game and the seed of its random generator
+     */
+    GAME_START(1, "Game start"),
+
+    /**
+     * End of a game: the final board, score and result
+     */
+    GAME_END(2, "Game end");
+
+    /**
+     * The numeric code of the record type, stored in the record
+     */
+    private final int code;
+
+    /**
+     * The description of the record type
+     */
+    private final String description;
+
+    /**
+     * Constructor
+     *
+     * @param code
+     * @param description
+     */
+    private RecordType(final int code, final String description) {
+        this.code = code;
+        this.description = description;
+    }
+
+    /**
+     * Getter for code.
+     *
+     * @return
+     */
+    public int getCode() {
+        return code;
+    }
+
+    /**
+     * Getter for description.
+     *
+     * @return
+     */
+    public String getDescription() {
+        return description;
+    }
+
+    /**
+     * Overloads the toString and returns the description of the record type.
+     * @return
+     */
+    @Override
+    public String toString() {
+        return description;
+    }
+}
@@ -0,0 +1,66 @@
+package com.kkmonlee.dataobj;
+
+public enum SearchAlgorithm {
+    /**
+     * Plain minimax, the computer places the worst tile
+     */
+    MINIMAX(0, "Minimax"),
+
+    /**
+     * Minimax with Alpha-Beta pruning
+     */
+    ALPHA_BETA(1, "Alpha-Beta"),
+
+    /**
+     * Expectimax, the computer places tiles like the game does
+     */
+    EXPECTIMAX(2, "Expectimax");
+
+    /**
+     * The numeric code of the algorithm
+     */
+    private final int code;
+
+    /**
+     * The description of the algorithm
+     */
+    private final String description;
+
+    /**
+     * Constructor
+     *
+     * @param code
+     * @param description
+     */
+    private SearchAlgorithm(final int code, final String description) {
+        this.code = code;
+        this.description = description;
+    }
+
+    /**
+     * Getter for code.
+     *
+     * @return
+     */
+    public int getCode() {
+        return code;
+    }
+
+    /**
+     * Getter for description.
+     *
+     * @return
+     */
+    public String getDescription() {
+        return description;
+    }
+
+    /**
+     * Overloads the toString and returns the description of the algorithm.
+     * @return
+     */
+    @Override
+    public String toString() {
+        return description;
+    }
+}
@@ -0,0 +1,681 @@
+package com.kkmonlee.game;
+
+import com.kkmonlee.dataobj.ActionStatus;
+import com.kkmonlee.dataobj.Direction;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * 4x4 board packed into a single long.
+ *
+ * Every cell holds the exponent of its tile in 4 bits (0 is empty, 1 is 2,
+ * 2 is 4, ...). Cell (i, j) lives at bit offset 4 * (BOARD_SIZE * i + j),
+ * so row i is the 16 bits starting at 16 * i and cell IDs match the ones
+ * returned by Board.getEmpyCellIDs(). Moves are resolved through
+ * precomputed 65536-entry tables, one lookup per row or column. The tables
+ * are copied from the default TableSnapshot when it has them, and computed
+ * otherwise.
+ */
+public class BitBoard implements Cloneable {
+
+    // Size of the board
+    public static final int BOARD_SIZE = Board.BOARD_SIZE;
+
+    // Largest exponent a cell can hold (2^15 = 32768), such tiles never merge
+    public static final int MAX_RANK = 15;
+
+    // Mask of a single row
+    private static final long ROW_MASK = 0xFFFFL;
+
+    // Mask of the first column (nibbles 0, 4, 8 and 12)
+    private static final long COL_MASK = 0x000F000F000F000FL;
+
+    // Change applied to a row when it slides left, indexed by the row
+    static final char[] ROW_LEFT_TABLE = new char[65536];
+
+    // Change applied to a row when it slides right, indexed by the row
+    static final char[] ROW_RIGHT_TABLE = new char[65536];
+
+    // Change applied to a column when it slides up, indexed by the column read top to bottom
+    static final long[] COL_UP_TABLE = new long[65536];
+
+    // Change applied to a column when it slides down, indexed by the column read top to bottom
+    static final long[] COL_DOWN_TABLE = new long[65536];
+
+    // Points gained by merging a line, the same in both directions
+    static final int[] SCORE_TABLE = new int[65536];
+
+    // Name of the move tables in a TableSnapshot
+    private static final String TABLES_SECTION = "BitBoard.moves";
+
+    // Revision of the move tables, bumped whenever they are computed differently
+    private static final long TABLES_FINGERPRINT = 1L;
+
+    // Bytes of the move tables, per line: two chars, two longs and an int
+    private static final int TABLES_BYTES = 65536 * (2 + 2 + 8 + 8 + 4);
+
+    // Every this many lines, loaded tables are checked against computed ones
+    private static final int CHECK_STRIDE = 1021;
+
+    static {
+        if (!loadTables(TableSnapshot.getDefault())) {
+            buildTables();
+        }
+    }
+
+    // Packed cells
+    private long board;
+
+    // Score
+    private int score = 0;
+
+    // Random generator used in creation of random cells
+    private final Random randomGenerator;
+
+    /**
+     * Constructor
+     *
+     * Initialises the board randomly
+     */
+    public BitBoard() {
+        this(new SplitMixRandom());
+    }
+
+    /**
+     * Constructor
+     *
+     * Initialises the board with the given random generator, so a seeded
+     * generator replays the same game
+     *
+     * @param randomGenerator
+     */
+    public BitBoard(Random randomGenerator) {
+        this.randomGenerator = randomGenerator;
+
+        addRandomCell();
+        addRandomCell();
+    }
+
+    /**
+     * Constructor
+     *
+     * Copies the cells, score and random generator of a Board
+     *
+     * @param theBoard
+     * @throws IllegalArgumentException if the board is not 4x4, see WideBitBoard
+     */
+    public BitBoard(Board theBoard) {
+        if (theBoard.getSize() != BOARD_SIZE) {
+            throw new IllegalArgumentException("BitBoard only holds 4x4 boards: " + theBoard.getSize());
+        }
+
+        board = pack(theBoard.getBoardArray());
+        score = theBoard.getScore();
+        randomGenerator = theBoard.getRandomGenerator();
+    }
+
+    /**
+     * Constructor
+     *
+     * @param packedBoard
+     * @param score
+     */
+    public BitBoard(long packedBoard, int score) {
+        this.board = packedBoard;
+        this.score = score;
+        randomGenerator = new SplitMixRandom();
+    }
+
+    /**
+     * Clone
+     *
+     * @return
+     * @throws CloneNotSupportedException
+     */
+    @Override
+    public Object clone() throws CloneNotSupportedException {
+        return super.clone();
+    }
+
+    /**
+     * Gets the number of cells per row and column
+     */
+    public int getSize() {
+        return BOARD_SIZE;
+    }
+
+    /**
+     * Gets score attribute
+     */
+    public int getScore() {
+        return score;
+    }
+
+    /**
+     * Gets the packed cells
+     */
+    public long getPackedBoard() {
+        return board;
+    }
+
+    /**
+     * Gets BoardArray
+     */
+    public int[][] getBoardArray() {
+        return unpack(board);
+    }
+
+    /**
+     * Overwrites cells and score, used to reset scratch boards without allocating
+     *
+     * @param packedBoard
+     * @param score
+     */
+    public void setState(long packedBoard, int score) {
+        this.board = packedBoard;
+        this.score = score;
+    }
+
+    /**
+     * Overwrites cells and score with the ones of another board
+     *
+     * @param other
+     */
+    public void copyFrom(BitBoard other) {
+        setState(other.board, other.score);
+    }
+
+    /**
+     * Gets the symmetry mapping this board to its canonical form
+     */
+    public Symmetry getCanonicalSymmetry() {
+        return Symmetry.canonicalOf(board);
+    }
+
+    /**
+     * Gets the packed cells in canonical orientation, equal for all
+     * rotations and reflections of this board
+     */
+    public long getCanonicalBoard() {
+        return Symmetry.canonical(board);
+    }
+
+    /**
+     * Gets RandomGenerator field
+     */
+    public Random getRandomGenerator() {
+        return randomGenerator;
+    }
+
+    /**
+     * Performs one move (up, down, left, or right)
+     *
+     * @param direction
+     */
+    public int move(Direction direction) {
+        long newBoard = board;
+        int points = 0;
+
+        if (direction == Direction.LEFT || direction == Direction.RIGHT) {
+            char[] table = (direction == Direction.LEFT) ? ROW_LEFT_TABLE : ROW_RIGHT_TABLE;
+
+            for (int i = 0; i < BOARD_SIZE; i++) {
+                int shift = 16 * i;
+                int row = (int) ((board >>> shift) & ROW_MASK);
+                newBoard ^= (long) table[row] << shift;
+                points += SCORE_TABLE[row];
+            }
+        }
+        else {
+            long[] table = (direction == Direction.UP) ? COL_UP_TABLE : COL_DOWN_TABLE;
+
+            for (int j = 0; j < BOARD_SIZE; j++) {
+                int shift = 4 * j;
+                int column = packColumn(board >>> shift);
+                newBoard ^= table[column] << shift;
+                points += SCORE_TABLE[column];
+            }
+        }
+
+        board = newBoard;
+        score += points;
+
+        return points;
+    }
+
+    /**
+     * Returns ID of empty cells
+     * Cells are numbered by row
+     */
+    public List<Integer> getEmpyCellIDs() {
+        List<Integer> cellList = new ArrayList<>();
+
+        for (int cellId = 0; cellId < BOARD_SIZE * BOARD_SIZE; cellId++) {
+            if (((board >>> (4 * cellId)) & 0xF) == 0) {
+                cellList.add(cellId);
+            }
+        }
+
+        return cellList;
+    }
+
+    /**
+     * Counts number of empty cells
+     */
+    public int getNumberOfEmptyCells() {
+        return countEmptyCells(board);
+    }
+
+    /**
+     * Checks if any cell has value equal or larger than TARGET_POINTS
+     */
+    public boolean hasWon() {
+        if (score < Board.MINIMUM_WIN_SCORE) {
+            return false;
+        }
+
+        return (1 << maxRank(board)) >= Board.TARGET_POINTS;
+    }
+
+    /**
+     * Checks whether game has ended
+     */
+    public boolean isGameTerminated() {
+        if (hasWon() || countEmptyCells(board) > 0) {
+            return false;
+        }
+
+        return !canMove(board);
+    }
+
+    /**
+     * Performs an up, right, down, left move
+     */
+    public ActionStatus action(Direction direction) {
+        ActionStatus result = ActionStatus.CONTINUE;
+
+        long currBoard = board;
+        int newPoints = move(direction);
+
+        boolean newCellAdded = false;
+
+        if (currBoard != board) {
+            newCellAdded = addRandomCell();
+        }
+
+        if (newPoints == 0 && newCellAdded == false) {
+            if (isGameTerminated()) {
+                result = ActionStatus.NO_MORE_MOVES;
+            }
+            else {
+                result = ActionStatus.INVALID_MOVE;
+            }
+        }
+        else {
+            if (newPoints >= Board.TARGET_POINTS) {
+                result = ActionStatus.WIN;
+            }
+            else {
+                if (isGameTerminated()) {
+                    result = ActionStatus.NO_MORE_MOVES;
+                }
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Sets value to an empty cell
+     */
+    public void setEmptyCell(int i, int j, int value) {
+        int shift = 4 * (BOARD_SIZE * i + j);
+
+        if (((board >>> shift) & 0xF) == 0) {
+            board |= (long) rankOf(value) << shift;
+        }
+    }
+
+    /**
+     * Packs a board array of tile values
+     *
+     * @param boardArray
+     * @return
+     */
+    public static long pack(int[][] boardArray) {
+        long packed = 0;
+
+        for (int i = 0; i < BOARD_SIZE; i++) {
+            for (int j = 0; j < BOARD_SIZE; j++) {
+                packed |= (long) rankOf(boardArray[i][j]) << (4 * (BOARD_SIZE * i + j));
+            }
+        }
+
+        return packed;
+    }
+
+    /**
+     * Unpacks a board into an array of tile values
+     *
+     * @param packedBoard
+     * @return
+     */
+    public static int[][] unpack(long packedBoard) {
+        int[][] boardArray = new int[BOARD_SIZE][BOARD_SIZE];
+
+        for (int i = 0; i < BOARD_SIZE; i++) {
+            for (int j = 0; j < BOARD_SIZE; j++) {
+                int rank = (int) ((packedBoard >>> (4 * (BOARD_SIZE * i + j))) & 0xF);
+                boardArray[i][j] = (rank == 0) ? 0 : 1 << rank;
+            }
+        }
+
+        return boardArray;
+    }
+
+    /**
+     * Counts the empty cells of a packed board
+     *
+     * @param packedBoard
+     * @return
+     */
+    public static int countEmptyCells(long packedBoard) {
+        long occupied = packedBoard | (packedBoard >>> 1);
+        occupied |= occupied >>> 2;
+
+        return 16 - Long.bitCount(occupied & 0x1111111111111111L);
+    }
+
+    /**
+     * Returns the largest exponent on a packed board
+     *
+     * @param packedBoard
+     * @return
+     */
+    public static int maxRank(long packedBoard) {
+        int max = 0;
+
+        while (packedBoard != 0) {
+            max = Math.max(max, (int) (packedBoard & 0xF));
+            packedBoard >>>= 4;
+        }
+
+        return max;
+    }
+
+    /**
+     * Gets row i of a packed board as a 16 bit line, leftmost cell in the
+     * lowest nibble
+     *
+     * @param packedBoard
+     * @param i
+     * @return
+     */
+    public static int getRow(long packedBoard, int i) {
+        return (int) ((packedBoard >>> (16 * i)) & ROW_MASK);
+    }
+
+    /**
+     * Gets column j of a packed board as a 16 bit line, top cell in the
+     * lowest nibble
+     *
+     * @param packedBoard
+     * @param j
+     * @return
+     */
+    public static int getColumn(long packedBoard, int j) {
+        return packColumn(packedBoard >>> (4 * j));
+    }
+
+    /**
+     * Checks whether any move changes a packed board
+     *
+     * @param packedBoard
+     * @return
+     */
+    public static boolean canMove(long packedBoard) {
+        for (int i = 0; i < BOARD_SIZE; i++) {
+            int row = (int) ((packedBoard >>> (16 * i)) & ROW_MASK);
+            int column = packColumn(packedBoard >>> (4 * i));
+
+            if (ROW_LEFT_TABLE[row] != 0 || ROW_RIGHT_TABLE[row] != 0
+                    || COL_UP_TABLE[column] != 0 || COL_DOWN_TABLE[column] != 0) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Creates a random cell
+     */
+    private boolean addRandomCell() {
+        int emptyCells = countEmptyCells(board);
+
+        if (emptyCells == 0) {
+            return false;
+        }
+
+        int target = randomGenerator.nextInt(emptyCells);
+        int randomRank = (randomGenerator.nextDouble() < Board.PROBABILITY_OF_TWO) ? 1 : 2;
+
+        for (int cellId = 0; ; cellId++) {
+            if (((board >>> (4 * cellId)) & 0xF) == 0 && target-- == 0) {
+                board |= (long) randomRank << (4 * cellId);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Adds the move tables to a snapshot
+     *
+     * @param snapshot
+     */
+    public static void addTables(TableSnapshot.Builder snapshot) {
+        ByteBuffer buffer = TableSnapshot.Builder.allocate(TABLES_BYTES);
+
+        buffer.asCharBuffer().put(ROW_LEFT_TABLE);
+        buffer.position(buffer.position() + 2 * 65536);
+        buffer.asCharBuffer().put(ROW_RIGHT_TABLE);
+        buffer.position(buffer.position() + 2 * 65536);
+        buffer.asLongBuffer().put(COL_UP_TABLE);
+        buffer.position(buffer.position() + 8 * 65536);
+        buffer.asLongBuffer().put(COL_DOWN_TABLE);
+        buffer.position(buffer.position() + 8 * 65536);
+        buffer.asIntBuffer().put(SCORE_TABLE);
+
+        buffer.rewind();
+        snapshot.add(TABLES_SECTION, TABLES_FINGERPRINT, buffer);
+    }
+
+    /**
+     * Copies the move tables out of a snapshot, spot-checking some lines
+     * against the code
+     *
+     * @return false if the snapshot has no matching tables, which are then
+     * left for buildTables()
+     */
+    private static boolean loadTables(TableSnapshot snapshot) {
+        ByteBuffer buffer = snapshot.section(TABLES_SECTION, TABLES_FINGERPRINT);
+        if (buffer == null || buffer.remaining() != TABLES_BYTES) {
+            return false;
+        }
+
+        buffer.asCharBuffer().get(ROW_LEFT_TABLE);
+        buffer.position(buffer.position() + 2 * 65536);
+        buffer.asCharBuffer().get(ROW_RIGHT_TABLE);
+        buffer.position(buffer.position() + 2 * 65536);
+        buffer.asLongBuffer().get(COL_UP_TABLE);
+        buffer.position(buffer.position() + 8 * 65536);
+        buffer.asLongBuffer().get(COL_DOWN_TABLE);
+        buffer.position(buffer.position() + 8 * 65536);
+        buffer.asIntBuffer().get(SCORE_TABLE);
+
+        for (int row = 0; row < 65536; row += CHECK_STRIDE) {
+            int[] line = unpackLine(row);
+            int left = slideLeft(line);
+            int right = slideRight(line);
+
+            if (ROW_LEFT_TABLE[row] != (char) (row ^ left) || ROW_RIGHT_TABLE[row] != (char) (row ^ right)
+                    || COL_UP_TABLE[row] != unpackColumn(row ^ left) || COL_DOWN_TABLE[row] != unpackColumn(row ^ right)
+                    || SCORE_TABLE[row] != lineScore(line)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Computes the move tables
+     */
+    private static void buildTables() {
+        for (int row = 0; row < 65536; row++) {
+            int[] line = unpackLine(row);
+
+            int left = slideLeft(line);
+            int right = slideRight(line);
+
+            ROW_LEFT_TABLE[row] = (char) (row ^ left);
+            ROW_RIGHT_TABLE[row] = (char) (row ^ right);
+            COL_UP_TABLE[row] = unpackColumn(row ^ left);
+            COL_DOWN_TABLE[row] = unpackColumn(row ^ right);
+            SCORE_TABLE[row] = lineScore(line);
+        }
+    }
+
+    /**
+     * Packed line left by sliding a line towards its first cell
+     */
+    private static int slideLeft(int[] cells) {
+        return packLine(slideLine(cells));
+    }
+
+    /**
+     * Packed line left by sliding a line towards its last cell
+     */
+    private static int slideRight(int[] cells) {
+        return packLine(reverseLine(slideLine(reverseLine(cells))));
+    }
+
+    /**
+     * Returns the exponent of a tile value
+     */
+    private static int rankOf(int value) {
+        return (value == 0) ? 0 : Integer.numberOfTrailingZeros(value);
+    }
+
+    /**
+     * Gathers the column in the lowest nibble of each row into 16 bits,
+     * top cell first
+     */
+    static int packColumn(long shiftedBoard) {
+        long column = shiftedBoard & COL_MASK;
+
+        return (int) ((column | column >>> 12 | column >>> 24 | column >>> 36) & ROW_MASK);
+    }
+
+    /**
+     * Spreads 16 bits into the lowest nibble of each row, inverse of packColumn
+     */
+    private static long unpackColumn(int line) {
+        long column = line;
+
+        return (column | column << 12 | column << 24 | column << 36) & COL_MASK;
+    }
+
+    /**
+     * Splits a 16 bit line into its four exponents
+     */
+    private static int[] unpackLine(int line) {
+        int[] cells = new int[BOARD_SIZE];
+
+        for (int k = 0; k < BOARD_SIZE; k++) {
+            cells[k] = (line >>> (4 * k)) & 0xF;
+        }
+
+        return cells;
+    }
+
+    /**
+     * Joins four exponents into a 16 bit line
+     */
+    private static int packLine(int[] cells) {
+        int line = 0;
+
+        for (int k = 0; k < BOARD_SIZE; k++) {
+            line |= cells[k] << (4 * k);
+        }
+
+        return line;
+    }
+
+    /**
+     * Reverses the order of the cells of a line
+     */
+    private static int[] reverseLine(int[] cells) {
+        int[] reversed = new int[BOARD_SIZE];
+
+        for (int k = 0; k < BOARD_SIZE; k++) {
+            reversed[k] = cells[BOARD_SIZE - k - 1];
+        }
+
+        return reversed;
+    }
+
+    /**
+     * Slides a line towards its first cell, merging equal tiles once
+     */
+    private static int[] slideLine(int[] cells) {
+        int[] result = new int[BOARD_SIZE];
+        int target = 0;
+        boolean mergeable = false;
+
+        for (int k = 0; k < BOARD_SIZE; k++) {
+            if (cells[k] == 0) {
+                continue;
+            }
+
+            if (mergeable && result[target - 1] == cells[k] && cells[k] < MAX_RANK) {
+                result[target - 1]++;
+                mergeable = false;
+            }
+            else {
+                result[target++] = cells[k];
+                mergeable = true;
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Points gained by sliding a line, each merge scores its new tile value
+     */
+    private static int lineScore(int[] cells) {
+        int points = 0;
+        int previous = 0;
+
+        for (int k = 0; k < BOARD_SIZE; k++) {
+            if (cells[k] == 0) {
+                continue;
+            }
+
+            if (previous == cells[k] && cells[k] < MAX_RANK) {
+                points += 1 << (cells[k] + 1);
+                previous = 0;
+            }
+            else {
+                previous = cells[k];
+            }
+        }
+
+        return points;
+    }
+
+}
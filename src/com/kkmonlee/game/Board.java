@@ -5,11 +5,13 @@ import com.kkmonlee.dataobj.Direction;
 import java.rmi.activation.ActivationID;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
 import java.util.Random;
 
 public class Board implements Cloneable {
 
-    // Size of the board
+    // Size of the board unless another one is given
     public static final int BOARD_SIZE = 4;
 
     // Maximum combination in which the game terminates
@@ -18,17 +20,35 @@ public class Board implements Cloneable {
     //  Minimum possible win score until target point is reached
     public static final int MINIMUM_WIN_SCORE = 18432;
 
+    // Probability that a new cell is a 2, otherwise it is a 4
+    public static final double PROBABILITY_OF_TWO = 0.9;
+
     // Score
     private int score = 0;
 
+    // Number of cells per row and column
+    private final int size;
+
     // Board values
     private int[][] boardArray;
 
     // Random generator used in creation of random cells
     private final Random randomGenerator;
 
-    // Number of empty cells cache
-    private Integer cache_emptyCells = null;
+    // Bit k is set when cell k, numbered by row, is empty
+    private long emptyMask;
+
+    // Value of the largest tile
+    private int maxTile;
+
+    // Whether two equal tiles touch, so that some move merges them
+    private boolean mergeAvailable;
+
+    // Whether the last move() changed the board
+    private boolean lastMoveChanged = false;
+
+    // Notified after every action
+    private List<BoardListener> listeners = new ArrayList<>();
 
     /**
      * Constructor
@@ -36,13 +56,78 @@ public class Board implements Cloneable {
      * Initialises the board randomly
      */
     public Board() {
-        boardArray = new int[BOARD_SIZE][BOARD_SIZE];
-        randomGenerator = new Random(System.currentTimeMillis());
+        this(new SplitMixRandom());
+    }
+
+    /**
+     * Constructor
+     *
+     * Initialises the board from a seed, the same seed and moves always
+     * replay the same game (see MoveLog)
+     *
+     * @param seed
+     */
+    public Board(long seed) {
+        this(new SplitMixRandom(seed));
+    }
+
+    /**
+     * Constructor
+     *
+     * Initialises the board with the given random generator, so a seeded
+     * generator replays the same game
+     *
+     * @param randomGenerator
+     */
+    public Board(Random randomGenerator) {
+        this(BOARD_SIZE, randomGenerator);
+    }
+
+    /**
+     * Constructor
+     *
+     * Initialises a board of the given size, from 2x2 to 8x8, with the given
+     * random generator. Tiles are not capped, unlike the packed boards
+     * (BitBoard, WideBitBoard) whose cells stop at 32768: two 32768 tiles
+     * merge here but not there, so games reaching them stop replaying
+     * identically on the packed boards
+     *
+     * @param size
+     * @param randomGenerator
+     */
+    public Board(int size, Random randomGenerator) {
+        this.size = checkSize(size);
+        boardArray = new int[size][size];
+        this.randomGenerator = randomGenerator;
+        refreshState();
 
         addRandomCell();
         addRandomCell();
     }
 
+    /**
+     * Constructor
+     *
+     * Starts from the given cells and score instead of two random cells, the
+     * size of the board is the size of the square array
+     *
+     * @param boardArray
+     * @param score
+     */
+    public Board(int[][] boardArray, int score) {
+        size = checkSize(boardArray.length);
+        for (int[] row : boardArray) {
+            if (row.length != size) {
+                throw new IllegalArgumentException("Board array is not square");
+            }
+        }
+
+        this.boardArray = clone2DArray(boardArray);
+        this.score = score;
+        randomGenerator = new SplitMixRandom();
+        refreshState();
+    }
+
     /**
      * Clone
      *
@@ -53,9 +138,17 @@ public class Board implements Cloneable {
     public Object clone() throws CloneNotSupportedException {
         Board copy = (Board) super.clone();
         copy.boardArray = clone2DArray(boardArray);
+        copy.listeners = new ArrayList<>();
         return copy;
     }
 
+    /**
+     * Gets the number of cells per row and column
+     */
+    public int getSize() {
+        return size;
+    }
+
     /**
      * Gets score attribute
      */
@@ -84,6 +177,7 @@ public class Board implements Cloneable {
      */
     public int move(Direction direction) {
         int points = 0;
+        boolean changed = false;
 
         if (direction == Direction.UP) {
             rotateLeft();
@@ -96,9 +190,9 @@ public class Board implements Cloneable {
             rotateRight();
         }
 
-        for (int i = 0; i < BOARD_SIZE; ++i) {
+        for (int i = 0; i < size; ++i) {
             int lastMergePosition = 0;
-            for (int j = 1; j < BOARD_SIZE; ++i) {
+            for (int j = 1; j < size; ++j) {
                 if (boardArray[i][j] == 0) {
                     continue;
                 }
@@ -114,16 +208,19 @@ public class Board implements Cloneable {
                 else if (boardArray[i][previousPosition] == 0) {
                     boardArray[i][previousPosition] = boardArray[i][j];
                     boardArray[i][j] = 0;
+                    changed = true;
                 }
                 else if (boardArray[i][previousPosition] == boardArray[i][j]) {
                     boardArray[i][previousPosition] *= 2;
                     boardArray[i][j] = 0;
                     points += boardArray[i][previousPosition];
                     lastMergePosition = previousPosition+1;
+                    changed = true;
                 }
                 else if (boardArray[i][previousPosition] != boardArray[i][j] && previousPosition + 1 != j) {
                     boardArray[i][previousPosition+1] = boardArray[i][j];
                     boardArray[i][j] = 0;
+                    changed = true;
                 }
             }
         }
@@ -141,6 +238,11 @@ public class Board implements Cloneable {
             rotateLeft();
         }
 
+        lastMoveChanged = changed;
+        if (changed) {
+            refreshState();
+        }
+
         return points;
     }
 
@@ -149,71 +251,119 @@ public class Board implements Cloneable {
      * Cells are numbered by row
      */
     public List<Integer> getEmpyCellIDs() {
-        List<Integer> cellList = new ArrayList<>();
+        List<Integer> cellList = new ArrayList<>(Long.bitCount(emptyMask));
 
-        for (int i = 0; i  < BOARD_SIZE; i++) {
-            for (int j = 0; j < BOARD_SIZE; j++) {
-                if (boardArray[i][j] == 0) {
-                    cellList.add(BOARD_SIZE * i + j);
-                }
-            }
+        for (PrimitiveIterator.OfInt cells = emptyCells(); cells.hasNext(); ) {
+            cellList.add(cells.nextInt());
         }
 
         return cellList;
     }
 
+    /**
+     * Iterates over the IDs of the empty cells in increasing order, without
+     * boxing them
+     */
+    public PrimitiveIterator.OfInt emptyCells() {
+        return new PrimitiveIterator.OfInt() {
+            // Empty cells not returned yet
+            private long remaining = emptyMask;
+
+            @Override
+            public boolean hasNext() {
+                return remaining != 0;
+            }
+
+            @Override
+            public int nextInt() {
+                if (remaining == 0) {
+                    throw new NoSuchElementException();
+                }
+
+                int cellId = Long.numberOfTrailingZeros(remaining);
+                remaining &= remaining - 1;
+                return cellId;
+            }
+        };
+    }
+
+    /**
+     * Gets the empty cells as a bitmask, bit k for cell ID k
+     */
+    public long getEmptyCellMask() {
+        return emptyMask;
+    }
+
     /**
      * Counts number of empty cells
      */
     public int getNumberOfEmptyCells() {
-        if (cache_emptyCells == null) {
-            cache_emptyCells = getEmpyCellIDs().size();
-        }
+        return Long.bitCount(emptyMask);
+    }
 
-        return cache_emptyCells;
+    /**
+     * Gets the value of the largest tile
+     */
+    public int getMaxTile() {
+        return maxTile;
     }
 
     /**
-     * Checks if any cell has value equal or larger than TARGET_POINTS
+     * Checks whether two equal tiles touch, so that some move merges them
      */
-    public boolean hasWon() {
-        if (score < MINIMUM_WIN_SCORE) {
-            return false;
-        }
-        for(int i = 0; i < BOARD_SIZE; i++) {
-            for(int j = 0; j < BOARD_SIZE; j++) {
-                if(boardArray[i][j] >= TARGET_POINTS) {
-                    return true;
-                }
-            }
-        }
+    public boolean isMergeAvailable() {
+        return mergeAvailable;
+    }
 
-        return false;
+    /**
+     * Checks whether the last move changed the board
+     */
+    public boolean isLastMoveChanged() {
+        return lastMoveChanged;
     }
 
     /**
-     * Checks whether game has ended
+     * Gets the tile exponents packed four bits per cell, as in BitBoard,
+     * without copying the board array
+     *
+     * @throws IllegalStateException if the board is not 4x4
      */
-    public boolean isGameTerminated() throws CloneNotSupportedException {
-        boolean terminated = false;
+    public long getPackedBoard() {
+        return BitBoard.pack(checkedBoardArray());
+    }
 
-        if (hasWon() == true) {
-            terminated = false;
-        }
-        else {
-            if (getNumberOfEmptyCells() == 0) {
-                Board copyBoard = (Board) this.clone();
-
-                if (copyBoard.move(Direction.UP) == 0 &&
-                        copyBoard.move(Direction.RIGHT) == 0 &&
-                        copyBoard.move(Direction.DOWN) == 0 &&
-                        copyBoard.move(Direction.LEFT) == 0) {
-                    terminated = true;
-                }
-            }
-        }
+    /**
+     * Gets the symmetry mapping this board to its canonical form. Its
+     * inverse maps a move found on the canonical board back to this one.
+     *
+     * @throws IllegalStateException if the board is not 4x4
+     */
+    public Symmetry getCanonicalSymmetry() {
+        return Symmetry.canonicalOf(BitBoard.pack(checkedBoardArray()));
+    }
+
+    /**
+     * Gets the cells in canonical orientation, equal for all rotations and
+     * reflections of this board
+     *
+     * @throws IllegalStateException if the board is not 4x4
+     */
+    public int[][] getCanonicalBoardArray() {
+        return BitBoard.unpack(Symmetry.canonical(BitBoard.pack(checkedBoardArray())));
+    }
 
-        return terminated;
+    /**
+     * Checks if any cell has value equal or larger than TARGET_POINTS
+     */
+    public boolean hasWon() {
+        return score >= MINIMUM_WIN_SCORE && maxTile >= TARGET_POINTS;
+    }
+
+    /**
+     * Checks whether game has ended: a full board can only move by merging
+     */
+    public boolean isGameTerminated() throws CloneNotSupportedException {
+        return emptyMask == 0 && !mergeAvailable && !hasWon();
     }
 
     /**
@@ -222,13 +372,11 @@ public class Board implements Cloneable {
     public ActionStatus action(Direction direction) throws CloneNotSupportedException {
         ActionStatus result = ActionStatus.CONTINUE;
 
-        int[][] currBoardArray = getBoardArray();
         int newPoints = move(direction);
-        int[][] newBoardArray = getBoardArray();
 
         boolean newCellAdded = false;
 
-        if (!isEqual(currBoardArray, newBoardArray)) {
+        if (lastMoveChanged) {
             newCellAdded = addRandomCell();
         }
 
@@ -251,16 +399,69 @@ public class Board implements Cloneable {
             }
         }
 
+        for (BoardListener listener : listeners) {
+            listener.actionPerformed(this, direction, result);
+        }
+
         return result;
     }
 
+    /**
+     * Adds a listener notified after every action. Clones start without
+     * listeners.
+     *
+     * @param listener
+     */
+    public void addListener(BoardListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Removes a listener
+     *
+     * @param listener
+     */
+    public void removeListener(BoardListener listener) {
+        listeners.remove(listener);
+    }
+
     /**
      * Sets value to an empty cell
      */
     public void setEmptyCell(int i, int j, int value) {
-        if (boardArray[i][j] == 0) {
+        if (boardArray[i][j] == 0 && value != 0) {
             boardArray[i][j] = value;
-            cache_emptyCells = null;
+
+            emptyMask &= ~(1L << (size * i + j));
+            maxTile = Math.max(maxTile, value);
+            mergeAvailable |= (i > 0 && boardArray[i - 1][j] == value)
+                    || (i + 1 < size && boardArray[i + 1][j] == value)
+                    || (j > 0 && boardArray[i][j - 1] == value)
+                    || (j + 1 < size && boardArray[i][j + 1] == value);
+        }
+    }
+
+    /**
+     * Rebuilds the empty cells, largest tile and merge flag from the cells
+     */
+    private void refreshState() {
+        emptyMask = 0;
+        maxTile = 0;
+        mergeAvailable = false;
+
+        for (int i = 0; i < size; i++) {
+            for (int j = 0; j < size; j++) {
+                int value = boardArray[i][j];
+
+                if (value == 0) {
+                    emptyMask |= 1L << (size * i + j);
+                }
+                else {
+                    maxTile = Math.max(maxTile, value);
+                    mergeAvailable |= (i + 1 < size && boardArray[i + 1][j] == value)
+                            || (j + 1 < size && boardArray[i][j + 1] == value);
+                }
+            }
         }
     }
 
@@ -268,11 +469,11 @@ public class Board implements Cloneable {
      * Rotates the board left
      */
     private void rotateLeft() {
-        int[][] rotatedBoard = new int[BOARD_SIZE][BOARD_SIZE];
+        int[][] rotatedBoard = new int[size][size];
 
-        for (int i = 0; i < BOARD_SIZE; i++) {
-            for (int j = 0; j < BOARD_SIZE; j++) {
-                rotatedBoard[BOARD_SIZE - j - 1][i] = boardArray[i][j];
+        for (int i = 0; i < size; i++) {
+            for (int j = 0; j < size; j++) {
+                rotatedBoard[size - j - 1][i] = boardArray[i][j];
             }
         }
 
@@ -283,11 +484,11 @@ public class Board implements Cloneable {
      * Rotates the board right
      */
     private void rotateRight() {
-        int[][] rotatedBoard = new int[BOARD_SIZE][BOARD_SIZE];
+        int[][] rotatedBoard = new int[size][size];
 
-        for(int i = 0; i < BOARD_SIZE; i++) {
-            for(int j = 0; j < BOARD_SIZE; j++) {
-                rotatedBoard[i][j] = boardArray[BOARD_SIZE - j - 1][i];
+        for(int i = 0; i < size; i++) {
+            for(int j = 0; j < size; j++) {
+                rotatedBoard[i][j] = boardArray[size - j - 1][i];
             }
         }
 
@@ -298,25 +499,51 @@ public class Board implements Cloneable {
      * Creates a random cell
      */
     private boolean addRandomCell() {
-        List<Integer> emptyCells = getEmpyCellIDs();
-
-        int listSize = emptyCells.size();
+        int emptyCells = Long.bitCount(emptyMask);
 
-        if (listSize == 0) {
+        if (emptyCells == 0) {
             return false;
         }
 
-        int randomCellID = emptyCells.get(randomGenerator.nextInt(listSize));
-        int randomValue = (randomGenerator.nextDouble() < 0.9) ? 2 : 4;
+        long remaining = emptyMask;
+        for (int target = randomGenerator.nextInt(emptyCells); target > 0; target--) {
+            remaining &= remaining - 1;
+        }
+
+        int randomCellID = Long.numberOfTrailingZeros(remaining);
+        int randomValue = (randomGenerator.nextDouble() < PROBABILITY_OF_TWO) ? 2 : 4;
 
-        int i = randomCellID / BOARD_SIZE;
-        int j = randomCellID % BOARD_SIZE;
+        int i = randomCellID / size;
+        int j = randomCellID % size;
 
         setEmptyCell(i, j, randomValue);
 
         return true;
     }
 
+    /**
+     * Gets the cells of a 4x4 board, the only size packed into a long
+     */
+    private int[][] checkedBoardArray() {
+        if (size != BitBoard.BOARD_SIZE) {
+            throw new IllegalStateException("Only 4x4 boards pack into a long, this one is " + size + "x" + size);
+        }
+
+        return boardArray;
+    }
+
+    /**
+     * Validates a board size
+     */
+    private static int checkSize(int size) {
+        if (size < WideBitBoard.MIN_SIZE || size > WideBitBoard.MAX_SIZE) {
+            throw new IllegalArgumentException("Board size must be between " + WideBitBoard.MIN_SIZE + " and "
+                    + WideBitBoard.MAX_SIZE + ": " + size);
+        }
+
+        return size;
+    }
+
     /**
      * "Clones" a 2D array
      */
@@ -0,0 +1,19 @@
+package com.kkmonlee.game;
+
+import com.kkmonlee.dataobj.ActionStatus;
+import com.kkmonlee.dataobj.Direction;
+
+/**
+ * Receives the moves played on a Board through action()
+ */
+public interface BoardListener {
+
+    /**
+     * Called after every action, once the new tile is placed
+     *
+     * @param theBoard the board after the action
+     * @param direction
+     * @param result
+     */
+    void actionPerformed(Board theBoard, Direction direction, ActionStatus result);
+}
@@ -0,0 +1,198 @@
+package com.kkmonlee.game;
+
+import com.kkmonlee.dataobj.ActionStatus;
+import com.kkmonlee.dataobj.Direction;
+import com.kkmonlee.dataobj.RecordType;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Streams the records of a game archive written by GameRecordWriter.
+ *
+ * The reader is a cursor: next() moves to the following record and the
+ * getters decode the current one, so scanning an archive allocates nothing
+ * per record and only holds one buffer of the file in memory.
+ */
+public class GameRecordReader implements Closeable {
+
+    // Bytes read from the file at a time, a multiple of the record size
+    private static final int BUFFER_BYTES = GameRecordWriter.RECORD_BYTES << 16;
+
+    // Record types by the code stored in a record
+    private static final RecordType[] TYPES = RecordType.values();
+
+    // Moves by the code stored in a record
+    private static final Direction[] DIRECTIONS = Direction.values();
+
+    // Statuses by the code stored in a record
+    private static final ActionStatus[] STATUSES = ActionStatus.values();
+
+    // File being read
+    private final FileChannel channel;
+
+    // Bytes read but not decoded yet
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_BYTES);
+
+    // Long of the current record
+    private long value;
+
+    // Int of the current record
+    private int info;
+
+    // Scratch board replaying moves for getBoardAfter()
+    private final BitBoard scratch = new BitBoard(0L, 0);
+
+    private GameRecordReader(FileChannel channel) {
+        this.channel = channel;
+        this.buffer.limit(0);
+    }
+
+    /**
+     * Opens an archive
+     *
+     * @param file
+     * @return
+     * @throws IOException if the file cannot be read or is not an archive
+     */
+    public static GameRecordReader open(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+
+        try {
+            ByteBuffer header = ByteBuffer.allocate(GameRecordWriter.HEADER_BYTES);
+            channel.read(header);
+
+            if (header.position() < GameRecordWriter.HEADER_BYTES || header.getInt(0) != GameRecordWriter.MAGIC
+                    || header.getInt(4) != GameRecordWriter.VERSION) {
+                throw new IOException("Not a game archive, or an unsupported version: " + file);
+            }
+
+            return new GameRecordReader(channel);
+        }
+        catch (IOException | RuntimeException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Moves to the next record
+     *
+     * @return false at the end of the archive
+     * @throws IOException if the file cannot be read or ends inside a record
+     */
+    public boolean next() throws IOException {
+        if (buffer.remaining() < GameRecordWriter.RECORD_BYTES) {
+            buffer.compact();
+            int read;
+            do {
+                read = channel.read(buffer);
+            } while (read >= 0 && buffer.position() < GameRecordWriter.RECORD_BYTES);
+            buffer.flip();
+
+            if (buffer.remaining() == 0) {
+                return false;
+            }
+            if (buffer.remaining() < GameRecordWriter.RECORD_BYTES) {
+                throw new IOException("Game archive ends inside a record");
+            }
+        }
+
+        value = buffer.getLong();
+        info = buffer.getInt();
+        return true;
+    }
+
+    /**
+     * Gets the type of the current record
+     */
+    public RecordType getType() {
+        return TYPES[info & 0x3];
+    }
+
+    /**
+     * Gets the seed of a GAME_START record
+     */
+    public long getSeed() {
+        return value;
+    }
+
+    /**
+     * Gets the board before the action of a STEP record, or the final
+     * board of a GAME_END record
+     */
+    public long getBoard() {
+        return value;
+    }
+
+    /**
+     * Gets the move of a STEP record
+     */
+    public Direction getDirection() {
+        return DIRECTIONS[(info >>> 2) & 0x3];
+    }
+
+    /**
+     * Gets the hint of a STEP record, null if none was recorded
+     */
+    public Direction getHint() {
+        int hint = (info >>> 4) & 0x7;
+        return (hint == 0) ? null : DIRECTIONS[hint - 1];
+    }
+
+    /**
+     * Gets the result of a STEP or GAME_END record
+     */
+    public ActionStatus getStatus() {
+        return (getType() == RecordType.GAME_END) ? STATUSES[(info >>> 2) & 0x3] : STATUSES[(info >>> 7) & 0x3];
+    }
+
+    /**
+     * Gets the cell of the tile spawned by a STEP record, numbered by row
+     *
+     * @return -1 if no tile spawned
+     */
+    public int getSpawnCell() {
+        return (getSpawnRank() == 0) ? -1 : (info >>> 9) & 0xF;
+    }
+
+    /**
+     * Gets the rank of the tile spawned by a STEP record, 1 for a 2 and 2
+     * for a 4
+     *
+     * @return 0 if no tile spawned
+     */
+    public int getSpawnRank() {
+        return (info >>> 13) & 0x3;
+    }
+
+    /**
+     * Rebuilds the board after the action of a STEP record
+     *
+     * @return
+     */
+    public long getBoardAfter() {
+        scratch.setState(value, 0);
+        scratch.move(getDirection());
+
+        long after = scratch.getPackedBoard();
+        int rank = getSpawnRank();
+        return (rank == 0) ? after : after | (long) rank << (4 * getSpawnCell());
+    }
+
+    /**
+     * Gets the final score of a GAME_END record
+     */
+    public int getScore() {
+        return info >>> 4;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
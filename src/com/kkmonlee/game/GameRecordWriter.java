@@ -0,0 +1,325 @@
+package com.kkmonlee.game;
+
+import com.kkmonlee.dataobj.ActionStatus;
+import com.kkmonlee.dataobj.Direction;
+import com.kkmonlee.dataobj.RecordType;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Appends games to an archive file.
+ *
+ * The file is an 8 byte header (magic, version) followed by fixed 12 byte
+ * records: a long and an int whose two lowest bits are the RecordType.
+ *
+ *   GAME_START  seed of the game's generator, 0 if unknown
+ *   STEP        board before the action (16 exponents of 4 bits, as in
+ *               BitBoard); info bits 2-3 move, 4-6 hint (0 none, else
+ *               ordinal + 1), 7-8 result, 9-12 spawned cell, 13-14 spawned
+ *               rank (0 when nothing spawned)
+ *   GAME_END    final board; info bits 2-3 result, 4-31 score
+ *
+ * A game is a GAME_START, its steps and usually a GAME_END; its first board
+ * is that of its first step, or of its GAME_END when it has none.
+ *
+ * Records are buffered and only whole games reach the channel, so writers
+ * made with share() can append to one file from several threads without
+ * their games interleaving. A writer itself is not thread-safe.
+ */
+public class GameRecordWriter implements Closeable {
+
+    // "GAME" in ASCII
+    public static final int MAGIC = 0x47414D45;
+
+    // Version of the file layout
+    public static final int VERSION = 1;
+
+    // Bytes of the header
+    public static final int HEADER_BYTES = 8;
+
+    // Bytes of one record
+    public static final int RECORD_BYTES = 12;
+
+    // Initial size of the buffer, finished games are written once half of it is used
+    private static final int BUFFER_BYTES = 1 << 16;
+
+    // Channel shared by this writer and the ones made with share()
+    private final FileChannel channel;
+
+    // Whether close() closes the channel
+    private final boolean ownsChannel;
+
+    // Records not written yet
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_BYTES);
+
+    // Buffer position of the GAME_START of the open game, -1 when no game is open
+    private int gameStart = -1;
+
+    // Scratch board replaying moves to find the spawned tile
+    private final BitBoard scratch = new BitBoard(0L, 0);
+
+    private GameRecordWriter(FileChannel channel, boolean ownsChannel) {
+        this.channel = channel;
+        this.ownsChannel = ownsChannel;
+    }
+
+    /**
+     * Opens an archive for appending, creating it if needed
+     *
+     * @param file
+     * @return
+     * @throws IOException if the file cannot be written or is not an archive
+     */
+    public static GameRecordWriter open(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+
+        try {
+            long size = channel.size();
+
+            if (size == 0) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+                header.putInt(MAGIC).putInt(VERSION).flip();
+                while (header.hasRemaining()) {
+                    channel.write(header);
+                }
+            }
+            else {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+                channel.read(header, 0);
+
+                if (header.position() < HEADER_BYTES || header.getInt(0) != MAGIC || header.getInt(4) != VERSION
+                        || (size - HEADER_BYTES) % RECORD_BYTES != 0) {
+                    throw new IOException("Not a game archive, or an unsupported version: " + file);
+                }
+            }
+
+            channel.position(channel.size());
+            return new GameRecordWriter(channel, true);
+        }
+        catch (IOException | RuntimeException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Creates a writer with its own buffer appending to the same file, for
+     * another thread. Closing it flushes it but leaves the file open.
+     *
+     * @return
+     */
+    public GameRecordWriter share() {
+        return new GameRecordWriter(channel, false);
+    }
+
+    /**
+     * Records the games played on a Board, from now until one ends. The
+     * hint of each action may be given with setHint() before it.
+     *
+     * @param theBoard
+     * @param seed seed of the board's generator, 0 if unknown
+     * @return the listener added to the board, to pass setHint() the hints
+     */
+    public Recorder record(Board theBoard, long seed) {
+        startGame(seed);
+
+        Recorder recorder = new Recorder(theBoard.getPackedBoard());
+        theBoard.addListener(recorder);
+        return recorder;
+    }
+
+    /**
+     * Starts a game. An open game is left without GAME_END.
+     *
+     * @param seed seed of the game's generator, 0 if unknown
+     */
+    public void startGame(long seed) {
+        gameStart = -1;
+        ensureRoom();
+        gameStart = buffer.position();
+        buffer.putLong(seed).putInt(RecordType.GAME_START.getCode());
+    }
+
+    /**
+     * Records one action
+     *
+     * @param before board before the action
+     * @param direction
+     * @param hint move suggested to the player, may be null
+     * @param result
+     * @param after board after the action, spawned tile included
+     */
+    public void step(long before, Direction direction, Direction hint, ActionStatus result, long after) {
+        scratch.setState(before, 0);
+        scratch.move(direction);
+        long spawned = after ^ scratch.getPackedBoard();
+
+        int info = RecordType.STEP.getCode()
+                | direction.ordinal() << 2
+                | (hint == null ? 0 : hint.ordinal() + 1) << 4
+                | result.ordinal() << 7;
+
+        if (spawned != 0) {
+            int cellId = Long.numberOfTrailingZeros(spawned) >>> 2;
+            info |= cellId << 9 | (int) ((after >>> (4 * cellId)) & 0x3) << 13;
+        }
+
+        ensureRoom();
+        buffer.putLong(before).putInt(info);
+    }
+
+    /**
+     * Ends the open game
+     *
+     * @param packedBoard final board
+     * @param score
+     * @param result result of the last action, CONTINUE if the game was abandoned
+     */
+    public void endGame(long packedBoard, int score, ActionStatus result) {
+        ensureRoom();
+        buffer.putLong(packedBoard).putInt(RecordType.GAME_END.getCode() | result.ordinal() << 2 | score << 4);
+        gameStart = -1;
+
+        if (buffer.position() >= BUFFER_BYTES / 2) {
+            try {
+                flush();
+            }
+            catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+    }
+
+    /**
+     * Writes the finished games. The open game stays buffered.
+     *
+     * @throws IOException
+     */
+    public void flush() throws IOException {
+        int end = (gameStart >= 0) ? gameStart : buffer.position();
+        if (end == 0) {
+            return;
+        }
+
+        ByteBuffer games = buffer.duplicate();
+        games.position(0).limit(end);
+
+        synchronized (channel) {
+            while (games.hasRemaining()) {
+                channel.write(games);
+            }
+        }
+
+        buffer.limit(buffer.position()).position(end);
+        buffer.compact();
+        if (gameStart >= 0) {
+            gameStart = 0;
+        }
+    }
+
+    /**
+     * Writes everything, an open game included, then closes the file if
+     * this writer opened it
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        gameStart = -1;
+        flush();
+
+        if (ownsChannel) {
+            channel.close();
+        }
+    }
+
+    /**
+     * Makes room for one record: writes finished games, or grows the buffer
+     * if one game fills it
+     */
+    private void ensureRoom() {
+        if (buffer.remaining() >= RECORD_BYTES) {
+            return;
+        }
+
+        if (gameStart != 0) {
+            try {
+                flush();
+            }
+            catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+
+        if (buffer.remaining() < RECORD_BYTES) {
+            ByteBuffer larger = ByteBuffer.allocateDirect(buffer.capacity() * 2);
+            buffer.flip();
+            larger.put(buffer);
+            buffer = larger;
+        }
+    }
+
+    /**
+     * Listener recording the actions of a Board
+     */
+    public class Recorder implements BoardListener {
+
+        // Board before the next action
+        private long lastBoard;
+
+        // Hint of the next action, null if none was given
+        private Direction hint = null;
+
+        // Whether the game ended
+        private boolean ended = false;
+
+        private Recorder(long firstBoard) {
+            this.lastBoard = firstBoard;
+        }
+
+        /**
+         * Sets the hint shown for the next action
+         *
+         * @param hint may be null
+         */
+        public void setHint(Direction hint) {
+            this.hint = hint;
+        }
+
+        @Override
+        public void actionPerformed(Board theBoard, Direction direction, ActionStatus result) {
+            if (ended) {
+                return;
+            }
+
+            long board = theBoard.getPackedBoard();
+            step(lastBoard, direction, hint, result, board);
+            lastBoard = board;
+            hint = null;
+
+            if (result == ActionStatus.WIN || result == ActionStatus.NO_MORE_MOVES) {
+                end(theBoard, result);
+            }
+        }
+
+        /**
+         * Ends the game early, e.g. when the player quits
+         *
+         * @param theBoard
+         * @param result
+         */
+        public void end(Board theBoard, ActionStatus result) {
+            if (!ended) {
+                ended = true;
+                endGame(theBoard.getPackedBoard(), theBoard.getScore(), result);
+            }
+        }
+    }
+}
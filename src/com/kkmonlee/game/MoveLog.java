@@ -0,0 +1,229 @@
+package com.kkmonlee.game;
+
+import com.kkmonlee.dataobj.ActionStatus;
+import com.kkmonlee.dataobj.Direction;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Compact record of a game: the seed of its random generator and the moves
+ * played, two bits each.
+ *
+ * A board created from the seed (Board(long), or a BitBoard with a
+ * SplitMixRandom of the seed) spawns the same tiles for the same moves, so
+ * replaying the moves rebuilds the game bit for bit. Moves that did not
+ * change the board draw nothing from the generator and are not recorded.
+ *
+ * The text form is the seed in hexadecimal, a colon and one letter per move
+ * (U, R, D or L), e.g. "2048:ULLDR".
+ */
+public class MoveLog implements BoardListener {
+
+    // Moves by their 2 bit code in the log
+    private static final Direction[] DIRECTIONS = Direction.values();
+
+    // Seed of the game's random generator
+    private final long seed;
+
+    // Moves, four per byte, the first in the lowest bits
+    private byte[] moves;
+
+    // Number of moves
+    private int size = 0;
+
+    /**
+     * Constructor
+     *
+     * @param seed
+     */
+    public MoveLog(long seed) {
+        this.seed = seed;
+        this.moves = new byte[64];
+    }
+
+    /**
+     * Creates a board for the seed of this log and records its moves
+     *
+     * @return
+     */
+    public Board newBoard() {
+        Board theBoard = new Board(seed);
+        theBoard.addListener(this);
+        return theBoard;
+    }
+
+    /**
+     * Records the move of an action, unless it left the board unchanged
+     *
+     * @param theBoard
+     * @param direction
+     * @param result
+     */
+    @Override
+    public void actionPerformed(Board theBoard, Direction direction, ActionStatus result) {
+        if (theBoard.isLastMoveChanged()) {
+            add(direction);
+        }
+    }
+
+    /**
+     * Appends a move that changed the board
+     *
+     * @param direction
+     */
+    public void add(Direction direction) {
+        if (size == moves.length * 4) {
+            moves = Arrays.copyOf(moves, moves.length * 2);
+        }
+
+        moves[size >>> 2] = (byte) (moves[size >>> 2] | direction.ordinal() << (2 * (size & 3)));
+        size++;
+    }
+
+    /**
+     * Gets the seed of the game's random generator
+     */
+    public long getSeed() {
+        return seed;
+    }
+
+    /**
+     * Gets the number of recorded moves
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Gets move k
+     *
+     * @param k
+     * @return
+     */
+    public Direction get(int k) {
+        if (k < 0 || k >= size) {
+            throw new IndexOutOfBoundsException("Move " + k + " of " + size);
+        }
+        return DIRECTIONS[(moves[k >>> 2] >>> (2 * (k & 3))) & 3];
+    }
+
+    /**
+     * Replays the game on a new Board
+     *
+     * @return the board after the last move
+     */
+    public Board replay() {
+        Board theBoard = new Board(seed);
+
+        try {
+            for (int k = 0; k < size; k++) {
+                theBoard.action(get(k));
+            }
+        }
+        catch (CloneNotSupportedException ex) {
+            throw new IllegalStateException(ex);
+        }
+
+        return theBoard;
+    }
+
+    /**
+     * Replays the game on a new BitBoard
+     *
+     * @return the board after the last move
+     */
+    public BitBoard replayBitBoard() {
+        BitBoard theBoard = new BitBoard(new SplitMixRandom(seed));
+
+        for (int k = 0; k < size; k++) {
+            theBoard.action(get(k));
+        }
+
+        return theBoard;
+    }
+
+    /**
+     * Encodes the log: the seed, the number of moves and the packed moves
+     *
+     * @return
+     */
+    public byte[] toBytes() {
+        int packedBytes = (size + 3) >>> 2;
+
+        return ByteBuffer.allocate(12 + packedBytes)
+                .putLong(seed)
+                .putInt(size)
+                .put(moves, 0, packedBytes)
+                .array();
+    }
+
+    /**
+     * Decodes a log written by toBytes()
+     *
+     * @param bytes
+     * @return
+     * @throws IllegalArgumentException if the bytes are not a move log
+     */
+    public static MoveLog fromBytes(byte[] bytes) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        if (buffer.remaining() < 12) {
+            throw new IllegalArgumentException("Move log too short: " + bytes.length + " bytes");
+        }
+
+        MoveLog log = new MoveLog(buffer.getLong());
+        int size = buffer.getInt();
+        int packedBytes = (size + 3) >>> 2;
+        if (size < 0 || buffer.remaining() != packedBytes) {
+            throw new IllegalArgumentException("Move log of " + size + " moves has " + buffer.remaining() + " move bytes");
+        }
+
+        log.moves = new byte[Math.max(packedBytes, 1)];
+        buffer.get(log.moves, 0, packedBytes);
+        log.size = size;
+        return log;
+    }
+
+    /**
+     * Parses the text form written by toString()
+     *
+     * @param text
+     * @return
+     * @throws IllegalArgumentException if the text is not a move log
+     */
+    public static MoveLog parse(String text) {
+        int colon = text.indexOf(':');
+        if (colon < 0) {
+            throw new IllegalArgumentException("Move log without seed: " + text);
+        }
+
+        MoveLog log = new MoveLog(Long.parseUnsignedLong(text.substring(0, colon), 16));
+        for (int k = colon + 1; k < text.length(); k++) {
+            log.add(directionOf(text.charAt(k)));
+        }
+        return log;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder(17 + size);
+        text.append(Long.toHexString(seed)).append(':');
+
+        for (int k = 0; k < size; k++) {
+            text.append(get(k).getDescription().charAt(0));
+        }
+        return text.toString();
+    }
+
+    /**
+     * Gets the direction of a move letter
+     */
+    private static Direction directionOf(char letter) {
+        for (Direction direction : DIRECTIONS) {
+            if (direction.getDescription().charAt(0) == Character.toUpperCase(letter)) {
+                return direction;
+            }
+        }
+        throw new IllegalArgumentException("Unknown move: " + letter);
+    }
+}
@@ -0,0 +1,117 @@
+package com.kkmonlee.game;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fast, seedable and splittable random generator for games (SplitMix64).
+ *
+ * It extends Random so it plugs into Board and BitBoard, but replaces the
+ * shared, compare-and-set protected state of Random with a plain long: an
+ * instance must only be used by one thread at a time. Give every thread or
+ * game its own generator, created from a seed or split from a parent, and
+ * simulations never contend on a generator.
+ *
+ * The same seed always gives the same sequence, on every JVM.
+ */
+public class SplitMixRandom extends Random {
+
+    // Serializable through Random
+    private static final long serialVersionUID = 1L;
+
+    // Increment of the state, the odd number closest to 2^64 / golden ratio
+    private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
+    // Source of default seeds, distinct for every generator of this JVM
+    private static final AtomicLong SEED_UNIQUIFIER = new AtomicLong(mix64(System.currentTimeMillis()) ^ System.nanoTime());
+
+    // Seed the generator was created with
+    private final long seed;
+
+    // Current state
+    private long state;
+
+    /**
+     * Constructor
+     *
+     * Seeds the generator with a value unique to this JVM, see newSeed()
+     */
+    public SplitMixRandom() {
+        this(newSeed());
+    }
+
+    /**
+     * Constructor
+     *
+     * @param seed
+     */
+    public SplitMixRandom(long seed) {
+        super(seed);
+        this.seed = seed;
+        this.state = seed;
+    }
+
+    /**
+     * Gets a seed that no other call of this JVM returns, to be logged so
+     * the game can be replayed
+     *
+     * @return
+     */
+    public static long newSeed() {
+        return mix64(SEED_UNIQUIFIER.getAndAdd(GOLDEN_GAMMA));
+    }
+
+    /**
+     * Gets the seed the generator was created with
+     */
+    public long getSeed() {
+        return seed;
+    }
+
+    /**
+     * Creates an independent generator, seeded from this one's next value.
+     * Splitting the same generator in the same order always gives the same
+     * children.
+     *
+     * @return
+     */
+    public SplitMixRandom split() {
+        return new SplitMixRandom(nextLong());
+    }
+
+    /**
+     * Restarts the sequence from a seed. Unlike Random, this does not change
+     * getSeed().
+     *
+     * @param seed
+     */
+    @Override
+    public void setSeed(long seed) {
+        state = seed;
+    }
+
+    @Override
+    public long nextLong() {
+        state += GOLDEN_GAMMA;
+        return mix64(state);
+    }
+
+    @Override
+    public double nextDouble() {
+        return (nextLong() >>> 11) * 0x1.0p-53;
+    }
+
+    @Override
+    protected int next(int bits) {
+        return (int) (nextLong() >>> (64 - bits));
+    }
+
+    /**
+     * SplitMix64 finaliser
+     */
+    private static long mix64(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,270 @@
+package com.kkmonlee.game;
+
+import com.kkmonlee.dataobj.Direction;
+
+/**
+ * The eight rotations and reflections of the square board.
+ *
+ * Moves commute with them: moving a transformed board in the transformed
+ * direction gives the transformed result, with the same points. Positions
+ * that only differ by a symmetry therefore have the same value, and caches
+ * can key them on their canonical form, the smallest packed board among the
+ * eight images, remembering the symmetry to map moves back.
+ */
+public enum Symmetry {
+    /**
+     * Leaves the board as it is
+     */
+    IDENTITY(0, "Identity", new int[]{0, 1, 2, 3}),
+
+    /**
+     * Rotates the board a quarter turn clockwise
+     */
+    ROTATE_90(1, "Rotate 90", new int[]{1, 2, 3, 0}),
+
+    /**
+     * Rotates the board a half turn
+     */
+    ROTATE_180(2, "Rotate 180", new int[]{2, 3, 0, 1}),
+
+    /**
+     * Rotates the board a quarter turn anticlockwise
+     */
+    ROTATE_270(3, "Rotate 270", new int[]{3, 0, 1, 2}),
+
+    /**
+     * Swaps the left and right columns
+     */
+    MIRROR(4, "Mirror", new int[]{0, 3, 2, 1}),
+
+    /**
+     * Swaps the top and bottom rows
+     */
+    FLIP(5, "Flip", new int[]{2, 1, 0, 3}),
+
+    /**
+     * Reflects the board in its main diagonal
+     */
+    TRANSPOSE(6, "Transpose", new int[]{3, 2, 1, 0}),
+
+    /**
+     * Reflects the board in its anti-diagonal
+     */
+    ANTI_TRANSPOSE(7, "Anti-transpose", new int[]{1, 0, 3, 2});
+
+
+    // Directions by ordinal, to map them through a symmetry
+    private static final Direction[] DIRECTIONS = Direction.values();
+
+    /**
+     * The numeric code of the symmetry
+     */
+    private final int code;
+
+    /**
+     * The description of the symmetry
+     */
+    private final String description;
+
+    /**
+     * Transformed direction ordinal, indexed by direction ordinal
+     */
+    private final int[] directionMap;
+
+    /**
+     * Constructor
+     *
+     * @param code
+     * @param description
+     * @param directionMap
+     */
+    private Symmetry(final int code, final String description, final int[] directionMap) {
+        this.code = code;
+        this.description = description;
+        this.directionMap = directionMap;
+    }
+
+    /**
+     * Getter for code.
+     *
+     * @return
+     */
+    public int getCode() {
+        return code;
+    }
+
+    /**
+     * Getter for description.
+     *
+     * @return
+     */
+    public String getDescription() {
+        return description;
+    }
+
+    /**
+     * Transforms a packed board
+     *
+     * @param packedBoard
+     * @return
+     */
+    public long apply(long packedBoard) {
+        switch (this) {
+            case ROTATE_90:
+                return mirror(transpose(packedBoard));
+            case ROTATE_180:
+                return flip(mirror(packedBoard));
+            case ROTATE_270:
+                return flip(transpose(packedBoard));
+            case MIRROR:
+                return mirror(packedBoard);
+            case FLIP:
+                return flip(packedBoard);
+            case TRANSPOSE:
+                return transpose(packedBoard);
+            case ANTI_TRANSPOSE:
+                return flip(mirror(transpose(packedBoard)));
+            default:
+                return packedBoard;
+        }
+    }
+
+    /**
+     * Transforms a move, so that moving the transformed board that way
+     * matches moving the original board in the given direction
+     *
+     * @param direction may be null
+     * @return
+     */
+    public Direction apply(Direction direction) {
+        return (direction == null) ? null : DIRECTIONS[directionMap[direction.ordinal()]];
+    }
+
+    /**
+     * Gets the symmetry undoing this one
+     *
+     * @return
+     */
+    public Symmetry inverse() {
+        switch (this) {
+            case ROTATE_90:
+                return ROTATE_270;
+            case ROTATE_270:
+                return ROTATE_90;
+            default:
+                return this;
+        }
+    }
+
+    /**
+     * Finds the symmetry mapping a packed board to its canonical form, the
+     * smallest of its eight images. Boards with a symmetry of their own
+     * reach it through several transforms, the first one is returned.
+     *
+     * @param packedBoard
+     * @return
+     */
+    public static Symmetry canonicalOf(long packedBoard) {
+        long mirrored = mirror(packedBoard);
+        long transposed = transpose(packedBoard);
+        long transposedMirrored = mirror(transposed);
+
+        Symmetry best = IDENTITY;
+        long bestBoard = packedBoard;
+
+        long image = transposedMirrored;
+        if (image < bestBoard) {
+            bestBoard = image;
+            best = ROTATE_90;
+        }
+        image = flip(mirrored);
+        if (image < bestBoard) {
+            bestBoard = image;
+            best = ROTATE_180;
+        }
+        image = flip(transposed);
+        if (image < bestBoard) {
+            bestBoard = image;
+            best = ROTATE_270;
+        }
+        if (mirrored < bestBoard) {
+            bestBoard = mirrored;
+            best = MIRROR;
+        }
+        image = flip(packedBoard);
+        if (image < bestBoard) {
+            bestBoard = image;
+            best = FLIP;
+        }
+        if (transposed < bestBoard) {
+            bestBoard = transposed;
+            best = TRANSPOSE;
+        }
+        if (flip(transposedMirrored) < bestBoard) {
+            best = ANTI_TRANSPOSE;
+        }
+
+        return best;
+    }
+
+    /**
+     * Gets the canonical form of a packed board
+     *
+     * @param packedBoard
+     * @return
+     */
+    public static long canonical(long packedBoard) {
+        long t = transpose(packedBoard);
+
+        long best = Math.min(packedBoard, mirror(packedBoard));
+        best = Math.min(best, Math.min(flip(packedBoard), flip(mirror(packedBoard))));
+        best = Math.min(best, Math.min(t, mirror(t)));
+        best = Math.min(best, Math.min(flip(t), flip(mirror(t))));
+
+        return best;
+    }
+
+    /**
+     * Reverses the cells of every row
+     */
+    private static long mirror(long x) {
+        return ((x & 0x000F000F000F000FL) << 12)
+                | ((x & 0x00F000F000F000F0L) << 4)
+                | ((x >>> 4) & 0x00F000F000F000F0L)
+                | ((x >>> 12) & 0x000F000F000F000FL);
+    }
+
+    /**
+     * Reverses the order of the rows
+     */
+    private static long flip(long x) {
+        return (x << 48)
+                | ((x & 0xFFFF0000L) << 16)
+                | ((x >>> 16) & 0xFFFF0000L)
+                | (x >>> 48);
+    }
+
+    /**
+     * Swaps cell (i, j) with cell (j, i)
+     */
+    private static long transpose(long x) {
+        long a1 = x & 0xF0F00F0FF0F00F0FL;
+        long a2 = x & 0x0000F0F00000F0F0L;
+        long a3 = x & 0x0F0F00000F0F0000L;
+        long a = a1 | (a2 << 12) | (a3 >>> 12);
+
+        long b1 = a & 0xFF00FF0000FF00FFL;
+        long b2 = a & 0x00FF00FF00000000L;
+        long b3 = a & 0x00000000FF00FF00L;
+        return b1 | (b2 >>> 24) | (b3 << 24);
+    }
+
+    /**
+     * Overloads the toString and returns the description of the symmetry.
+     * @return
+     */
+    @Override
+    public String toString() {
+        return description;
+    }
+}
@@ -0,0 +1,288 @@
+package com.kkmonlee.game;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Precomputed lookup tables saved to a file, so that a new JVM maps them
+ * instead of computing them again.
+ *
+ * The file is little-endian: a 16 byte header (magic, version, section
+ * count, reserved), a 32 byte directory entry per section (name in 16
+ * bytes of ASCII, fingerprint, offset, length) and the sections, each
+ * aligned on 8 bytes. A section's fingerprint identifies the code and
+ * parameters that computed it, so one name can hold the tables of several
+ * parameter sets, and a consumer that finds no section with its own
+ * fingerprint computes its tables as if there was no snapshot. A stale
+ * snapshot is therefore slower, never wrong.
+ *
+ * The default snapshot is the file named by the com.kkmonlee.tables
+ * system property, or tables.snapshot in the working directory, mapped the
+ * first time a table is needed. Startup writes it.
+ */
+public final class TableSnapshot {
+
+    // "TBLS" in ASCII
+    public static final int MAGIC = 0x54424C53;
+
+    // Version of the file layout
+    public static final int VERSION = 1;
+
+    // Bytes of the header
+    public static final int HEADER_BYTES = 16;
+
+    // Bytes of a directory entry
+    public static final int ENTRY_BYTES = 32;
+
+    // System property naming the default snapshot
+    public static final String FILE_PROPERTY = "com.kkmonlee.tables";
+
+    // Default snapshot when the property is not set
+    public static final Path DEFAULT_FILE = Paths.get("tables.snapshot");
+
+    // Bytes of a section name
+    private static final int NAME_BYTES = 16;
+
+    // Snapshot without sections
+    private static final TableSnapshot EMPTY = new TableSnapshot(ByteBuffer.allocate(0), 0);
+
+    // Mapped file
+    private final ByteBuffer buffer;
+
+    // Number of sections
+    private final int sections;
+
+    private TableSnapshot(ByteBuffer buffer, int sections) {
+        this.buffer = buffer.order(ByteOrder.LITTLE_ENDIAN);
+        this.sections = sections;
+    }
+
+    /**
+     * Gets the default snapshot, mapping it on the first call
+     *
+     * @return a snapshot without sections if the file does not exist or
+     * cannot be read
+     */
+    public static TableSnapshot getDefault() {
+        return DefaultHolder.SNAPSHOT;
+    }
+
+    /**
+     * Gets the file of the default snapshot
+     */
+    public static Path getDefaultFile() {
+        String file = System.getProperty(FILE_PROPERTY);
+        return (file == null) ? DEFAULT_FILE : Paths.get(file);
+    }
+
+    /**
+     * Maps a snapshot file
+     *
+     * @param file
+     * @return
+     * @throws IOException if the file cannot be read or is not a snapshot
+     */
+    public static TableSnapshot open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_BYTES || size > Integer.MAX_VALUE) {
+                throw new IOException("Not a table snapshot: " + file);
+            }
+
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size).order(ByteOrder.LITTLE_ENDIAN);
+            int sections = buffer.getInt(8);
+
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION || sections < 0
+                    || HEADER_BYTES + (long) sections * ENTRY_BYTES > size) {
+                throw new IOException("Not a table snapshot, or an unsupported version: " + file);
+            }
+
+            for (int k = 0; k < sections; k++) {
+                int entry = HEADER_BYTES + k * ENTRY_BYTES;
+                int offset = buffer.getInt(entry + NAME_BYTES + 8);
+                int length = buffer.getInt(entry + NAME_BYTES + 12);
+                if (offset < 0 || length < 0 || (long) offset + length > size) {
+                    throw new IOException("Corrupt table snapshot: " + file);
+                }
+            }
+
+            return new TableSnapshot(buffer, sections);
+        }
+    }
+
+    /**
+     * Gets the number of sections
+     */
+    public int getSectionCount() {
+        return sections;
+    }
+
+    /**
+     * Finds a section
+     *
+     * @param name
+     * @param fingerprint identifies the code and parameters the caller
+     * would compute the tables with
+     * @return the little-endian section, or null if there is none with
+     * that name and fingerprint
+     */
+    public ByteBuffer section(String name, long fingerprint) {
+        byte[] key = nameBytes(name);
+        byte[] candidate = new byte[NAME_BYTES];
+
+        for (int k = 0; k < sections; k++) {
+            int entry = HEADER_BYTES + k * ENTRY_BYTES;
+
+            ByteBuffer names = buffer.duplicate();
+            names.position(entry);
+            names.get(candidate);
+
+            if (Arrays.equals(candidate, key) && buffer.getLong(entry + NAME_BYTES) == fingerprint) {
+                ByteBuffer section = buffer.duplicate();
+                int offset = buffer.getInt(entry + NAME_BYTES + 8);
+                section.position(offset);
+                section.limit(offset + buffer.getInt(entry + NAME_BYTES + 12));
+                return section.slice().order(ByteOrder.LITTLE_ENDIAN);
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Encodes a section name
+     */
+    private static byte[] nameBytes(String name) {
+        byte[] bytes = name.getBytes(StandardCharsets.US_ASCII);
+        if (bytes.length > NAME_BYTES) {
+            throw new IllegalArgumentException("Section names have at most " + NAME_BYTES + " characters: " + name);
+        }
+
+        return Arrays.copyOf(bytes, NAME_BYTES);
+    }
+
+    /**
+     * Maps the default snapshot on first use
+     */
+    private static class DefaultHolder {
+
+        // Default snapshot
+        private static final TableSnapshot SNAPSHOT = load();
+
+        private static TableSnapshot load() {
+            Path file = getDefaultFile();
+            if (!Files.exists(file)) {
+                return EMPTY;
+            }
+
+            try {
+                return open(file);
+            }
+            catch (IOException ex) {
+                System.err.println(ex);
+                return EMPTY;
+            }
+        }
+    }
+
+    /**
+     * Collects sections and writes them as a snapshot
+     */
+    public static class Builder {
+
+        // Names of the sections
+        private final List<byte[]> names = new ArrayList<>();
+
+        // Fingerprints of the sections
+        private final List<Long> fingerprints = new ArrayList<>();
+
+        // Contents of the sections
+        private final List<ByteBuffer> contents = new ArrayList<>();
+
+        /**
+         * Allocates a little-endian buffer to fill and add
+         *
+         * @param bytes
+         * @return
+         */
+        public static ByteBuffer allocate(int bytes) {
+            return ByteBuffer.allocate(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        /**
+         * Adds a section
+         *
+         * @param name at most 16 ASCII characters
+         * @param fingerprint
+         * @param content the bytes between position and limit
+         * @return this builder
+         */
+        public Builder add(String name, long fingerprint, ByteBuffer content) {
+            names.add(nameBytes(name));
+            fingerprints.add(fingerprint);
+            contents.add(content.slice());
+            return this;
+        }
+
+        /**
+         * Writes the snapshot, through a temporary file so that a reader
+         * never maps half a snapshot
+         *
+         * @param file
+         * @throws IOException
+         */
+        public void write(Path file) throws IOException {
+            int sections = contents.size();
+            int[] offsets = new int[sections];
+
+            long size = HEADER_BYTES + (long) sections * ENTRY_BYTES;
+            for (int k = 0; k < sections; k++) {
+                size = (size + 7) & ~7L;
+                offsets[k] = (int) size;
+                size += contents.get(k).remaining();
+            }
+            if (size > Integer.MAX_VALUE) {
+                throw new IllegalStateException("Table snapshot too large: " + size + " bytes");
+            }
+
+            ByteBuffer buffer = ByteBuffer.allocate((int) size).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(MAGIC);
+            buffer.putInt(VERSION);
+            buffer.putInt(sections);
+            buffer.putInt(0);
+
+            for (int k = 0; k < sections; k++) {
+                buffer.put(names.get(k));
+                buffer.putLong(fingerprints.get(k));
+                buffer.putInt(offsets[k]);
+                buffer.putInt(contents.get(k).remaining());
+            }
+            for (int k = 0; k < sections; k++) {
+                buffer.position(offsets[k]);
+                buffer.put(contents.get(k).duplicate());
+            }
+
+            buffer.rewind();
+
+            Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+            try (FileChannel out = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+            }
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+}
@@ -0,0 +1,600 @@
+package com.kkmonlee.game;
+
+import com.kkmonlee.dataobj.ActionStatus;
+import com.kkmonlee.dataobj.Direction;
+
+import java.util.Random;
+
+/**
+ * Board of any size from 2x2 to 8x8, packed one int per row.
+ *
+ * Cells hold tile exponents in 4 bits as in BitBoard, leftmost cell of a
+ * row in the lowest nibble, and are numbered by row as in Board. Rows and
+ * columns are slid by line rules specialised per size: boards up to 5x5
+ * look lines up in tables of 16^size entries, built the first time a
+ * board of that size is created; wider lines are too many to tabulate and
+ * are slid nibble by nibble. 4x4 games should keep using BitBoard, which
+ * also moves columns with a single lookup.
+ *
+ * Spawns draw from the random generator like Board and BitBoard do, so the
+ * same seed and moves replay the same game on all three, as long as no
+ * two 32768 tiles meet. Like BitBoard, a cell holds at most rank 15
+ * (BitBoard.MAX_RANK), so two 32768 tiles never merge here, while Board
+ * merges them into 65536. Boards of 6x6 and larger can reach that tile.
+ */
+public class WideBitBoard implements Cloneable {
+
+    // Smallest board size
+    public static final int MIN_SIZE = 2;
+
+    // Largest board size, a row of 8 nibbles fills an int
+    public static final int MAX_SIZE = 8;
+
+    // Largest size whose lines are looked up in tables
+    private static final int MAX_TABLE_SIZE = 5;
+
+    // Line rules of each size, created on first use
+    private static final LineRules[] RULES = new LineRules[MAX_SIZE + 1];
+
+    // Number of cells per row and column
+    private final int size;
+
+    // Line rules of this size
+    private final LineRules rules;
+
+    // Lowest bit of every nibble of a row
+    private final int nibbleLowBits;
+
+    // Packed rows
+    private int[] rows;
+
+    // Score
+    private int score = 0;
+
+    // Whether the last move() changed the board
+    private boolean lastMoveChanged = false;
+
+    // Random generator used in creation of random cells
+    private final Random randomGenerator;
+
+    /**
+     * Constructor
+     *
+     * Initialises the board randomly
+     *
+     * @param size
+     */
+    public WideBitBoard(int size) {
+        this(size, new SplitMixRandom());
+    }
+
+    /**
+     * Constructor
+     *
+     * Initialises the board with the given random generator, so a seeded
+     * generator replays the same game
+     *
+     * @param size
+     * @param randomGenerator
+     */
+    public WideBitBoard(int size, Random randomGenerator) {
+        this.size = checkSize(size);
+        this.rules = rulesFor(size);
+        this.nibbleLowBits = (int) (0x1111111111111111L >>> (64 - 4 * size));
+        this.rows = new int[size];
+        this.randomGenerator = randomGenerator;
+
+        addRandomCell();
+        addRandomCell();
+    }
+
+    /**
+     * Constructor
+     *
+     * Copies the cells, score and random generator of a Board of any size
+     *
+     * @param theBoard
+     */
+    public WideBitBoard(Board theBoard) {
+        this.size = checkSize(theBoard.getSize());
+        this.rules = rulesFor(size);
+        this.nibbleLowBits = (int) (0x1111111111111111L >>> (64 - 4 * size));
+        this.rows = new int[size];
+        this.score = theBoard.getScore();
+        this.randomGenerator = theBoard.getRandomGenerator();
+
+        int[][] boardArray = theBoard.getBoardArray();
+        for (int i = 0; i < size; i++) {
+            for (int j = 0; j < size; j++) {
+                int value = boardArray[i][j];
+                rows[i] |= ((value == 0) ? 0 : Integer.numberOfTrailingZeros(value)) << (4 * j);
+            }
+        }
+    }
+
+    /**
+     * Clone
+     *
+     * @return
+     * @throws CloneNotSupportedException
+     */
+    @Override
+    public Object clone() throws CloneNotSupportedException {
+        WideBitBoard copy = (WideBitBoard) super.clone();
+        copy.rows = rows.clone();
+        return copy;
+    }
+
+    /**
+     * Gets the number of cells per row and column
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Gets score attribute
+     */
+    public int getScore() {
+        return score;
+    }
+
+    /**
+     * Gets row i, leftmost cell in the lowest nibble
+     *
+     * @param i
+     * @return
+     */
+    public int getRow(int i) {
+        return rows[i];
+    }
+
+    /**
+     * Gets BoardArray
+     */
+    public int[][] getBoardArray() {
+        int[][] boardArray = new int[size][size];
+
+        for (int i = 0; i < size; i++) {
+            for (int j = 0; j < size; j++) {
+                int rank = (rows[i] >>> (4 * j)) & 0xF;
+                boardArray[i][j] = (rank == 0) ? 0 : 1 << rank;
+            }
+        }
+
+        return boardArray;
+    }
+
+    /**
+     * Gets RandomGenerator field
+     */
+    public Random getRandomGenerator() {
+        return randomGenerator;
+    }
+
+    /**
+     * Overwrites cells and score with the ones of another board of the same
+     * size, used to reset scratch boards without allocating
+     *
+     * @param other
+     */
+    public void copyFrom(WideBitBoard other) {
+        if (other.size != size) {
+            throw new IllegalArgumentException("Board sizes differ: " + other.size + " and " + size);
+        }
+
+        System.arraycopy(other.rows, 0, rows, 0, size);
+        score = other.score;
+    }
+
+    /**
+     * Checks whether another board has the same cells
+     *
+     * @param other
+     * @return
+     */
+    public boolean sameCells(WideBitBoard other) {
+        if (other.size != size) {
+            return false;
+        }
+
+        for (int i = 0; i < size; i++) {
+            if (rows[i] != other.rows[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Performs one move (up, down, left, or right)
+     *
+     * @param direction
+     */
+    public int move(Direction direction) {
+        int points = 0;
+        int changed = 0;
+
+        if (direction == Direction.LEFT || direction == Direction.RIGHT) {
+            boolean towardsFirst = direction == Direction.LEFT;
+
+            for (int i = 0; i < size; i++) {
+                int row = rows[i];
+                int change = rules.slide(row, towardsFirst);
+
+                rows[i] = row ^ change;
+                points += rules.score(row);
+                changed |= change;
+            }
+        }
+        else {
+            boolean towardsFirst = direction == Direction.UP;
+
+            for (int j = 0; j < size; j++) {
+                int shift = 4 * j;
+                int column = column(shift);
+                int change = rules.slide(column, towardsFirst);
+
+                if (change != 0) {
+                    for (int i = 0; i < size; i++) {
+                        rows[i] ^= ((change >>> (4 * i)) & 0xF) << shift;
+                    }
+                    points += rules.score(column);
+                    changed |= change;
+                }
+            }
+        }
+
+        score += points;
+        lastMoveChanged = changed != 0;
+
+        return points;
+    }
+
+    /**
+     * Checks whether a move changes the board, without playing it
+     *
+     * @param direction
+     * @return
+     */
+    public boolean canMove(Direction direction) {
+        boolean towardsFirst = direction == Direction.LEFT || direction == Direction.UP;
+        boolean horizontal = direction == Direction.LEFT || direction == Direction.RIGHT;
+
+        for (int k = 0; k < size; k++) {
+            int line = horizontal ? rows[k] : column(4 * k);
+            if (rules.slide(line, towardsFirst) != 0) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Counts number of empty cells
+     */
+    public int getNumberOfEmptyCells() {
+        int empty = 0;
+
+        for (int i = 0; i < size; i++) {
+            empty += size - Integer.bitCount(occupiedCells(rows[i]));
+        }
+
+        return empty;
+    }
+
+    /**
+     * Returns the largest exponent on the board
+     */
+    public int maxRank() {
+        int max = 0;
+
+        for (int i = 0; i < size; i++) {
+            for (int row = rows[i]; row != 0; row >>>= 4) {
+                max = Math.max(max, row & 0xF);
+            }
+        }
+
+        return max;
+    }
+
+    /**
+     * Checks if any cell has value equal or larger than TARGET_POINTS
+     */
+    public boolean hasWon() {
+        return score >= Board.MINIMUM_WIN_SCORE && (1 << maxRank()) >= Board.TARGET_POINTS;
+    }
+
+    /**
+     * Checks whether game has ended: a full board can only move by merging,
+     * so only neighbours are compared
+     */
+    public boolean isGameTerminated() {
+        if (hasWon() || getNumberOfEmptyCells() > 0) {
+            return false;
+        }
+
+        for (int i = 0; i < size; i++) {
+            int row = rows[i];
+            int below = (i + 1 < size) ? rows[i + 1] : 0;
+
+            for (int j = 0; j < size; j++) {
+                int rank = (row >>> (4 * j)) & 0xF;
+                if (rank == BitBoard.MAX_RANK) {
+                    continue;
+                }
+                if ((j + 1 < size && ((row >>> (4 * j + 4)) & 0xF) == rank)
+                        || (i + 1 < size && ((below >>> (4 * j)) & 0xF) == rank)) {
+                    return false;
+                }
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Performs an up, right, down, left move
+     */
+    public ActionStatus action(Direction direction) {
+        ActionStatus result = ActionStatus.CONTINUE;
+
+        int newPoints = move(direction);
+
+        boolean newCellAdded = false;
+
+        if (lastMoveChanged) {
+            newCellAdded = addRandomCell();
+        }
+
+        if (newPoints == 0 && newCellAdded == false) {
+            if (isGameTerminated()) {
+                result = ActionStatus.NO_MORE_MOVES;
+            }
+            else {
+                result = ActionStatus.INVALID_MOVE;
+            }
+        }
+        else {
+            if (newPoints >= Board.TARGET_POINTS) {
+                result = ActionStatus.WIN;
+            }
+            else {
+                if (isGameTerminated()) {
+                    result = ActionStatus.NO_MORE_MOVES;
+                }
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Sets value to an empty cell
+     */
+    public void setEmptyCell(int i, int j, int value) {
+        int shift = 4 * j;
+
+        if (((rows[i] >>> shift) & 0xF) == 0 && value != 0) {
+            rows[i] |= Integer.numberOfTrailingZeros(value) << shift;
+        }
+    }
+
+    /**
+     * Creates a random cell
+     */
+    private boolean addRandomCell() {
+        int emptyCells = getNumberOfEmptyCells();
+
+        if (emptyCells == 0) {
+            return false;
+        }
+
+        int target = randomGenerator.nextInt(emptyCells);
+        int randomRank = (randomGenerator.nextDouble() < Board.PROBABILITY_OF_TWO) ? 1 : 2;
+
+        for (int i = 0; ; i++) {
+            int empty = ~occupiedCells(rows[i]) & nibbleLowBits;
+            int count = Integer.bitCount(empty);
+
+            if (target < count) {
+                for (; target > 0; target--) {
+                    empty &= empty - 1;
+                }
+                rows[i] |= randomRank << Integer.numberOfTrailingZeros(empty);
+                return true;
+            }
+            target -= count;
+        }
+    }
+
+    /**
+     * Gathers the column starting at a nibble offset into a line, top cell
+     * first
+     */
+    private int column(int shift) {
+        int column = 0;
+
+        for (int i = 0; i < size; i++) {
+            column |= ((rows[i] >>> shift) & 0xF) << (4 * i);
+        }
+
+        return column;
+    }
+
+    /**
+     * Sets the lowest bit of every nibble of a row holding a tile
+     */
+    private int occupiedCells(int row) {
+        int occupied = row | (row >>> 1);
+        occupied |= occupied >>> 2;
+
+        return occupied & nibbleLowBits;
+    }
+
+    /**
+     * Validates a board size
+     */
+    private static int checkSize(int size) {
+        if (size < MIN_SIZE || size > MAX_SIZE) {
+            throw new IllegalArgumentException("Board size must be between " + MIN_SIZE + " and " + MAX_SIZE + ": " + size);
+        }
+
+        return size;
+    }
+
+    /**
+     * Gets the line rules of a size, creating them on first use
+     */
+    private static synchronized LineRules rulesFor(int size) {
+        if (RULES[size] == null) {
+            RULES[size] = (size <= MAX_TABLE_SIZE) ? new TableLineRules(size) : new LineRules(size);
+        }
+
+        return RULES[size];
+    }
+
+    /**
+     * Slides lines of one size nibble by nibble
+     */
+    private static class LineRules {
+
+        // Number of cells of a line
+        final int size;
+
+        /**
+         * Constructor
+         *
+         * @param size
+         */
+        LineRules(int size) {
+            this.size = size;
+        }
+
+        /**
+         * Gets the change applied to a line when it slides
+         *
+         * @param line
+         * @param towardsFirst true to slide towards the lowest nibble
+         * @return the bits to flip, 0 if the line does not change
+         */
+        int slide(int line, boolean towardsFirst) {
+            return line ^ (towardsFirst ? slideTowardsFirst(line) : reverse(slideTowardsFirst(reverse(line))));
+        }
+
+        /**
+         * Points gained by sliding a line, the same in both directions
+         *
+         * @param line
+         * @return
+         */
+        int score(int line) {
+            int points = 0;
+            int previous = 0;
+
+            for (int k = 0; k < size; k++) {
+                int rank = (line >>> (4 * k)) & 0xF;
+                if (rank == 0) {
+                    continue;
+                }
+
+                if (previous == rank && rank < BitBoard.MAX_RANK) {
+                    points += 1 << (rank + 1);
+                    previous = 0;
+                }
+                else {
+                    previous = rank;
+                }
+            }
+
+            return points;
+        }
+
+        /**
+         * Slides a line towards its lowest nibble, merging equal tiles once
+         */
+        final int slideTowardsFirst(int line) {
+            int result = 0;
+            int target = 0;
+            int last = 0;
+
+            for (int k = 0; k < size; k++) {
+                int rank = (line >>> (4 * k)) & 0xF;
+                if (rank == 0) {
+                    continue;
+                }
+
+                if (last == rank && rank < BitBoard.MAX_RANK) {
+                    result += 1 << (4 * (target - 1));
+                    last = 0;
+                }
+                else {
+                    result |= rank << (4 * target++);
+                    last = rank;
+                }
+            }
+
+            return result;
+        }
+
+        /**
+         * Reverses the order of the cells of a line
+         */
+        final int reverse(int line) {
+            int reversed = 0;
+
+            for (int k = 0; k < size; k++) {
+                reversed |= ((line >>> (4 * k)) & 0xF) << (4 * (size - k - 1));
+            }
+
+            return reversed;
+        }
+    }
+
+    /**
+     * Looks lines of one size up in precomputed tables
+     */
+    private static class TableLineRules extends LineRules {
+
+        // Change applied to a line when it slides towards its first cell, indexed by the line
+        private final int[] firstTable;
+
+        // Change applied to a line when it slides towards its last cell, indexed by the line
+        private final int[] lastTable;
+
+        // Points gained by merging a line
+        private final int[] scoreTable;
+
+        /**
+         * Constructor
+         *
+         * @param size
+         */
+        TableLineRules(int size) {
+            super(size);
+
+            int lines = 1 << (4 * size);
+            firstTable = new int[lines];
+            lastTable = new int[lines];
+            scoreTable = new int[lines];
+
+            for (int line = 0; line < lines; line++) {
+                firstTable[line] = super.slide(line, true);
+                lastTable[line] = super.slide(line, false);
+                scoreTable[line] = super.score(line);
+            }
+        }
+
+        @Override
+        int slide(int line, boolean towardsFirst) {
+            return towardsFirst ? firstTable[line] : lastTable[line];
+        }
+
+        @Override
+        int score(int line) {
+            return scoreTable[line];
+        }
+    }
+}
@@ -0,0 +1,542 @@
+package com.kkmonlee.server;
+
+import com.kkmonlee.ai.AISolver;
+import com.kkmonlee.ai.CancellationToken;
+import com.kkmonlee.ai.SearchResult;
+import com.kkmonlee.ai.SearchStats;
+import com.kkmonlee.ai.SolverMetrics;
+import com.kkmonlee.ai.TranspositionTable;
+import com.kkmonlee.dataobj.Direction;
+import com.kkmonlee.game.BitBoard;
+import com.kkmonlee.game.SplitMixRandom;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import javax.management.JMException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hosts many games over HTTP.
+ *
+ * Requests are parsed and answered on virtual threads, one per request,
+ * when the JVM has them, else on a small pool of I/O threads. Hints are
+ * handed to a separate, bounded pool of search threads and the HTTP
+ * exchange is completed from there, so a deep search never holds an I/O
+ * thread; when the hint queue is full the request fails at once with 503.
+ * A move cancels the hints still searching the previous board, they then
+ * fail with 409.
+ *
+ * Endpoints, all answering JSON:
+ *   POST   /games[?seed=N]                       starts a game
+ *   GET    /games/{id}                           state of a game
+ *   POST   /games/{id}/move?direction=UP         plays a move
+ *   GET    /games/{id}/hint[?budgetMs=N|depth=N] best move for the current board
+ *   DELETE /games/{id}                           ends a game
+ *   GET    /stats                                server and search counters
+ */
+public class GameServer {
+
+    // Port used when none is given
+    public static final int DEFAULT_PORT = 2048;
+
+    // Time given to a hint when the request does not say
+    public static final Duration DEFAULT_HINT_BUDGET = Duration.ofMillis(100);
+
+    // Longest hint budget a request may ask for
+    private static final long MAX_HINT_BUDGET_MS = 5000;
+
+    // Deepest fixed-depth hint a request may ask for
+    private static final int MAX_HINT_DEPTH = 10;
+
+    // Sessions without requests for this long are dropped
+    private static final long SESSION_TIMEOUT_NANOS = TimeUnit.MINUTES.toNanos(30);
+
+    // Memory cap of the transposition table of each search thread
+    private static final int TABLE_SIZE_MB = 8;
+
+    static {
+        // Small answers otherwise wait for the client's delayed ACK, about 40 ms each
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+    }
+
+    // Accepts the connections
+    private final HttpServer server;
+
+    // Parses requests and answers everything but hints
+    private final ExecutorService ioExecutor;
+
+    // Whether ioExecutor runs requests on virtual threads
+    private final boolean virtualThreads;
+
+    // Runs the hint searches, with a bounded queue
+    private final ThreadPoolExecutor hintExecutor;
+
+    // Drops idle sessions
+    private final ScheduledExecutorService reaper;
+
+    // Hosted games by identifier
+    private final Map<String, GameSession> sessions = new ConcurrentHashMap<>();
+
+    // Source of session identifiers
+    private final AtomicLong nextSessionId = new AtomicLong(1);
+
+    // One solver per search thread
+    private final ThreadLocal<AISolver> solvers;
+
+    // Counters of every hint search
+    private final SolverMetrics metrics = new SolverMetrics();
+
+    // Hints turned away because the queue was full
+    private final AtomicLong rejectedHints = new AtomicLong();
+
+    // Hints cancelled before their search started
+    private final AtomicLong skippedHints = new AtomicLong();
+
+    // Hints cancelled while searching, and the nodes they had searched
+    private final AtomicLong cancelledHints = new AtomicLong();
+    private final AtomicLong cancelledNodes = new AtomicLong();
+
+    /**
+     * Constructor
+     *
+     * @param address address to listen on
+     * @param ioThreads threads parsing requests when virtual threads are not available
+     * @param hintThreads threads running hint searches
+     * @param hintQueue hints waiting for a search thread before new ones are rejected
+     * @throws IOException if the address cannot be bound
+     */
+    public GameServer(InetSocketAddress address, int ioThreads, int hintThreads, int hintQueue) throws IOException {
+        this.server = HttpServer.create(address, 0);
+        ExecutorService virtualExecutor = newVirtualThreadExecutor();
+        this.virtualThreads = virtualExecutor != null;
+        this.ioExecutor = virtualThreads ? virtualExecutor : Executors.newFixedThreadPool(ioThreads, daemonThreads("game-io"));
+        this.hintExecutor = new ThreadPoolExecutor(hintThreads, hintThreads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(hintQueue), daemonThreads("game-hint"));
+        this.reaper = Executors.newSingleThreadScheduledExecutor(daemonThreads("game-reaper"));
+        this.solvers = ThreadLocal.withInitial(() -> {
+            AISolver solver = new AISolver(new TranspositionTable(TABLE_SIZE_MB, TranspositionTable.ReplacementPolicy.AGE_THEN_DEPTH));
+            solver.setMetrics(metrics);
+            return solver;
+        });
+
+        server.createContext("/games", this::handleGames);
+        server.createContext("/stats", this::handleStats);
+        server.setExecutor(ioExecutor);
+    }
+
+    /**
+     * Runs a server from the command line until the process is stopped
+     *
+     * Options: --host NAME (loopback by default), --port N, --io-threads N,
+     * --hint-threads N and --hint-queue N.
+     *
+     * @param args
+     */
+    public static void main(String[] args) throws IOException, JMException {
+        String host = null;
+        int port = DEFAULT_PORT;
+        int ioThreads = 4;
+        int hintThreads = Runtime.getRuntime().availableProcessors();
+        int hintQueue = 256;
+
+        for (int k = 0; k + 1 < args.length; k += 2) {
+            String value = args[k + 1];
+
+            switch (args[k]) {
+                case "--host":
+                    host = value;
+                    break;
+                case "--port":
+                    port = Integer.parseInt(value);
+                    break;
+                case "--io-threads":
+                    ioThreads = Integer.parseInt(value);
+                    break;
+                case "--hint-threads":
+                    hintThreads = Integer.parseInt(value);
+                    break;
+                case "--hint-queue":
+                    hintQueue = Integer.parseInt(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + args[k]);
+            }
+        }
+
+        InetAddress address = (host == null) ? InetAddress.getLoopbackAddress() : InetAddress.getByName(host);
+        GameServer gameServer = new GameServer(new InetSocketAddress(address, port), ioThreads, hintThreads, hintQueue);
+        gameServer.getMetrics().registerMBean("GameServer");
+        gameServer.start();
+
+        System.out.println("Game server listening on http://" + address.getHostAddress() + ":" + gameServer.getPort() + "/games"
+                + (gameServer.isVirtualThreads() ? ", requests on virtual threads" : ""));
+    }
+
+    /**
+     * Starts accepting requests
+     */
+    public void start() {
+        server.start();
+
+        long period = SESSION_TIMEOUT_NANOS / 4;
+        reaper.scheduleAtFixedRate(this::dropIdleSessions, period, period, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Stops accepting requests, waiting up to a second for running exchanges
+     */
+    public void stop() {
+        server.stop(1);
+        reaper.shutdownNow();
+        hintExecutor.shutdownNow();
+        ioExecutor.shutdownNow();
+    }
+
+    /**
+     * Gets the port the server listens on, useful when bound to port 0
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Gets the counters of the hint searches
+     */
+    public SolverMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Checks whether requests run on virtual threads
+     */
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /**
+     * Gets the number of hosted games
+     */
+    public int getSessionCount() {
+        return sessions.size();
+    }
+
+    /**
+     * Routes /games requests
+     */
+    private void handleGames(HttpExchange exchange) throws IOException {
+        try {
+            String method = exchange.getRequestMethod();
+            String[] path = exchange.getRequestURI().getPath().split("/");
+            Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+
+            // path is {"", "games", id, action}
+            if (path.length == 2) {
+                if ("POST".equals(method)) {
+                    newGame(exchange, query);
+                }
+                else {
+                    sendError(exchange, 405, "Use POST to start a game");
+                }
+                return;
+            }
+
+            GameSession session = sessions.get(path[2]);
+            if (session == null) {
+                sendError(exchange, 404, "No game " + path[2]);
+                return;
+            }
+            session.touch();
+
+            String action = (path.length > 3) ? path[3] : "";
+
+            if (action.isEmpty() && "GET".equals(method)) {
+                send(exchange, 200, session.toJson());
+            }
+            else if (action.isEmpty() && "DELETE".equals(method)) {
+                sessions.remove(session.getId());
+                send(exchange, 204, null);
+            }
+            else if ("move".equals(action) && "POST".equals(method)) {
+                move(exchange, session, query);
+            }
+            else if ("hint".equals(action) && "GET".equals(method)) {
+                hint(exchange, session, query);
+            }
+            else {
+                sendError(exchange, 405, method + " not supported on " + exchange.getRequestURI().getPath());
+            }
+        }
+        catch (IllegalArgumentException ex) {
+            sendError(exchange, 400, ex.getMessage());
+        }
+        catch (RuntimeException ex) {
+            sendError(exchange, 500, String.valueOf(ex));
+        }
+    }
+
+    /**
+     * Starts a game, seeded from the request or at random
+     */
+    private void newGame(HttpExchange exchange, Map<String, String> query) throws IOException {
+        long seed = query.containsKey("seed") ? Long.parseLong(query.get("seed")) : SplitMixRandom.newSeed();
+        GameSession session = new GameSession(Long.toString(nextSessionId.getAndIncrement(), 36), seed);
+        sessions.put(session.getId(), session);
+
+        send(exchange, 201, session.toJson());
+    }
+
+    /**
+     * Plays a move
+     */
+    private void move(HttpExchange exchange, GameSession session, Map<String, String> query) throws IOException {
+        String name = query.get("direction");
+        if (name == null) {
+            throw new IllegalArgumentException("Missing direction");
+        }
+
+        Direction direction;
+        try {
+            direction = Direction.valueOf(name.toUpperCase(Locale.ROOT));
+        }
+        catch (IllegalArgumentException ex) {
+            throw new IllegalArgumentException("Unknown direction: " + name);
+        }
+
+        try {
+            session.move(direction);
+        }
+        catch (IllegalStateException ex) {
+            sendError(exchange, 409, ex.getMessage());
+            return;
+        }
+
+        send(exchange, 200, session.toJson());
+    }
+
+    /**
+     * Queues a hint search, the exchange is answered by the search thread
+     */
+    private void hint(HttpExchange exchange, GameSession session, Map<String, String> query) throws IOException {
+        if (session.isOver()) {
+            sendError(exchange, 409, "Game " + session.getId() + " is over");
+            return;
+        }
+
+        int depth = query.containsKey("depth") ? Integer.parseInt(query.get("depth")) : 0;
+        long budgetMs = query.containsKey("budgetMs") ? Long.parseLong(query.get("budgetMs")) : DEFAULT_HINT_BUDGET.toMillis();
+
+        if (depth < 0 || depth > MAX_HINT_DEPTH) {
+            throw new IllegalArgumentException("Depth must be between 0 (timed search) and " + MAX_HINT_DEPTH);
+        }
+        if (budgetMs < 1 || budgetMs > MAX_HINT_BUDGET_MS) {
+            throw new IllegalArgumentException("Budget must be between 1 and " + MAX_HINT_BUDGET_MS + " ms");
+        }
+
+        BitBoard snapshot;
+        int moves;
+        CancellationToken token;
+        synchronized (session) {
+            snapshot = session.snapshot();
+            moves = session.getMoves();
+            token = session.getHintToken();
+        }
+
+        long queuedAt = System.nanoTime();
+
+        try {
+            hintExecutor.execute(() -> {
+                try {
+                    long queuedNanos = System.nanoTime() - queuedAt;
+                    if (token.isCancelled()) {
+                        skippedHints.incrementAndGet();
+                        sendError(exchange, 409, "Game " + session.getId() + " moved before the hint started");
+                        return;
+                    }
+
+                    AISolver solver = solvers.get();
+                    Direction direction;
+                    SearchStats stats;
+
+                    solver.setCancellation(token);
+                    try {
+                        if (depth > 0) {
+                            direction = solver.getBestMove(snapshot, depth);
+                            stats = solver.getLastSearchStats();
+                        }
+                        else {
+                            SearchResult result = solver.getBestMove(snapshot, Duration.ofMillis(budgetMs));
+                            direction = result.getDirection();
+                            stats = result.getStats();
+                        }
+                    }
+                    finally {
+                        solver.setCancellation(null);
+                    }
+
+                    if (stats.isCancelled()) {
+                        cancelledHints.incrementAndGet();
+                        cancelledNodes.addAndGet(stats.getNodes());
+                        sendError(exchange, 409, "Game " + session.getId() + " moved during the hint");
+                        return;
+                    }
+
+                    send(exchange, 200, "{\"id\":\"" + session.getId()
+                            + "\",\"moves\":" + moves
+                            + ",\"direction\":" + (direction == null ? "null" : "\"" + direction.name() + "\"")
+                            + ",\"depth\":" + stats.getDepth()
+                            + ",\"nodes\":" + stats.getNodes()
+                            + ",\"searchMs\":" + stats.getElapsedNanos() / 1000000
+                            + ",\"queuedMs\":" + queuedNanos / 1000000 + "}");
+                }
+                catch (IOException ex) {
+                    // The client went away, nothing left to answer
+                }
+                catch (RuntimeException ex) {
+                    sendErrorQuietly(exchange, 500, String.valueOf(ex));
+                }
+            });
+        }
+        catch (RejectedExecutionException ex) {
+            rejectedHints.incrementAndGet();
+            sendError(exchange, 503, "Too many hints queued, retry later");
+        }
+    }
+
+    /**
+     * Answers /stats
+     */
+    private void handleStats(HttpExchange exchange) throws IOException {
+        send(exchange, 200, String.format(Locale.ROOT,
+                "{\"sessions\":%d,\"hintsQueued\":%d,\"hintsRunning\":%d,\"hintsRejected\":%d,"
+                        + "\"hintsSkipped\":%d,\"hintsCancelled\":%d,\"cancelledNodes\":%d,"
+                        + "\"hints\":%d,\"hintMeanMs\":%.3f,\"hintP50Ms\":%.3f,\"hintP99Ms\":%.3f,\"nodes\":%d}",
+                sessions.size(), hintExecutor.getQueue().size(), hintExecutor.getActiveCount(), rejectedHints.get(),
+                skippedHints.get(), cancelledHints.get(), cancelledNodes.get(),
+                metrics.getSearches(), metrics.getMeanLatencyMillis(), metrics.getLatencyP50Millis(),
+                metrics.getLatencyP99Millis(), metrics.getNodes()));
+    }
+
+    /**
+     * Drops the sessions idle for longer than the timeout
+     */
+    private void dropIdleSessions() {
+        long now = System.nanoTime();
+        sessions.values().removeIf(session -> now - session.getLastAccess() > SESSION_TIMEOUT_NANOS);
+    }
+
+    /**
+     * Sends a JSON body, or no body when it is null, and completes the exchange
+     */
+    private static void send(HttpExchange exchange, int status, String json) throws IOException {
+        try {
+            if (json == null) {
+                exchange.sendResponseHeaders(status, -1);
+                return;
+            }
+
+            byte[] body = json.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+            exchange.sendResponseHeaders(status, body.length);
+
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+        finally {
+            exchange.close();
+        }
+    }
+
+    private static void sendError(HttpExchange exchange, int status, String message) throws IOException {
+        send(exchange, status, "{\"error\":\"" + message.replace("\\", "\\\\").replace("\"", "\\\"") + "\"}");
+    }
+
+    private static void sendErrorQuietly(HttpExchange exchange, int status, String message) {
+        try {
+            sendError(exchange, status, message);
+        }
+        catch (IOException ex) {
+            // The client went away, nothing left to answer
+        }
+    }
+
+    /**
+     * Splits a raw query string into decoded parameters
+     */
+    private static Map<String, String> parseQuery(String rawQuery) {
+        Map<String, String> query = new HashMap<>();
+        if (rawQuery == null || rawQuery.isEmpty()) {
+            return query;
+        }
+
+        try {
+            for (String parameter : rawQuery.split("&")) {
+                int equals = parameter.indexOf('=');
+                if (equals < 0) {
+                    query.put(URLDecoder.decode(parameter, "UTF-8"), "");
+                }
+                else {
+                    query.put(URLDecoder.decode(parameter.substring(0, equals), "UTF-8"),
+                            URLDecoder.decode(parameter.substring(equals + 1), "UTF-8"));
+                }
+            }
+        }
+        catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+
+        return query;
+    }
+
+    /**
+     * Creates an executor starting a virtual thread per task, looked up by
+     * reflection since the code targets Java 8
+     *
+     * @return the executor, or null when the JVM has no virtual threads
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        }
+        catch (ReflectiveOperationException | UnsupportedOperationException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Names the threads of a pool and lets the JVM exit while they run
+     */
+    private static ThreadFactory daemonThreads(String name) {
+        AtomicLong count = new AtomicLong();
+
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -0,0 +1,186 @@
+package com.kkmonlee.server;
+
+import com.kkmonlee.ai.CancellationToken;
+import com.kkmonlee.dataobj.ActionStatus;
+import com.kkmonlee.dataobj.Direction;
+import com.kkmonlee.game.BitBoard;
+import com.kkmonlee.game.Board;
+import com.kkmonlee.game.MoveLog;
+
+/**
+ * One game hosted by the server.
+ *
+ * Requests of the same session may arrive on several I/O threads, so every
+ * access to the board goes through the session lock. Hints never hold it
+ * while searching: they search a BitBoard snapshot taken under the lock,
+ * with the token of that board. Any action that changes the board cancels
+ * the token, so searches for a position the player already left stop.
+ */
+public class GameSession {
+
+    // Identifier used in the URLs
+    private final String id;
+
+    // Seed of the board's random generator
+    private final long seed;
+
+    // The game
+    private final Board board;
+
+    // Result of the last move
+    private ActionStatus status = ActionStatus.CONTINUE;
+
+    // Seed and moves of the game, enough to replay it
+    private final MoveLog moveLog;
+
+    // Token of the hints searching the current board, null until one is asked for
+    private CancellationToken hintToken = null;
+
+    // System.nanoTime() of the last request
+    private volatile long lastAccess = System.nanoTime();
+
+    /**
+     * Constructor
+     *
+     * @param id
+     * @param seed
+     */
+    public GameSession(String id, long seed) {
+        this.id = id;
+        this.seed = seed;
+        this.moveLog = new MoveLog(seed);
+        this.board = moveLog.newBoard();
+        this.board.addListener((theBoard, direction, result) -> {
+            if (result != ActionStatus.INVALID_MOVE) {
+                cancelHints();
+            }
+        });
+    }
+
+    /**
+     * Gets the session identifier
+     */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * Gets the seed of the game
+     */
+    public long getSeed() {
+        return seed;
+    }
+
+    /**
+     * Gets System.nanoTime() of the last request
+     */
+    public long getLastAccess() {
+        return lastAccess;
+    }
+
+    /**
+     * Marks the session as used
+     */
+    public void touch() {
+        lastAccess = System.nanoTime();
+    }
+
+    /**
+     * Checks whether the game ended
+     */
+    public synchronized boolean isOver() {
+        return status == ActionStatus.WIN || status == ActionStatus.NO_MORE_MOVES;
+    }
+
+    /**
+     * Plays a move
+     *
+     * @param direction
+     * @return the result of the move
+     * @throws IllegalStateException if the game already ended
+     */
+    public synchronized ActionStatus move(Direction direction) {
+        if (isOver()) {
+            throw new IllegalStateException("Game " + id + " is over");
+        }
+
+        try {
+            status = board.action(direction);
+        }
+        catch (CloneNotSupportedException ex) {
+            throw new IllegalStateException(ex);
+        }
+
+        return status;
+    }
+
+    /**
+     * Gets the token of the hints searching the current board
+     */
+    public synchronized CancellationToken getHintToken() {
+        if (hintToken == null) {
+            hintToken = new CancellationToken();
+        }
+        return hintToken;
+    }
+
+    /**
+     * Cancels the hints searching the current board
+     */
+    public synchronized void cancelHints() {
+        if (hintToken != null) {
+            hintToken.cancel();
+            hintToken = null;
+        }
+    }
+
+    /**
+     * Copies the board for a search
+     */
+    public synchronized BitBoard snapshot() {
+        return new BitBoard(board);
+    }
+
+    /**
+     * Gets the number of moves that changed the board
+     */
+    public synchronized int getMoves() {
+        return moveLog.size();
+    }
+
+    /**
+     * Gets the text form of the game's move log, see MoveLog.parse()
+     */
+    public synchronized String getMoveLog() {
+        return moveLog.toString();
+    }
+
+    /**
+     * Writes the state of the game as a JSON object
+     */
+    public synchronized String toJson() {
+        StringBuilder json = new StringBuilder(200 + moveLog.size());
+        json.append("{\"id\":\"").append(id)
+                .append("\",\"seed\":").append(seed)
+                .append(",\"score\":").append(board.getScore())
+                .append(",\"moves\":").append(moveLog.size())
+                .append(",\"log\":\"").append(moveLog).append('"')
+                .append(",\"status\":\"").append(status.name())
+                .append("\",\"over\":").append(isOver())
+                .append(",\"board\":[");
+
+        int[][] boardArray = board.getBoardArray();
+        for (int i = 0; i < boardArray.length; i++) {
+            json.append(i == 0 ? "[" : ",[");
+            for (int j = 0; j < boardArray[i].length; j++) {
+                if (j > 0) {
+                    json.append(',');
+                }
+                json.append(boardArray[i][j]);
+            }
+            json.append(']');
+        }
+
+        return json.append("]}").toString();
+    }
+}
@@ -0,0 +1,347 @@
+package com.kkmonlee.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Plays many games at once against a game server on this machine.
+ *
+ * Every client starts a game and alternates hint and move requests,
+ * following the hint. A separate prober keeps reading the state of one
+ * game meanwhile: its latency shows whether running searches delay plain
+ * requests. Latency percentiles of each request type are printed at the
+ * end.
+ *
+ * Impatient clients do not wait for their hints: they ask for one, move
+ * right away and only then read the answer, which the server should have
+ * cancelled. The server's /stats then shows how many nodes were searched
+ * for nothing.
+ */
+public class LoadTest {
+
+    // Pause of the prober between two state requests, in milliseconds
+    private static final long PROBE_INTERVAL_MS = 10;
+
+    // Time an impatient client waits between asking for a hint and moving, in milliseconds
+    private static final long IMPATIENCE_MS = 2;
+
+    // Moves played in turn by impatient clients
+    private static final String[] IMPATIENT_MOVES = {"LEFT", "DOWN", "RIGHT", "DOWN"};
+
+    // Extracts a string field of a JSON answer
+    private static final Pattern STRING_FIELD = Pattern.compile("\"(id|direction)\":\"([^\"]*)\"");
+
+    /**
+     * Runs a load test from the command line
+     *
+     * Options: --url URL of a running server (an embedded server on a free
+     * port by default), --clients N, --moves N per game, --budget-ms N per
+     * hint, --hint-threads N for the embedded server and --impatient true
+     * to move without waiting for the hints.
+     *
+     * @param args
+     */
+    public static void main(String[] args) throws Exception {
+        String url = null;
+        int clients = 32;
+        int moves = 100;
+        int budgetMs = 20;
+        int hintThreads = Runtime.getRuntime().availableProcessors();
+        boolean impatient = false;
+
+        for (int k = 0; k + 1 < args.length; k += 2) {
+            String value = args[k + 1];
+
+            switch (args[k]) {
+                case "--url":
+                    url = value;
+                    break;
+                case "--clients":
+                    clients = Integer.parseInt(value);
+                    break;
+                case "--moves":
+                    moves = Integer.parseInt(value);
+                    break;
+                case "--budget-ms":
+                    budgetMs = Integer.parseInt(value);
+                    break;
+                case "--hint-threads":
+                    hintThreads = Integer.parseInt(value);
+                    break;
+                case "--impatient":
+                    impatient = Boolean.parseBoolean(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + args[k]);
+            }
+        }
+
+        GameServer embedded = null;
+        if (url == null) {
+            embedded = new GameServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 4, hintThreads, 4 * clients);
+            embedded.start();
+            url = "http://127.0.0.1:" + embedded.getPort();
+        }
+
+        try {
+            run(url, clients, moves, budgetMs, impatient);
+        }
+        finally {
+            if (embedded != null) {
+                embedded.stop();
+            }
+        }
+    }
+
+    /**
+     * Runs the clients and the prober and prints the latencies
+     */
+    private static void run(String url, int clients, int moves, int budgetMs, boolean impatient) throws Exception {
+        System.out.println("Load test against " + url + ": " + clients + (impatient ? " impatient" : "") + " clients, "
+                + moves + " moves each, " + budgetMs + " ms hints");
+
+        // Impatient clients read their hints on a second thread each
+        ExecutorService executor = Executors.newFixedThreadPool(impatient ? 2 * clients + 1 : clients + 1);
+        AtomicBoolean running = new AtomicBoolean(true);
+        long startTime = System.nanoTime();
+
+        try {
+            String probedGame = field(request(url + "/games?seed=0", "POST"), "id");
+            Future<long[]> prober = executor.submit(() -> {
+                List<Long> latencies = new ArrayList<>();
+                while (running.get()) {
+                    long start = System.nanoTime();
+                    request(url + "/games/" + probedGame, "GET");
+                    latencies.add(System.nanoTime() - start);
+                    Thread.sleep(PROBE_INTERVAL_MS);
+                }
+                return toArray(latencies);
+            });
+
+            List<Future<long[][]>> futures = new ArrayList<>();
+            for (int c = 0; c < clients; c++) {
+                long seed = c + 1;
+                futures.add(executor.submit(() -> impatient
+                        ? playImpatiently(url, seed, moves, budgetMs, executor)
+                        : playGame(url, seed, moves, budgetMs)));
+            }
+
+            List<long[]> hintLatencies = new ArrayList<>();
+            List<long[]> moveLatencies = new ArrayList<>();
+            for (Future<long[][]> future : futures) {
+                long[][] latencies = future.get();
+                hintLatencies.add(latencies[0]);
+                moveLatencies.add(latencies[1]);
+            }
+
+            running.set(false);
+            long elapsedNanos = System.nanoTime() - startTime;
+
+            long[] hints = concat(hintLatencies);
+            long[] movesPlayed = concat(moveLatencies);
+
+            System.out.println(String.format("%d hints and %d moves in %.1f s, %.1f requests/s",
+                    hints.length, movesPlayed.length, elapsedNanos / 1e9, (hints.length + movesPlayed.length) / (elapsedNanos / 1e9)));
+            report("hint", hints);
+            report("move", movesPlayed);
+            report("state", prober.get());
+            System.out.println(request(url + "/stats", "GET"));
+        }
+        finally {
+            running.set(false);
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Plays one game, following the hints
+     *
+     * @return latencies of the hint requests and of the move requests
+     */
+    private static long[][] playGame(String url, long seed, int moves, int budgetMs) throws IOException {
+        String game = url + "/games/" + field(request(url + "/games?seed=" + seed, "POST"), "id");
+        List<Long> hintLatencies = new ArrayList<>();
+        List<Long> moveLatencies = new ArrayList<>();
+
+        for (int move = 0; move < moves; move++) {
+            long start = System.nanoTime();
+            String hint = request(game + "/hint?budgetMs=" + budgetMs, "GET");
+            hintLatencies.add(System.nanoTime() - start);
+
+            String direction = field(hint, "direction");
+            if (direction == null) {
+                break;
+            }
+
+            start = System.nanoTime();
+            String state = request(game + "/move?direction=" + direction, "POST");
+            moveLatencies.add(System.nanoTime() - start);
+
+            if (state.contains("\"over\":true")) {
+                break;
+            }
+        }
+
+        request(game, "DELETE");
+
+        return new long[][]{toArray(hintLatencies), toArray(moveLatencies)};
+    }
+
+    /**
+     * Plays one game without waiting for the hints
+     *
+     * @return latencies of the hint requests and of the move requests
+     */
+    private static long[][] playImpatiently(String url, long seed, int moves, int budgetMs, ExecutorService executor)
+            throws Exception {
+        String game = url + "/games/" + field(request(url + "/games?seed=" + seed, "POST"), "id");
+        List<Long> hintLatencies = new ArrayList<>();
+        List<Long> moveLatencies = new ArrayList<>();
+
+        for (int move = 0; move < moves; move++) {
+            long hintStart = System.nanoTime();
+            Future<Integer> hint = executor.submit(() -> status(game + "/hint?budgetMs=" + budgetMs, "GET"));
+            Thread.sleep(IMPATIENCE_MS);
+
+            long start = System.nanoTime();
+            String state = request(game + "/move?direction=" + IMPATIENT_MOVES[move % IMPATIENT_MOVES.length], "POST");
+            moveLatencies.add(System.nanoTime() - start);
+
+            hint.get();
+            hintLatencies.add(System.nanoTime() - hintStart);
+
+            if (state.contains("\"over\":true")) {
+                break;
+            }
+        }
+
+        request(game, "DELETE");
+
+        return new long[][]{toArray(hintLatencies), toArray(moveLatencies)};
+    }
+
+    /**
+     * Sends a request and reads the answer
+     *
+     * @throws IOException on a connection failure or an error status
+     */
+    private static String request(String url, String method) throws IOException {
+        StringBuilder body = new StringBuilder();
+        int status = send(url, method, body);
+
+        if (status >= 400) {
+            throw new IOException(method + " " + url + " failed with " + status + ": " + body);
+        }
+
+        return body.toString();
+    }
+
+    /**
+     * Sends a request and reads only the status of the answer
+     */
+    private static int status(String url, String method) throws IOException {
+        return send(url, method, new StringBuilder());
+    }
+
+    /**
+     * Sends a request
+     *
+     * @param body receives the body of the answer
+     * @return the status of the answer
+     */
+    private static int send(String url, String method, StringBuilder body) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setRequestMethod(method);
+
+        int status = connection.getResponseCode();
+        InputStream in = (status < 400) ? connection.getInputStream() : connection.getErrorStream();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        if (in != null) {
+            try {
+                byte[] buffer = new byte[4096];
+                for (int read = in.read(buffer); read >= 0; read = in.read(buffer)) {
+                    bytes.write(buffer, 0, read);
+                }
+            }
+            finally {
+                in.close();
+            }
+        }
+
+        body.append(new String(bytes.toByteArray(), StandardCharsets.UTF_8));
+
+        return status;
+    }
+
+    /**
+     * Gets a string field of a JSON answer, null if absent
+     */
+    private static String field(String json, String name) {
+        Matcher matcher = STRING_FIELD.matcher(json);
+        while (matcher.find()) {
+            if (matcher.group(1).equals(name)) {
+                return matcher.group(2);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Prints the percentiles of a set of latencies
+     */
+    private static void report(String name, long[] latencies) {
+        if (latencies.length == 0) {
+            System.out.println(name + ":\tno requests");
+            return;
+        }
+
+        Arrays.sort(latencies);
+        System.out.println(String.format("%s:\t%d requests, p50 %.2f ms, p90 %.2f ms, p99 %.2f ms, max %.2f ms",
+                name, latencies.length, percentile(latencies, 50), percentile(latencies, 90),
+                percentile(latencies, 99), latencies[latencies.length - 1] / 1e6));
+    }
+
+    private static double percentile(long[] sorted, double percentile) {
+        int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+
+    private static long[] toArray(List<Long> values) {
+        long[] array = new long[values.size()];
+        for (int k = 0; k < array.length; k++) {
+            array[k] = values.get(k);
+        }
+        return array;
+    }
+
+    private static long[] concat(List<long[]> arrays) {
+        int length = 0;
+        for (long[] array : arrays) {
+            length += array.length;
+        }
+
+        long[] all = new long[length];
+        int offset = 0;
+        for (long[] array : arrays) {
+            System.arraycopy(array, 0, all, offset, array.length);
+            offset += array.length;
+        }
+        return all;
+    }
+}
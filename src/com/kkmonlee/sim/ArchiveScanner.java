@@ -0,0 +1,90 @@
+package com.kkmonlee.sim;
+
+import com.kkmonlee.dataobj.ActionStatus;
+import com.kkmonlee.dataobj.RecordType;
+import com.kkmonlee.game.BitBoard;
+import com.kkmonlee.game.GameRecordReader;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * Summarises game archives written by GameRecordWriter in one streaming
+ * pass, without materialising any game.
+ */
+public class ArchiveScanner {
+
+    /**
+     * Scans the archives given on the command line
+     *
+     * @param args archive files
+     */
+    public static void main(String[] args) throws IOException {
+        long bytes = 0;
+        long games = 0;
+        long steps = 0;
+        long invalidSteps = 0;
+        long stepsWithHint = 0;
+        long stepsFollowingHint = 0;
+        long fours = 0;
+        long totalScore = 0;
+        long wins = 0;
+        long[] maxTileCounts = new long[BitBoard.MAX_RANK + 1];
+
+        long startTime = System.nanoTime();
+
+        for (String file : args) {
+            bytes += Files.size(Paths.get(file));
+
+            try (GameRecordReader reader = GameRecordReader.open(Paths.get(file))) {
+                while (reader.next()) {
+                    RecordType type = reader.getType();
+
+                    if (type == RecordType.STEP) {
+                        steps++;
+                        if (reader.getStatus() == ActionStatus.INVALID_MOVE) {
+                            invalidSteps++;
+                        }
+                        if (reader.getHint() != null) {
+                            stepsWithHint++;
+                            if (reader.getHint() == reader.getDirection()) {
+                                stepsFollowingHint++;
+                            }
+                        }
+                        if (reader.getSpawnRank() == 2) {
+                            fours++;
+                        }
+                    }
+                    else if (type == RecordType.GAME_END) {
+                        games++;
+                        totalScore += reader.getScore();
+                        maxTileCounts[BitBoard.maxRank(reader.getBoard())]++;
+                        if (reader.getStatus() == ActionStatus.WIN) {
+                            wins++;
+                        }
+                    }
+                }
+            }
+        }
+
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+
+        System.out.println(String.format("%d games, %d steps (%d invalid), %d wins, mean score %.1f",
+                games, steps, invalidSteps, wins, games == 0 ? 0.0 : (double) totalScore / games));
+        System.out.println(String.format("Hint followed on %.1f%% of hinted steps, %.1f%% of spawns were 4s",
+                stepsWithHint == 0 ? 0.0 : 100.0 * stepsFollowingHint / stepsWithHint,
+                steps == invalidSteps ? 0.0 : 100.0 * fours / (steps - invalidSteps)));
+
+        StringBuilder tiles = new StringBuilder("Max tile:");
+        for (int rank = 1; rank <= BitBoard.MAX_RANK; rank++) {
+            if (maxTileCounts[rank] > 0) {
+                tiles.append(' ').append(1 << rank).append('=').append(maxTileCounts[rank]);
+            }
+        }
+        System.out.println(tiles);
+
+        System.out.println(String.format("Scanned %.1f MB in %.2f s (%.0f MB/s)",
+                bytes / 1e6, seconds, seconds == 0 ? 0.0 : bytes / 1e6 / seconds));
+    }
+}
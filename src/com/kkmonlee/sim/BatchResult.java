@@ -0,0 +1,165 @@
+package com.kkmonlee.sim;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Aggregated outcome of a batch of simulated games
+ */
+public class BatchResult {
+
+    // Per-game results, in seed order
+    private final List<GameResult> games;
+
+    // Wall time of the whole batch, in nanoseconds
+    private final long elapsedNanos;
+
+    // Final scores, sorted
+    private final int[] sortedScores;
+
+    /**
+     * Constructor
+     *
+     * @param games
+     * @param elapsedNanos
+     */
+    public BatchResult(List<GameResult> games, long elapsedNanos) {
+        this.games = games;
+        this.elapsedNanos = elapsedNanos;
+
+        sortedScores = new int[games.size()];
+        for (int k = 0; k < sortedScores.length; k++) {
+            sortedScores[k] = games.get(k).getScore();
+        }
+        Arrays.sort(sortedScores);
+    }
+
+    /**
+     * Gets the per-game results
+     */
+    public List<GameResult> getGames() {
+        return games;
+    }
+
+    /**
+     * Gets the number of games won
+     */
+    public int getWins() {
+        int wins = 0;
+
+        for (GameResult game : games) {
+            if (game.isWon()) {
+                wins++;
+            }
+        }
+
+        return wins;
+    }
+
+    /**
+     * Gets the fraction of games won
+     */
+    public double getWinRate() {
+        return games.isEmpty() ? 0 : (double) getWins() / games.size();
+    }
+
+    /**
+     * Gets the mean final score
+     */
+    public double getMeanScore() {
+        long total = 0;
+
+        for (int score : sortedScores) {
+            total += score;
+        }
+
+        return games.isEmpty() ? 0 : (double) total / games.size();
+    }
+
+    /**
+     * Gets a score percentile, nearest rank
+     *
+     * @param percentile between 0 and 100
+     * @return
+     */
+    public int getScorePercentile(double percentile) {
+        if (sortedScores.length == 0) {
+            return 0;
+        }
+
+        int rank = (int) Math.ceil(percentile / 100 * sortedScores.length) - 1;
+        return sortedScores[Math.max(0, Math.min(rank, sortedScores.length - 1))];
+    }
+
+    /**
+     * Gets how many games ended with each largest tile
+     */
+    public Map<Integer, Integer> getMaxTileHistogram() {
+        Map<Integer, Integer> histogram = new TreeMap<>();
+
+        for (GameResult game : games) {
+            histogram.merge(game.getMaxTile(), 1, Integer::sum);
+        }
+
+        return histogram;
+    }
+
+    /**
+     * Gets the total number of moves played
+     */
+    public long getTotalMoves() {
+        long moves = 0;
+
+        for (GameResult game : games) {
+            moves += game.getMoves();
+        }
+
+        return moves;
+    }
+
+    /**
+     * Gets the mean number of moves per game
+     */
+    public double getMeanMoves() {
+        return games.isEmpty() ? 0 : (double) getTotalMoves() / games.size();
+    }
+
+    /**
+     * Gets the number of moves played per second of wall time
+     */
+    public double getMovesPerSecond() {
+        return elapsedNanos == 0 ? 0 : getTotalMoves() * 1e9 / elapsedNanos;
+    }
+
+    /**
+     * Gets the wall time, in nanoseconds
+     */
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /**
+     * Formats the aggregates as a multi-line report
+     */
+    public String toReport() {
+        StringBuilder report = new StringBuilder();
+
+        report.append(String.format("Games:\t\t%d%n", games.size()));
+        report.append(String.format("Wins:\t\t%d (%.2f%%)%n", getWins(), 100 * getWinRate()));
+        report.append(String.format("Score:\t\tmean %.1f, min %d, p25 %d, median %d, p75 %d, p90 %d, max %d%n",
+                getMeanScore(), getScorePercentile(0), getScorePercentile(25), getScorePercentile(50),
+                getScorePercentile(75), getScorePercentile(90), getScorePercentile(100)));
+        report.append(String.format("Moves:\t\t%d total, %.1f per game%n", getTotalMoves(), getMeanMoves()));
+        report.append(String.format("Throughput:\t%.1f moves/s over %.1f s%n", getMovesPerSecond(), elapsedNanos / 1e9));
+        report.append("Max tile:\n");
+
+        for (Map.Entry<Integer, Integer> entry : getMaxTileHistogram().entrySet()) {
+            report.append(String.format("\t%d\t%d (%.2f%%)%n", entry.getKey(), entry.getValue(),
+                    100.0 * entry.getValue() / games.size()));
+        }
+
+        return report.toString();
+    }
+}
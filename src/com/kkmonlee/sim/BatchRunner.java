@@ -0,0 +1,503 @@
+package com.kkmonlee.sim;
+
+import com.kkmonlee.ai.AISolver;
+import com.kkmonlee.ai.Evaluator;
+import com.kkmonlee.ai.HeuristicEvaluator;
+import com.kkmonlee.ai.MonteCarloSolver;
+import com.kkmonlee.ai.NTupleNetwork;
+import com.kkmonlee.ai.OpeningBook;
+import com.kkmonlee.ai.SolverMetrics;
+import com.kkmonlee.ai.TranspositionTable;
+import com.kkmonlee.dataobj.ActionStatus;
+import com.kkmonlee.dataobj.Direction;
+import com.kkmonlee.dataobj.SearchAlgorithm;
+import com.kkmonlee.game.BitBoard;
+import com.kkmonlee.game.Board;
+import com.kkmonlee.game.GameRecordWriter;
+import com.kkmonlee.game.SplitMixRandom;
+import com.kkmonlee.game.WideBitBoard;
+
+import javax.management.JMException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Plays batches of games with the AI solver, without any interaction.
+ *
+ * Game k of a batch is seeded from the batch seed and k alone, and every
+ * game starts with an empty transposition table, so a batch replays the
+ * same games whatever the number of threads.
+ */
+public class BatchRunner {
+
+    // Memory cap of the transposition table of each thread
+    private static final int TABLE_SIZE_MB = 4;
+
+    // Number of games
+    private final int games;
+
+    // Number of games played at the same time
+    private final int threads;
+
+    // Search depth of every move
+    private final int depth;
+
+    // Search run for every move
+    private final SearchAlgorithm algorithm;
+
+    // Seed the game seeds are derived from
+    private final long seed;
+
+    // Search counters of every thread's solver
+    private final SolverMetrics metrics = new SolverMetrics();
+
+    // Book consulted before every search, null when none
+    private OpeningBook openingBook = null;
+
+    // Leaf evaluator of every thread's solver, null for the solver's default
+    private Evaluator evaluator = null;
+
+    // Archive every game is appended to, null when none
+    private GameRecordWriter recordWriter = null;
+
+    // Playouts per legal move of the Monte Carlo engine, 0 to search with AISolver
+    private int playouts = 0;
+
+    // Number of cells per row and column
+    private int size = Board.BOARD_SIZE;
+
+    /**
+     * Constructor
+     *
+     * @param games
+     * @param threads
+     * @param depth
+     * @param algorithm
+     * @param seed
+     */
+    public BatchRunner(int games, int threads, int depth, SearchAlgorithm algorithm, long seed) {
+        this.games = games;
+        this.threads = threads;
+        this.depth = depth;
+        this.algorithm = algorithm;
+        this.seed = seed;
+    }
+
+    /**
+     * Runs a batch from the command line
+     *
+     * Options: --games N, --threads N, --depth N, --algorithm NAME, --seed N,
+     * --playouts N to play with MonteCarloSolver instead of searching,
+     * --size N to play N x N games (Monte Carlo only), --book FILE to use an
+     * opening book, --weights FILE to evaluate leaves with a trained
+     * NTupleNetwork, --heuristic FILE to evaluate them with weights tuned
+     * by WeightTuner, --record FILE to append every game to an archive and
+     * --csv FILE to also write one line per game.
+     *
+     * @param args
+     */
+    public static void main(String[] args) throws IOException, InterruptedException, JMException {
+        int games = 1000;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int depth = 3;
+        SearchAlgorithm algorithm = SearchAlgorithm.ALPHA_BETA;
+        long seed = 2048;
+        String csvFile = null;
+        String bookFile = null;
+        String recordFile = null;
+        String weightsFile = null;
+        String heuristicFile = null;
+        int playouts = 0;
+        int size = Board.BOARD_SIZE;
+
+        for (int k = 0; k + 1 < args.length; k += 2) {
+            String value = args[k + 1];
+
+            switch (args[k]) {
+                case "--games":
+                    games = Integer.parseInt(value);
+                    break;
+                case "--threads":
+                    threads = Integer.parseInt(value);
+                    break;
+                case "--depth":
+                    depth = Integer.parseInt(value);
+                    break;
+                case "--algorithm":
+                    algorithm = SearchAlgorithm.valueOf(value);
+                    break;
+                case "--seed":
+                    seed = Long.parseLong(value);
+                    break;
+                case "--csv":
+                    csvFile = value;
+                    break;
+                case "--book":
+                    bookFile = value;
+                    break;
+                case "--record":
+                    recordFile = value;
+                    break;
+                case "--weights":
+                    weightsFile = value;
+                    break;
+                case "--heuristic":
+                    heuristicFile = value;
+                    break;
+                case "--playouts":
+                    playouts = Integer.parseInt(value);
+                    break;
+                case "--size":
+                    size = Integer.parseInt(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + args[k]);
+            }
+        }
+
+        String engine = (playouts > 0) ? "Monte Carlo with " + playouts + " playouts per move" : algorithm + " at depth " + depth;
+        System.out.println("Running " + games + " " + size + "x" + size + " games on " + threads + " threads, "
+                + engine + ", seed " + seed);
+
+        BatchRunner runner = new BatchRunner(games, threads, depth, algorithm, seed);
+        runner.setPlayouts(playouts);
+        runner.setSize(size);
+        runner.getMetrics().registerMBean("BatchRunner");
+        if (bookFile != null) {
+            runner.setOpeningBook(OpeningBook.open(Paths.get(bookFile)));
+        }
+        if (weightsFile != null) {
+            runner.setEvaluator(NTupleNetwork.open(Paths.get(weightsFile)));
+        }
+        else if (heuristicFile != null) {
+            runner.setEvaluator(HeuristicEvaluator.open(Paths.get(heuristicFile)));
+        }
+
+        GameRecordWriter recordWriter = (recordFile == null) ? null : GameRecordWriter.open(Paths.get(recordFile));
+        runner.setRecordWriter(recordWriter);
+
+        BatchResult result;
+        try {
+            result = runner.run();
+        }
+        finally {
+            if (recordWriter != null) {
+                recordWriter.close();
+            }
+        }
+        System.out.print(result.toReport());
+
+        SolverMetrics metrics = runner.getMetrics();
+        System.out.println(String.format("Search: %d hints, %d from the book, %.2f ms mean, %.2f ms p99, EBF %.2f, cutoff rate %.3f",
+                metrics.getSearches(), metrics.getBookHits(), metrics.getMeanLatencyMillis(), metrics.getLatencyP99Millis(),
+                metrics.getMeanEffectiveBranchingFactor(), metrics.getCutoffRate()));
+
+        if (csvFile != null) {
+            writeCsv(result, csvFile);
+        }
+    }
+
+    /**
+     * Plays the batch
+     *
+     * @return
+     * @throws InterruptedException
+     */
+    public BatchResult run() throws InterruptedException {
+        if (size != BitBoard.BOARD_SIZE && (playouts == 0 || recordWriter != null)) {
+            throw new IllegalStateException("Games other than 4x4 are only played with playouts and not recorded");
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<GameRecordWriter> recorders = new ArrayList<>();
+        ThreadLocal<GameRecordWriter> threadRecorders = ThreadLocal.withInitial(() -> {
+            if (recordWriter == null) {
+                return null;
+            }
+
+            synchronized (recorders) {
+                GameRecordWriter recorder = recordWriter.share();
+                recorders.add(recorder);
+                return recorder;
+            }
+        });
+        ThreadLocal<AISolver> solvers = ThreadLocal.withInitial(() -> {
+            AISolver solver = new AISolver(new TranspositionTable(TABLE_SIZE_MB, TranspositionTable.ReplacementPolicy.AGE_THEN_DEPTH));
+            solver.setAlgorithm(algorithm);
+            solver.setMetrics(metrics);
+            solver.setOpeningBook(openingBook);
+            if (evaluator != null) {
+                solver.setEvaluator(evaluator);
+            }
+            return solver;
+        });
+
+        long startTime = System.nanoTime();
+
+        try {
+            List<Future<GameResult>> futures = new ArrayList<>(games);
+            for (int k = 0; k < games; k++) {
+                long gameSeed = gameSeed(seed, k);
+                if (size != BitBoard.BOARD_SIZE) {
+                    futures.add(executor.submit(() -> {
+                        MonteCarloSolver solver = new MonteCarloSolver(gameSeed);
+                        solver.setMetrics(metrics);
+                        return playGame(solver, size, gameSeed, playouts);
+                    }));
+                }
+                else if (playouts > 0) {
+                    futures.add(executor.submit(() -> {
+                        MonteCarloSolver solver = new MonteCarloSolver(gameSeed);
+                        solver.setMetrics(metrics);
+                        return playGame(solver, gameSeed, playouts, threadRecorders.get());
+                    }));
+                }
+                else {
+                    futures.add(executor.submit(() -> playGame(solvers.get(), gameSeed, depth, threadRecorders.get())));
+                }
+            }
+
+            List<GameResult> results = new ArrayList<>(games);
+            for (Future<GameResult> future : futures) {
+                results.add(future.get());
+            }
+
+            return new BatchResult(results, System.nanoTime() - startTime);
+        }
+        catch (ExecutionException ex) {
+            throw new IllegalStateException("Simulated game failed", ex.getCause());
+        }
+        finally {
+            executor.shutdownNow();
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+
+            for (GameRecordWriter recorder : recorders) {
+                try {
+                    recorder.close();
+                }
+                catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets the search counters of all games played by this runner
+     */
+    public SolverMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Sets the opening book of every thread's solver, before run()
+     *
+     * @param openingBook may be null
+     */
+    public void setOpeningBook(OpeningBook openingBook) {
+        this.openingBook = openingBook;
+    }
+
+    /**
+     * Sets the leaf evaluator of every thread's solver, before run()
+     *
+     * @param evaluator null for the solver's default
+     */
+    public void setEvaluator(Evaluator evaluator) {
+        this.evaluator = evaluator;
+    }
+
+    /**
+     * Sets the archive every game is appended to, before run()
+     *
+     * @param recordWriter may be null
+     */
+    public void setRecordWriter(GameRecordWriter recordWriter) {
+        this.recordWriter = recordWriter;
+    }
+
+    /**
+     * Sets the playouts per legal move of the Monte Carlo engine, before
+     * run(). Games are then played with a MonteCarloSolver seeded from the
+     * game seed instead of searching.
+     *
+     * @param playouts 0 to search with AISolver
+     */
+    public void setPlayouts(int playouts) {
+        this.playouts = playouts;
+    }
+
+    /**
+     * Sets the number of cells per row and column, before run(). Boards
+     * other than 4x4 need playouts.
+     *
+     * @param size
+     */
+    public void setSize(int size) {
+        this.size = size;
+    }
+
+    /**
+     * Plays one game to the end, always following the solver's move
+     *
+     * @param solver
+     * @param gameSeed
+     * @param depth
+     * @return
+     */
+    public static GameResult playGame(AISolver solver, long gameSeed, int depth) {
+        return playGame(solver, gameSeed, depth, null);
+    }
+
+    /**
+     * Plays one game to the end, always following the solver's move
+     *
+     * @param solver
+     * @param gameSeed
+     * @param depth
+     * @param recorder writer the game is appended to, may be null
+     * @return
+     */
+    public static GameResult playGame(AISolver solver, long gameSeed, int depth, GameRecordWriter recorder) {
+        if (solver.getTranspositionTable() != null) {
+            solver.getTranspositionTable().clear();
+        }
+
+        return playGame(theGame -> solver.getBestMove(theGame, depth), gameSeed, recorder);
+    }
+
+    /**
+     * Plays one game to the end, always following the Monte Carlo solver's
+     * move
+     *
+     * @param solver
+     * @param gameSeed
+     * @param playouts playouts per legal move
+     * @param recorder writer the game is appended to, may be null
+     * @return
+     */
+    public static GameResult playGame(MonteCarloSolver solver, long gameSeed, int playouts, GameRecordWriter recorder) {
+        return playGame(theGame -> solver.getBestMove(theGame, playouts), gameSeed, recorder);
+    }
+
+    /**
+     * Plays one game of any size to the end, always following the Monte
+     * Carlo solver's move
+     *
+     * @param solver
+     * @param size number of cells per row and column
+     * @param gameSeed
+     * @param playouts playouts per legal move
+     * @return
+     */
+    public static GameResult playGame(MonteCarloSolver solver, int size, long gameSeed, int playouts) {
+        WideBitBoard theGame = new WideBitBoard(size, new SplitMixRandom(gameSeed));
+        ActionStatus result = ActionStatus.CONTINUE;
+        int moves = 0;
+
+        while (result == ActionStatus.CONTINUE || result == ActionStatus.INVALID_MOVE) {
+            Direction hint = solver.getBestMove(theGame, playouts);
+            if (hint == null) {
+                result = ActionStatus.NO_MORE_MOVES;
+                break;
+            }
+
+            result = theGame.action(hint);
+            moves++;
+        }
+
+        return new GameResult(gameSeed, theGame.getScore(), 1 << theGame.maxRank(), moves, result);
+    }
+
+    /**
+     * Plays one game to the end, always following the engine's move
+     *
+     * @param engine gives the move of a board, null when none is left
+     * @param gameSeed
+     * @param recorder writer the game is appended to, may be null
+     * @return
+     */
+    private static GameResult playGame(Function<BitBoard, Direction> engine, long gameSeed, GameRecordWriter recorder) {
+        BitBoard theGame = new BitBoard(new SplitMixRandom(gameSeed));
+        ActionStatus result = ActionStatus.CONTINUE;
+        int moves = 0;
+
+        if (recorder != null) {
+            recorder.startGame(gameSeed);
+        }
+
+        while (result == ActionStatus.CONTINUE || result == ActionStatus.INVALID_MOVE) {
+            Direction hint = engine.apply(theGame);
+            if (hint == null) {
+                result = ActionStatus.NO_MORE_MOVES;
+                break;
+            }
+
+            long before = theGame.getPackedBoard();
+            result = theGame.action(hint);
+            moves++;
+
+            if (recorder != null) {
+                recorder.step(before, hint, hint, result, theGame.getPackedBoard());
+            }
+        }
+
+        if (recorder != null) {
+            recorder.endGame(theGame.getPackedBoard(), theGame.getScore(), result);
+        }
+
+        return new GameResult(gameSeed, theGame.getScore(), 1 << BitBoard.maxRank(theGame.getPackedBoard()), moves, result);
+    }
+
+    /**
+     * Derives the seed of game k from the batch seed (SplitMix64)
+     *
+     * @param seed
+     * @param k
+     * @return
+     */
+    public static long gameSeed(long seed, int k) {
+        return gameSeed(seed, (long) k);
+    }
+
+    /**
+     * Derives the seed of game k from the batch seed (SplitMix64), for
+     * runs counting games past Integer.MAX_VALUE
+     *
+     * @param seed
+     * @param k
+     * @return the same seed as gameSeed(long, int) for any k that fits an int
+     */
+    public static long gameSeed(long seed, long k) {
+        long z = seed + (k + 1) * 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * Writes one line per game
+     */
+    private static void writeCsv(BatchResult result, String csvFile) throws IOException {
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(Paths.get(csvFile), StandardCharsets.UTF_8))) {
+            out.println("seed,score,maxTile,moves,status");
+
+            for (GameResult game : result.getGames()) {
+                out.println(game.getSeed() + "," + game.getScore() + "," + game.getMaxTile() + ","
+                        + game.getMoves() + "," + game.getStatus().name());
+            }
+        }
+    }
+}
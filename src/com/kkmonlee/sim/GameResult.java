@@ -0,0 +1,83 @@
+package com.kkmonlee.sim;
+
+import com.kkmonlee.dataobj.ActionStatus;
+
+/**
+ * Outcome of one simulated game
+ */
+public class GameResult {
+
+    // Seed of the game's random generator
+    private final long seed;
+
+    // Final score
+    private final int score;
+
+    // Largest tile on the final board
+    private final int maxTile;
+
+    // Number of moves played
+    private final int moves;
+
+    // Status that ended the game
+    private final ActionStatus status;
+
+    /**
+     * Constructor
+     *
+     * @param seed
+     * @param score
+     * @param maxTile
+     * @param moves
+     * @param status
+     */
+    public GameResult(long seed, int score, int maxTile, int moves, ActionStatus status) {
+        this.seed = seed;
+        this.score = score;
+        this.maxTile = maxTile;
+        this.moves = moves;
+        this.status = status;
+    }
+
+    /**
+     * Gets the seed
+     */
+    public long getSeed() {
+        return seed;
+    }
+
+    /**
+     * Gets the final score
+     */
+    public int getScore() {
+        return score;
+    }
+
+    /**
+     * Gets the largest tile
+     */
+    public int getMaxTile() {
+        return maxTile;
+    }
+
+    /**
+     * Gets the number of moves
+     */
+    public int getMoves() {
+        return moves;
+    }
+
+    /**
+     * Gets the status that ended the game
+     */
+    public ActionStatus getStatus() {
+        return status;
+    }
+
+    /**
+     * Checks whether the game was won
+     */
+    public boolean isWon() {
+        return status == ActionStatus.WIN;
+    }
+}
@@ -0,0 +1,308 @@
+package com.kkmonlee.sim;
+
+import com.kkmonlee.ai.NTupleNetwork;
+import com.kkmonlee.dataobj.Direction;
+import com.kkmonlee.game.BitBoard;
+import com.kkmonlee.game.SplitMixRandom;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Trains an NTupleNetwork by temporal difference learning from self-play.
+ *
+ * Every move of an episode is the one maximising its points plus the value
+ * of the board it leaves, before the spawn. Once the game is over, the
+ * values of those boards are moved towards the points of the next move
+ * plus the value of the next board, from the last move back to the first
+ * (TD(0) on afterstates, updated backwards so that the end of the game
+ * reaches the opening in one episode).
+ *
+ * Episodes are played by several threads updating the shared network
+ * without locking, so training is only reproducible on one thread. Episode
+ * k is seeded from the run seed and k alone.
+ */
+public class NTupleTrainer {
+
+    // Episodes between two progress reports and checkpoints when none is given
+    private static final int DEFAULT_REPORT_INTERVAL = 1000;
+
+    // Moves tried by self-play
+    private static final Direction[] DIRECTIONS = Direction.values();
+
+    // Exponent of the target tile
+    private static final int TARGET_RANK = 11;
+
+    // Network being trained
+    private final NTupleNetwork network;
+
+    // Number of threads playing episodes
+    private final int threads;
+
+    // Fraction of the error corrected by one update
+    private final float learningRate;
+
+    // Seed the episode seeds are derived from
+    private final long seed;
+
+    // Episodes played so far, also numbering the next episode
+    private long episodes = 0;
+
+    /**
+     * Constructor
+     *
+     * @param network
+     * @param threads
+     * @param learningRate
+     * @param seed
+     * @throws IllegalArgumentException if threads or learningRate is not positive
+     */
+    public NTupleTrainer(NTupleNetwork network, int threads, float learningRate, long seed) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Threads must be positive: " + threads);
+        }
+        if (!(learningRate > 0)) {
+            throw new IllegalArgumentException("Learning rate must be positive: " + learningRate);
+        }
+
+        this.network = network;
+        this.threads = threads;
+        this.learningRate = learningRate;
+        this.seed = seed;
+    }
+
+    /**
+     * Trains a network from the command line
+     *
+     * Options: --episodes N, --threads N, --alpha RATE, --seed N,
+     * --report N episodes between reports and checkpoints, --out FILE
+     * written at every checkpoint (ntuple.weights by default) and
+     * --resume true to continue training the network in --out.
+     *
+     * @param args
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        long episodes = 100000;
+        int threads = Runtime.getRuntime().availableProcessors();
+        float learningRate = 0.1f;
+        long seed = 2048;
+        int reportInterval = DEFAULT_REPORT_INTERVAL;
+        Path outFile = Paths.get("ntuple.weights");
+        boolean resume = false;
+
+        for (int k = 0; k + 1 < args.length; k += 2) {
+            String value = args[k + 1];
+
+            switch (args[k]) {
+                case "--episodes":
+                    episodes = Long.parseLong(value);
+                    break;
+                case "--threads":
+                    threads = Integer.parseInt(value);
+                    break;
+                case "--alpha":
+                    learningRate = Float.parseFloat(value);
+                    break;
+                case "--seed":
+                    seed = Long.parseLong(value);
+                    break;
+                case "--report":
+                    reportInterval = Integer.parseInt(value);
+                    break;
+                case "--out":
+                    outFile = Paths.get(value);
+                    break;
+                case "--resume":
+                    resume = Boolean.parseBoolean(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + args[k]);
+            }
+        }
+
+        NTupleNetwork network = (resume && Files.exists(outFile)) ? NTupleNetwork.open(outFile) : new NTupleNetwork();
+        System.out.println("Training " + network + " for " + episodes + " episodes on " + threads + " threads, alpha "
+                + learningRate + ", seed " + seed);
+
+        NTupleTrainer trainer = new NTupleTrainer(network, threads, learningRate, seed);
+        trainer.train(episodes, reportInterval, outFile);
+    }
+
+    /**
+     * Plays episodes, reporting progress and writing the network every
+     * reportInterval episodes
+     *
+     * @param count number of episodes
+     * @param reportInterval
+     * @param checkpoint file the network is written to, may be null
+     * @throws IOException if the checkpoint cannot be written
+     * @throws InterruptedException
+     * @throws IllegalArgumentException if reportInterval is not positive
+     */
+    public void train(long count, int reportInterval, Path checkpoint) throws IOException, InterruptedException {
+        if (reportInterval < 1) {
+            throw new IllegalArgumentException("Report interval must be positive: " + reportInterval);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+        try {
+            for (long done = 0; done < count; ) {
+                int round = (int) Math.min(reportInterval, count - done);
+                long startTime = System.nanoTime();
+
+                // Per thread: episodes, total score, episodes reaching the target, maximum rank
+                List<Future<long[]>> futures = new ArrayList<>(threads);
+                for (int w = 0; w < threads; w++) {
+                    long first = episodes + w;
+                    long last = episodes + round;
+                    futures.add(executor.submit((Callable<long[]>) () -> playEpisodes(first, last, threads)));
+                }
+
+                long[] totals = new long[4];
+                for (Future<long[]> future : futures) {
+                    long[] result = future.get();
+                    totals[0] += result[0];
+                    totals[1] += result[1];
+                    totals[2] += result[2];
+                    totals[3] = Math.max(totals[3], result[3]);
+                }
+
+                episodes += round;
+                done += round;
+                double seconds = (System.nanoTime() - startTime) / 1e9;
+
+                System.out.println(String.format("Episodes %d: mean score %.0f, %d reached in %.1f%%, max tile %d, %.0f episodes/s",
+                        episodes, (double) totals[1] / totals[0], 1 << TARGET_RANK, 100.0 * totals[2] / totals[0],
+                        1 << totals[3], totals[0] / seconds));
+
+                if (checkpoint != null) {
+                    network.write(checkpoint);
+                }
+            }
+        }
+        catch (ExecutionException ex) {
+            throw new IllegalStateException("Training episode failed", ex.getCause());
+        }
+        finally {
+            executor.shutdownNow();
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        }
+    }
+
+    /**
+     * Gets the number of episodes played so far
+     */
+    public long getEpisodes() {
+        return episodes;
+    }
+
+    /**
+     * Plays the episodes first, first + stride, ... before last
+     *
+     * @return the episodes played, their total score, how many reached the
+     * target tile and the largest rank reached
+     */
+    private long[] playEpisodes(long first, long last, int stride) {
+        long[] totals = new long[4];
+        Episode episode = new Episode();
+
+        for (long k = first; k < last; k += stride) {
+            BitBoard finalBoard = episode.play(BatchRunner.gameSeed(seed, k));
+            int maxRank = BitBoard.maxRank(finalBoard.getPackedBoard());
+
+            totals[0]++;
+            totals[1] += finalBoard.getScore();
+            totals[2] += (maxRank >= TARGET_RANK) ? 1 : 0;
+            totals[3] = Math.max(totals[3], maxRank);
+        }
+
+        return totals;
+    }
+
+    /**
+     * Boards and afterstates of one thread's episodes
+     */
+    private class Episode {
+
+        // Board probing the moves
+        private final BitBoard probe = new BitBoard(0L, 0);
+
+        // Boards left by the moves of the episode, before the spawn
+        private long[] afterstates = new long[4096];
+
+        // Points gained by the moves of the episode
+        private int[] rewards = new int[4096];
+
+        /**
+         * Plays one game greedily on the network, then learns from it
+         *
+         * @param gameSeed
+         * @return the final board
+         */
+        private BitBoard play(long gameSeed) {
+            BitBoard theGame = new BitBoard(new SplitMixRandom(gameSeed));
+            int moves = 0;
+
+            while (true) {
+                long packedBoard = theGame.getPackedBoard();
+                Direction best = null;
+                float bestValue = Float.NEGATIVE_INFINITY;
+                long bestAfterstate = 0;
+                int bestPoints = 0;
+
+                for (Direction direction : DIRECTIONS) {
+                    probe.setState(packedBoard, 0);
+                    int points = probe.move(direction);
+                    long afterstate = probe.getPackedBoard();
+                    if (afterstate == packedBoard) {
+                        continue;
+                    }
+
+                    float value = points + network.value(afterstate);
+                    if (value > bestValue) {
+                        bestValue = value;
+                        best = direction;
+                        bestAfterstate = afterstate;
+                        bestPoints = points;
+                    }
+                }
+
+                if (best == null) {
+                    break;
+                }
+
+                if (moves == afterstates.length) {
+                    afterstates = Arrays.copyOf(afterstates, 2 * moves);
+                    rewards = Arrays.copyOf(rewards, 2 * moves);
+                }
+                afterstates[moves] = bestAfterstate;
+                rewards[moves] = bestPoints;
+                moves++;
+
+                theGame.action(best);
+            }
+
+            // The board left by the last move is followed by no points
+            float target = 0;
+            for (int m = moves - 1; m >= 0; m--) {
+                float error = target - network.value(afterstates[m]);
+                network.learn(afterstates[m], learningRate * error);
+                target = rewards[m] + network.value(afterstates[m]);
+            }
+
+            return theGame;
+        }
+    }
+}
@@ -0,0 +1,299 @@
+package com.kkmonlee.sim;
+
+import com.kkmonlee.ai.AISolver;
+import com.kkmonlee.ai.OpeningBook;
+import com.kkmonlee.ai.TranspositionTable;
+import com.kkmonlee.dataobj.ActionStatus;
+import com.kkmonlee.dataobj.Direction;
+import com.kkmonlee.dataobj.SearchAlgorithm;
+import com.kkmonlee.game.BitBoard;
+import com.kkmonlee.game.SplitMixRandom;
+import com.kkmonlee.game.Symmetry;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Builds an opening book offline.
+ *
+ * The corpus is the first moves of seeded games played by a shallow
+ * solver, game k seeded like in BatchRunner. Positions are deduplicated on
+ * their canonical board, positions seen fewer times than the minimum count
+ * are dropped, and the rest are searched at the book depth. The output only
+ * depends on the options, not on the number of threads.
+ */
+public class OpeningBookGenerator {
+
+    // Memory cap of the transposition table of each thread
+    private static final int TABLE_SIZE_MB = 4;
+
+    // Number of games the corpus is sampled from
+    private final int games;
+
+    // Moves of each game added to the corpus
+    private final int moves;
+
+    // Search depth of the corpus games
+    private final int playDepth;
+
+    // Search depth of the book moves
+    private final int depth;
+
+    // Search of the book moves
+    private final SearchAlgorithm algorithm;
+
+    // Times a position must appear in the corpus to be searched
+    private final int minCount;
+
+    // Number of threads
+    private final int threads;
+
+    // Seed the game seeds are derived from
+    private final long seed;
+
+    /**
+     * Constructor
+     *
+     * @param games
+     * @param moves
+     * @param playDepth
+     * @param depth
+     * @param algorithm
+     * @param minCount
+     * @param threads
+     * @param seed
+     */
+    public OpeningBookGenerator(int games, int moves, int playDepth, int depth, SearchAlgorithm algorithm,
+                                int minCount, int threads, long seed) {
+        this.games = games;
+        this.moves = moves;
+        this.playDepth = playDepth;
+        this.depth = depth;
+        this.algorithm = algorithm;
+        this.minCount = minCount;
+        this.threads = threads;
+        this.seed = seed;
+    }
+
+    /**
+     * Builds a book from the command line
+     *
+     * Options: --games N, --moves N, --play-depth N, --depth N,
+     * --algorithm NAME, --min-count N, --threads N, --seed N and --out FILE.
+     *
+     * @param args
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int games = 10000;
+        int moves = 12;
+        int playDepth = 3;
+        int depth = 7;
+        SearchAlgorithm algorithm = SearchAlgorithm.ALPHA_BETA;
+        int minCount = 2;
+        int threads = Runtime.getRuntime().availableProcessors();
+        long seed = 2048;
+        Path out = Paths.get("opening.book");
+
+        for (int k = 0; k + 1 < args.length; k += 2) {
+            String value = args[k + 1];
+
+            switch (args[k]) {
+                case "--games":
+                    games = Integer.parseInt(value);
+                    break;
+                case "--moves":
+                    moves = Integer.parseInt(value);
+                    break;
+                case "--play-depth":
+                    playDepth = Integer.parseInt(value);
+                    break;
+                case "--depth":
+                    depth = Integer.parseInt(value);
+                    break;
+                case "--algorithm":
+                    algorithm = SearchAlgorithm.valueOf(value);
+                    break;
+                case "--min-count":
+                    minCount = Integer.parseInt(value);
+                    break;
+                case "--threads":
+                    threads = Integer.parseInt(value);
+                    break;
+                case "--seed":
+                    seed = Long.parseLong(value);
+                    break;
+                case "--out":
+                    out = Paths.get(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + args[k]);
+            }
+        }
+
+        long startTime = System.nanoTime();
+        new OpeningBookGenerator(games, moves, playDepth, depth, algorithm, minCount, threads, seed).generate(out);
+
+        System.out.println(String.format("Wrote %s, %d bytes, in %.1f s", out, Files.size(out),
+                (System.nanoTime() - startTime) / 1e9));
+    }
+
+    /**
+     * Samples the corpus, searches it and writes the book
+     *
+     * @param out
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public void generate(Path out) throws IOException, InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+        try {
+            List<long[]> corpus = sampleCorpus(executor);
+            System.out.println(corpus.size() + " positions seen at least " + minCount + " times in "
+                    + games + " games, searching them at depth " + depth);
+
+            ThreadLocal<AISolver> solvers = ThreadLocal.withInitial(() -> {
+                AISolver solver = new AISolver(new TranspositionTable(TABLE_SIZE_MB, TranspositionTable.ReplacementPolicy.AGE_THEN_DEPTH));
+                solver.setAlgorithm(algorithm);
+                return solver;
+            });
+
+            Direction[] bookMoves = new Direction[corpus.size()];
+            float[] bookScores = new float[corpus.size()];
+
+            List<Future<?>> futures = new ArrayList<>(corpus.size());
+            for (int k = 0; k < corpus.size(); k++) {
+                long board = corpus.get(k)[0];
+                int score = (int) corpus.get(k)[1];
+                int index = k;
+
+                futures.add(executor.submit(() -> {
+                    AISolver solver = solvers.get();
+                    // Entries left by other positions would make the moves depend on scheduling
+                    solver.getTranspositionTable().clear();
+
+                    bookMoves[index] = solver.getBestMove(new BitBoard(board, score), depth);
+                    bookScores[index] = (float) solver.getLastScore();
+                }));
+            }
+
+            for (Future<?> future : futures) {
+                future.get();
+            }
+
+            // Positions without a move are over and stay out of the book
+            int entries = 0;
+            for (Direction move : bookMoves) {
+                if (move != null) {
+                    entries++;
+                }
+            }
+
+            long[] boards = new long[entries];
+            Direction[] moves = new Direction[entries];
+            float[] scores = new float[entries];
+            int[] depths = new int[entries];
+
+            int entry = 0;
+            for (int k = 0; k < corpus.size(); k++) {
+                if (bookMoves[k] != null) {
+                    boards[entry] = corpus.get(k)[0];
+                    moves[entry] = bookMoves[k];
+                    scores[entry] = bookScores[k];
+                    depths[entry] = depth;
+                    entry++;
+                }
+            }
+
+            OpeningBook.write(out, algorithm, boards, moves, scores, depths);
+            System.out.println(entries + " positions written");
+        }
+        catch (ExecutionException ex) {
+            throw new IllegalStateException("Book search failed", ex.getCause());
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Plays the corpus games and keeps the canonical positions seen often
+     * enough, in order of first appearance
+     *
+     * @return pairs of canonical board and score at first appearance
+     */
+    private List<long[]> sampleCorpus(ExecutorService executor) throws InterruptedException, ExecutionException {
+        List<Future<long[]>> futures = new ArrayList<>(games);
+        ThreadLocal<AISolver> players = ThreadLocal.withInitial(AISolver::new);
+
+        for (int k = 0; k < games; k++) {
+            long gameSeed = BatchRunner.gameSeed(seed, k);
+            futures.add(executor.submit(() -> playOpening(players.get(), gameSeed)));
+        }
+
+        Map<Long, long[]> seen = new HashMap<>();
+        List<long[]> order = new ArrayList<>();
+
+        for (Future<long[]> future : futures) {
+            long[] positions = future.get();
+
+            for (int k = 0; k < positions.length; k += 2) {
+                long[] position = seen.get(positions[k]);
+                if (position == null) {
+                    position = new long[]{positions[k], positions[k + 1], 0};
+                    seen.put(positions[k], position);
+                    order.add(position);
+                }
+                position[2]++;
+            }
+        }
+
+        List<long[]> corpus = new ArrayList<>();
+        for (long[] position : order) {
+            if (position[2] >= minCount) {
+                corpus.add(position);
+            }
+        }
+
+        return corpus;
+    }
+
+    /**
+     * Plays the first moves of one game
+     *
+     * @return canonical board and score before every move
+     */
+    private long[] playOpening(AISolver player, long gameSeed) {
+        BitBoard theGame = new BitBoard(new SplitMixRandom(gameSeed));
+        long[] positions = new long[2 * moves];
+        int count = 0;
+
+        for (int move = 0; move < moves; move++) {
+            Direction hint = player.getBestMove(theGame, playDepth);
+            if (hint == null) {
+                break;
+            }
+
+            positions[count++] = Symmetry.canonical(theGame.getPackedBoard());
+            positions[count++] = theGame.getScore();
+
+            ActionStatus result = theGame.action(hint);
+            if (result != ActionStatus.CONTINUE && result != ActionStatus.INVALID_MOVE) {
+                break;
+            }
+        }
+
+        return Arrays.copyOf(positions, count);
+    }
+}
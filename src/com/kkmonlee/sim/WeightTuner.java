@@ -0,0 +1,588 @@
+package com.kkmonlee.sim;
+
+import com.kkmonlee.ai.AISolver;
+import com.kkmonlee.ai.HeuristicEvaluator;
+import com.kkmonlee.ai.TranspositionTable;
+import com.kkmonlee.dataobj.SearchAlgorithm;
+import com.kkmonlee.game.SplitMixRandom;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tunes the weights of HeuristicEvaluator by self-play.
+ *
+ * The weights are searched with a separable CMA-ES (an evolution strategy
+ * adapting one step size per weight), maximising the mean score of seeded
+ * games at a shallow search depth. All candidates of a generation, and
+ * the mean they are drawn around, play the same games, so they are
+ * compared on equal luck; every generation draws new games. The games of
+ * a generation run on all cores.
+ *
+ * The optimiser works on weights scaled by WEIGHT_SCALES around the
+ * starting weights, so that one unit is a sensible change for every term.
+ * The best weights so far play every generation's games as well, and the
+ * generation's mean replaces them only if it scores more on those same
+ * games, so a lucky draw of easy games never decides the output. After
+ * each generation the state is checkpointed and the best weights are
+ * written as a weight file for HeuristicEvaluator.open(). A run is
+ * reproducible from its seed, also across a resume.
+ */
+public class WeightTuner {
+
+    // "TUNE" in ASCII
+    public static final int MAGIC = 0x54554E45;
+
+    // Version of the checkpoint layout
+    public static final int VERSION = 1;
+
+    // Typical size of a useful change of each weight, indexed like HeuristicEvaluator.WEIGHT_NAMES
+    private static final double[] WEIGHT_SCALES = {0.5, 1.0, 0.5, 50.0, 200.0, 200.0, 0.3};
+
+    // Memory cap of the transposition table of each thread
+    private static final int TABLE_SIZE_MB = 4;
+
+    // Weights the search starts from
+    private final double[] startWeights;
+
+    // Number of threads playing games
+    private final int threads;
+
+    // Games played by every candidate of a generation
+    private final int games;
+
+    // Search depth of every move
+    private final int depth;
+
+    // Search run for every move
+    private final SearchAlgorithm algorithm;
+
+    // Seed the generations are derived from
+    private final long seed;
+
+    // Optimiser state
+    private Strategy strategy;
+
+    // Mean score of bestWeights over the games of the last generation
+    private double bestFitness = Double.NEGATIVE_INFINITY;
+
+    // Best weights so far, the start weights until a generation's mean beats them
+    private double[] bestWeights;
+
+    /**
+     * Constructor
+     *
+     * @param startWeights weights the search starts from
+     * @param population candidates per generation
+     * @param threads
+     * @param games games per candidate
+     * @param depth
+     * @param algorithm
+     * @param seed
+     */
+    public WeightTuner(double[] startWeights, int population, int threads, int games, int depth,
+                       SearchAlgorithm algorithm, long seed) {
+        if (startWeights.length != WEIGHT_SCALES.length) {
+            throw new IllegalArgumentException("Expected " + WEIGHT_SCALES.length + " weights, got " + startWeights.length);
+        }
+
+        this.startWeights = startWeights.clone();
+        this.threads = threads;
+        this.games = games;
+        this.depth = depth;
+        this.algorithm = algorithm;
+        this.seed = seed;
+        this.strategy = new Strategy(startWeights.length, population);
+        this.bestWeights = startWeights.clone();
+    }
+
+    /**
+     * Tunes the weights from the command line
+     *
+     * Options: --generations N, --population N candidates per generation,
+     * --games N per candidate, --depth N, --algorithm NAME, --threads N,
+     * --seed N, --start FILE weights to start from (the defaults
+     * otherwise), --out FILE for the best weights (heuristic.weights by
+     * default) and --checkpoint FILE (tuner.checkpoint by default), which
+     * is resumed from when it exists.
+     *
+     * @param args
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int generations = 50;
+        int population = 0;
+        int games = 16;
+        int depth = 2;
+        SearchAlgorithm algorithm = SearchAlgorithm.ALPHA_BETA;
+        int threads = Runtime.getRuntime().availableProcessors();
+        long seed = 2048;
+        Path startFile = null;
+        Path outFile = Paths.get("heuristic.weights");
+        Path checkpointFile = Paths.get("tuner.checkpoint");
+
+        for (int k = 0; k + 1 < args.length; k += 2) {
+            String value = args[k + 1];
+
+            switch (args[k]) {
+                case "--generations":
+                    generations = Integer.parseInt(value);
+                    break;
+                case "--population":
+                    population = Integer.parseInt(value);
+                    break;
+                case "--games":
+                    games = Integer.parseInt(value);
+                    break;
+                case "--depth":
+                    depth = Integer.parseInt(value);
+                    break;
+                case "--algorithm":
+                    algorithm = SearchAlgorithm.valueOf(value);
+                    break;
+                case "--threads":
+                    threads = Integer.parseInt(value);
+                    break;
+                case "--seed":
+                    seed = Long.parseLong(value);
+                    break;
+                case "--start":
+                    startFile = Paths.get(value);
+                    break;
+                case "--out":
+                    outFile = Paths.get(value);
+                    break;
+                case "--checkpoint":
+                    checkpointFile = Paths.get(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + args[k]);
+            }
+        }
+
+        double[] startWeights = (startFile == null) ? HeuristicEvaluator.DEFAULT.getWeights()
+                : HeuristicEvaluator.open(startFile).getWeights();
+
+        WeightTuner tuner = new WeightTuner(startWeights, population, threads, games, depth, algorithm, seed);
+        if (Files.exists(checkpointFile)) {
+            tuner.resume(checkpointFile);
+            System.out.println("Resuming from generation " + tuner.getGeneration() + " of " + checkpointFile);
+        }
+
+        System.out.println("Tuning " + tuner.strategy.population + " candidates x " + games + " games per generation, "
+                + algorithm + " at depth " + depth + ", " + threads + " threads, seed " + seed);
+
+        tuner.run(generations, outFile, checkpointFile);
+    }
+
+    /**
+     * Runs generations until the given number is reached, checkpointing
+     * after each one
+     *
+     * @param generations total number of generations, including resumed ones
+     * @param outFile file the best weights are written to, may be null
+     * @param checkpointFile may be null
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public void run(int generations, Path outFile, Path checkpointFile) throws IOException, InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        ThreadLocal<AISolver> solvers = ThreadLocal.withInitial(() -> {
+            AISolver solver = new AISolver(new TranspositionTable(TABLE_SIZE_MB, TranspositionTable.ReplacementPolicy.AGE_THEN_DEPTH));
+            solver.setAlgorithm(algorithm);
+            return solver;
+        });
+
+        try {
+            while (strategy.generation < generations) {
+                long startTime = System.nanoTime();
+                long generationSeed = BatchRunner.gameSeed(seed, strategy.generation);
+
+                double[][] candidates = strategy.sample(new SplitMixRandom(generationSeed));
+                double[] meanWeights = weightsOf(candidates[candidates.length - 1]);
+
+                // The best weights so far are scored again on this generation's games, unless the mean is them
+                boolean rescoreBest = !Arrays.equals(bestWeights, meanWeights);
+                double[][] weights = new double[candidates.length + (rescoreBest ? 1 : 0)][];
+                for (int c = 0; c < candidates.length; c++) {
+                    weights[c] = weightsOf(candidates[c]);
+                }
+                if (rescoreBest) {
+                    weights[candidates.length] = bestWeights;
+                }
+
+                double[] fitness = play(executor, solvers, weights, generationSeed);
+
+                double meanFitness = fitness[candidates.length - 1];
+                bestFitness = rescoreBest ? fitness[candidates.length] : meanFitness;
+                if (meanFitness > bestFitness) {
+                    bestFitness = meanFitness;
+                    bestWeights = meanWeights;
+                }
+                if (outFile != null) {
+                    new HeuristicEvaluator(bestWeights).write(outFile, String.format("Mean score %.0f over the %d games of generation %d",
+                            bestFitness, games, strategy.generation + 1));
+                }
+
+                strategy.update(Arrays.copyOf(candidates, candidates.length - 1), Arrays.copyOf(fitness, candidates.length - 1));
+
+                double bestCandidate = Double.NEGATIVE_INFINITY;
+                for (int c = 0; c < candidates.length - 1; c++) {
+                    bestCandidate = Math.max(bestCandidate, fitness[c]);
+                }
+                System.out.println(String.format("Generation %d: mean %.0f, best candidate %.0f, best weights %.0f, step %.3f, %.1f s %s",
+                        strategy.generation, meanFitness, bestCandidate, bestFitness, strategy.sigma,
+                        (System.nanoTime() - startTime) / 1e9, Arrays.toString(meanWeights)));
+
+                if (checkpointFile != null) {
+                    checkpoint(checkpointFile);
+                }
+            }
+        }
+        catch (ExecutionException ex) {
+            throw new IllegalStateException("Tuning game failed", ex.getCause());
+        }
+        finally {
+            executor.shutdownNow();
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        }
+    }
+
+    /**
+     * Gets the number of finished generations
+     */
+    public int getGeneration() {
+        return strategy.generation;
+    }
+
+    /**
+     * Gets the best weights found so far, the start weights before any
+     * generation
+     */
+    public double[] getBestWeights() {
+        return bestWeights.clone();
+    }
+
+    /**
+     * Writes the optimiser state, through a temporary file so that a crash
+     * never leaves half a checkpoint
+     *
+     * @param file
+     * @throws IOException
+     */
+    public void checkpoint(Path file) throws IOException {
+        int n = startWeights.length;
+        ByteBuffer buffer = ByteBuffer.allocate(32 + 8 * (6 * n + 2));
+
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putInt(n);
+        buffer.putInt(strategy.population);
+        buffer.putInt(strategy.generation);
+        buffer.putInt(0);
+        buffer.putLong(seed);
+        buffer.putDouble(strategy.sigma);
+        buffer.putDouble(bestFitness);
+        for (double[] vector : new double[][]{startWeights, strategy.mean, strategy.variances, strategy.stepPath,
+                strategy.variancePath, bestWeights}) {
+            for (double value : vector) {
+                buffer.putDouble(value);
+            }
+        }
+
+        buffer.flip();
+
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Restores the optimiser state of a checkpoint
+     *
+     * @param file
+     * @throws IOException if the file cannot be read, or was written for
+     * other weights or another seed
+     */
+    public void resume(Path file) throws IOException {
+        int n = startWeights.length;
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+
+        if (buffer.remaining() != 32 + 8 * (6 * n + 2) || buffer.getInt() != MAGIC || buffer.getInt() != VERSION
+                || buffer.getInt() != n) {
+            throw new IOException("Not a tuner checkpoint, or an unsupported version: " + file);
+        }
+
+        Strategy restored = new Strategy(n, buffer.getInt());
+        restored.generation = buffer.getInt();
+        buffer.getInt();
+        if (buffer.getLong() != seed) {
+            throw new IOException("Checkpoint " + file + " was written with another seed");
+        }
+
+        restored.sigma = buffer.getDouble();
+        double restoredFitness = buffer.getDouble();
+
+        double[] checkpointStart = new double[n];
+        for (double[] vector : new double[][]{checkpointStart, restored.mean, restored.variances, restored.stepPath,
+                restored.variancePath, bestWeights}) {
+            for (int k = 0; k < n; k++) {
+                vector[k] = buffer.getDouble();
+            }
+        }
+
+        if (!Arrays.equals(checkpointStart, startWeights)) {
+            throw new IOException("Checkpoint " + file + " was written from other start weights");
+        }
+
+        strategy = restored;
+        bestFitness = restoredFitness;
+    }
+
+    /**
+     * Plays the games of a generation
+     *
+     * @param candidates weights to score
+     * @return the mean score of every candidate
+     */
+    private double[] play(ExecutorService executor, ThreadLocal<AISolver> solvers, double[][] candidates,
+                          long generationSeed) throws InterruptedException, ExecutionException {
+        List<List<Future<GameResult>>> futures = new ArrayList<>(candidates.length);
+
+        for (double[] candidate : candidates) {
+            HeuristicEvaluator evaluator = new HeuristicEvaluator(candidate);
+            List<Future<GameResult>> candidateFutures = new ArrayList<>(games);
+
+            for (int k = 0; k < games; k++) {
+                long gameSeed = BatchRunner.gameSeed(generationSeed, k);
+                candidateFutures.add(executor.submit(() -> {
+                    AISolver solver = solvers.get();
+                    solver.setEvaluator(evaluator);
+                    return BatchRunner.playGame(solver, gameSeed, depth);
+                }));
+            }
+            futures.add(candidateFutures);
+        }
+
+        double[] fitness = new double[candidates.length];
+        for (int c = 0; c < candidates.length; c++) {
+            long total = 0;
+            for (Future<GameResult> future : futures.get(c)) {
+                total += future.get().getScore();
+            }
+            fitness[c] = (double) total / games;
+        }
+
+        return fitness;
+    }
+
+    /**
+     * Maps a point of the search space to weights
+     */
+    private double[] weightsOf(double[] point) {
+        double[] weights = new double[point.length];
+
+        for (int k = 0; k < point.length; k++) {
+            weights[k] = startWeights[k] + WEIGHT_SCALES[k] * point[k];
+        }
+
+        return weights;
+    }
+
+    /**
+     * Separable CMA-ES state, maximising (Ros and Hansen, 2008): a mean, a
+     * global step size and one variance per coordinate, adapted from the
+     * best half of each generation
+     */
+    private static class Strategy {
+
+        // Number of coordinates
+        final int dimension;
+
+        // Candidates per generation
+        final int population;
+
+        // Candidates recombined into the next mean
+        final int parents;
+
+        // Recombination weights of the parents, best first
+        final double[] recombination;
+
+        // Variance effective selection mass
+        final double selectionMass;
+
+        // Learning rate of the step size path
+        final double stepPathRate;
+
+        // Damping of the step size
+        final double stepDamping;
+
+        // Learning rate of the variance path
+        final double variancePathRate;
+
+        // Learning rate of the rank-one variance update
+        final double rankOneRate;
+
+        // Learning rate of the rank-mu variance update
+        final double rankMuRate;
+
+        // Expected length of a standard normal vector
+        final double expectedLength;
+
+        // Finished generations
+        int generation = 0;
+
+        // Mean of the distribution
+        double[] mean;
+
+        // Global step size
+        double sigma = 1.0;
+
+        // Variance of each coordinate
+        double[] variances;
+
+        // Evolution path of the step size
+        double[] stepPath;
+
+        // Evolution path of the variances
+        double[] variancePath;
+
+        /**
+         * Constructor
+         *
+         * @param dimension
+         * @param population candidates per generation, 0 for the usual
+         * 4 + 3 ln(dimension)
+         */
+        Strategy(int dimension, int population) {
+            this.dimension = dimension;
+            this.population = (population > 0) ? Math.max(population, 2) : 4 + (int) (3 * Math.log(dimension));
+            this.parents = this.population / 2;
+
+            recombination = new double[parents];
+            double sum = 0;
+            double squares = 0;
+            for (int i = 0; i < parents; i++) {
+                recombination[i] = Math.log(parents + 0.5) - Math.log(i + 1);
+                sum += recombination[i];
+            }
+            for (int i = 0; i < parents; i++) {
+                recombination[i] /= sum;
+                squares += recombination[i] * recombination[i];
+            }
+            selectionMass = 1 / squares;
+
+            stepPathRate = (selectionMass + 2) / (dimension + selectionMass + 5);
+            stepDamping = 1 + 2 * Math.max(0, Math.sqrt((selectionMass - 1) / (dimension + 1)) - 1) + stepPathRate;
+            variancePathRate = (4 + selectionMass / dimension) / (dimension + 4 + 2 * selectionMass / dimension);
+
+            // Diagonal covariance learns (dimension + 2) / 3 times faster than a full one
+            double speedUp = (dimension + 2) / 3.0;
+            double rankOne = 2 / ((dimension + 1.3) * (dimension + 1.3) + selectionMass);
+            double rankMu = 2 * (selectionMass - 2 + 1 / selectionMass) / ((dimension + 2) * (dimension + 2) + selectionMass);
+            rankOneRate = Math.min(1, speedUp * rankOne);
+            rankMuRate = Math.min(1 - rankOneRate, speedUp * Math.max(0, rankMu));
+
+            expectedLength = Math.sqrt(dimension) * (1 - 1.0 / (4 * dimension) + 1.0 / (21.0 * dimension * dimension));
+
+            mean = new double[dimension];
+            variances = new double[dimension];
+            Arrays.fill(variances, 1.0);
+            stepPath = new double[dimension];
+            variancePath = new double[dimension];
+        }
+
+        /**
+         * Draws the candidates of a generation
+         *
+         * @param random
+         * @return population candidates followed by a copy of the mean
+         */
+        double[][] sample(SplitMixRandom random) {
+            double[][] candidates = new double[population + 1][];
+
+            for (int c = 0; c < population; c++) {
+                candidates[c] = new double[dimension];
+                for (int k = 0; k < dimension; k++) {
+                    candidates[c][k] = mean[k] + sigma * Math.sqrt(variances[k]) * random.nextGaussian();
+                }
+            }
+            candidates[population] = mean.clone();
+
+            return candidates;
+        }
+
+        /**
+         * Moves the distribution towards the best candidates
+         *
+         * @param candidates
+         * @param fitness larger is better
+         */
+        void update(double[][] candidates, double[] fitness) {
+            Integer[] order = new Integer[candidates.length];
+            for (int c = 0; c < order.length; c++) {
+                order[c] = c;
+            }
+            Arrays.sort(order, (a, b) -> Double.compare(fitness[b], fitness[a]));
+
+            // Steps of the parents from the old mean, in units of sigma
+            double[][] steps = new double[parents][dimension];
+            double[] meanStep = new double[dimension];
+            for (int i = 0; i < parents; i++) {
+                double[] candidate = candidates[order[i]];
+                for (int k = 0; k < dimension; k++) {
+                    steps[i][k] = (candidate[k] - mean[k]) / sigma;
+                    meanStep[k] += recombination[i] * steps[i][k];
+                }
+            }
+
+            double stepNorm = 0;
+            for (int k = 0; k < dimension; k++) {
+                mean[k] += sigma * meanStep[k];
+                stepPath[k] = (1 - stepPathRate) * stepPath[k]
+                        + Math.sqrt(stepPathRate * (2 - stepPathRate) * selectionMass) * meanStep[k] / Math.sqrt(variances[k]);
+                stepNorm += stepPath[k] * stepPath[k];
+            }
+            stepNorm = Math.sqrt(stepNorm);
+
+            // Stalls the variance path while the step size path is too long
+            double correction = Math.sqrt(1 - Math.pow(1 - stepPathRate, 2 * (generation + 1)));
+            boolean stalled = stepNorm / correction >= (1.4 + 2.0 / (dimension + 1)) * expectedLength;
+
+            for (int k = 0; k < dimension; k++) {
+                variancePath[k] = (1 - variancePathRate) * variancePath[k]
+                        + (stalled ? 0 : Math.sqrt(variancePathRate * (2 - variancePathRate) * selectionMass) * meanStep[k]);
+
+                double rankMu = 0;
+                for (int i = 0; i < parents; i++) {
+                    rankMu += recombination[i] * steps[i][k] * steps[i][k];
+                }
+
+                double rankOne = variancePath[k] * variancePath[k]
+                        + (stalled ? variancePathRate * (2 - variancePathRate) * variances[k] : 0);
+                variances[k] = (1 - rankOneRate - rankMuRate) * variances[k] + rankOneRate * rankOne + rankMuRate * rankMu;
+            }
+
+            sigma *= Math.exp((stepPathRate / stepDamping) * (stepNorm / expectedLength - 1));
+            generation++;
+        }
+    }
+}